@@ -0,0 +1,313 @@
+package Guidance;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     AsyncLogHandler class                                       */
+/*                                     AsyncLogHandler class                                       */
+/*                                     AsyncLogHandler class                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Log handler that hands the records to a writer thread so the thread logging never waits on the
+ * terminal or the disk.
+ *
+ * The records pass through a bounded ring buffer that any number of threads add to without a lock
+ * and the writer thread takes from. The writer formats and writes them with the target handlers
+ * (console and log file) a batch at a time and flushes the targets once per batch.
+ *
+ * If the buffer is full the record is dropped (counted and reported in the log when there's room)
+ * or the logging thread waits for room, as chosen by the OverflowPolicy.
+ *
+ * Closing the handler (also done at the program exit) writes all the records waiting.
+ *
+ * This class logs nothing itself; it's part of the logging.
+ */
+class AsyncLogHandler extends Handler
+{
+    enum OverflowPolicy
+    {
+        DROP, // lose the new record; the frame loop never waits
+        WAIT // the logging thread waits for room; no record is lost
+    }
+
+    private static final int BATCH = 256; // maximum records written between flushes
+    private static final long IDLE_NANOS = 20_000_000L; // writer sleeps this long when there's nothing to write
+    private static final long WAIT_NANOS = 100_000L; // producer retry interval when waiting for room
+
+    private final Handler[] targets;
+    private final OverflowPolicy overflowPolicy;
+    private final int mask; // capacity - 1; capacity is a power of 2
+    private final AtomicReferenceArray<LogRecord> ring;
+    private final AtomicLong tail = new AtomicLong(); // next slot to reserve; advanced by the producers
+    private volatile long head = 0; // next slot to take; advanced only by the writer
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     AsyncLogHandler constructor                                 */
+/*                                     AsyncLogHandler constructor                                 */
+/*                                     AsyncLogHandler constructor                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param capacity maximum records waiting to be written; rounded up to a power of 2
+     * @param overflowPolicy what to do with a record when the buffer is full
+     * @param targets handlers that format and write the records; their levels and formatters apply
+     */
+    AsyncLogHandler(int capacity, OverflowPolicy overflowPolicy, Handler... targets)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.overflowPolicy = overflowPolicy;
+        this.targets = targets.clone();
+        setLevel(Level.ALL); // the targets decide
+
+        this.writer = new Thread(this::write, "log writer");
+        this.writer.setDaemon(true); // close() drains it at the exit
+        this.writer.start();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     publish                                                     */
+/*                                     publish                                                     */
+/*                                     publish                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * queue the record for the writer thread
+     * @param record
+     */
+    @Override
+    public void publish(LogRecord record)
+    {
+        if (this.closed || ! isLoggable(record))
+        {
+            return;
+        }
+
+        // the caller is found from the stack when it's first asked for so it must be asked on this thread
+        record.getSourceClassName();
+
+        long slot;
+        do
+        {
+            slot = this.tail.get();
+            while (slot - this.head > this.mask) // full
+            {
+                LockSupport.unpark(this.writer); // don't let it sleep out its idle time
+                if (this.overflowPolicy == OverflowPolicy.DROP || this.closed)
+                {
+                    this.dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(WAIT_NANOS);
+                slot = this.tail.get();
+            }
+        } while ( ! this.tail.compareAndSet(slot, slot + 1));
+
+        this.ring.set((int)slot & this.mask, record);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * writer thread; writes batches until closed and everything queued is written
+     */
+    private void write()
+    {
+        while (true)
+        {
+            boolean closing = this.closed; // read before draining so nothing queued before close is missed
+            int written = drain();
+
+            if (written == 0)
+            {
+                if (closing && this.head == this.tail.get())
+                {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     drain                                                       */
+/*                                     drain                                                       */
+/*                                     drain                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * write a batch of the records waiting and flush the targets
+     * @return number of records written
+     */
+    private int drain()
+    {
+        int written = 0;
+        long dropped = this.dropped.getAndSet(0);
+        if (dropped > 0)
+        {
+            LogRecord lost = new LogRecord(Level.WARNING, dropped + " log records dropped; the log queue was full");
+            lost.setSourceClassName(AsyncLogHandler.class.getName());
+            lost.setSourceMethodName("drain");
+            target(lost);
+            written++;
+        }
+
+        long head = this.head;
+        while (written < BATCH)
+        {
+            int index = (int)head & this.mask;
+            LogRecord record = this.ring.get(index);
+            if (record == null)
+            {
+                break; // empty or the slot is reserved but not yet filled
+            }
+            this.ring.set(index, null);
+            this.head = ++head; // frees the slot for the producers
+            target(record);
+            written++;
+        }
+
+        if (written > 0)
+        {
+            for (Handler target : this.targets)
+            {
+                target.flush();
+            }
+        }
+        return written;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     target                                                      */
+/*                                     target                                                      */
+/*                                     target                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void target(LogRecord record)
+    {
+        for (Handler target : this.targets)
+        {
+            try
+            {
+                target.publish(record);
+            }
+            catch (RuntimeException e)
+            {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     setTargetLevel                                              */
+/*                                     setTargetLevel                                              */
+/*                                     setTargetLevel                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param level minimum level for all the target handlers
+     */
+    void setTargetLevel(Level level)
+    {
+        for (Handler target : this.targets)
+        {
+            target.setLevel(level);
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     flush                                                       */
+/*                                     flush                                                       */
+/*                                     flush                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * wait for the records queued so far to be written
+     */
+    @Override
+    public void flush()
+    {
+        long queued = this.tail.get();
+        while (this.head < queued && this.writer.isAlive())
+        {
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * write everything queued and close the targets; later records are ignored
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+
+        LockSupport.unpark(this.writer);
+        try
+        {
+            this.writer.join(2000L); // don't hang the exit on a stuck terminal or disk
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Handler target : this.targets)
+        {
+            target.close();
+        }
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End AsyncLogHandler class                                   */
+/*                                     End AsyncLogHandler class                                   */
+/*                                     End AsyncLogHandler class                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
@@ -5,12 +5,18 @@
 // projects a 2D object (image) according to parameters - generate styled board image
 package Guidance;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
@@ -41,63 +47,120 @@ class BoardPreview {
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
 /**
+ * Project the board image through the pose and the lens distortion to the preview in one remap.
  *
+ * The perspective warp and the distortion remap (make_distort_map) are folded into one fixed point
+ * map - for each preview pixel the board image pixel. The map is kept for the pose so projecting the
+ * same pose again is only the remap.
  * @param img image to project
- * @param sz size of the final image
  * @param K
  * @param rvec
  * @param t
- * @param flags
- * @return
+ * @param flags interpolation
+ * @param slot which kept map - 0 board, 1 shadow
+ * @param imgProjected output projected image at the preview size
  */
-    private static Mat project_img(Mat img, Size sz, Mat K, Mat rvec, Mat t, int flags)
-    // force user to specify flags=cv2.INTER_LINEAR to use default
+    private void project_img(Mat img, Mat K, Mat rvec, Mat t, int flags, int slot, Mat imgProjected)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
-        LOGGER.finest("img " + img);
-        LOGGER.finest("sz " + sz);
-        LOGGER.finest("K " + K + "\n" + K.dump());
-        LOGGER.finest("rvec " + rvec + rvec.dump());
-        LOGGER.finest("t " + t + t.dump());
-        LOGGER.finest("flags " + flags);
+        LOGGER.finest(() -> "img " + img);
+        LOGGER.finest(() -> "K " + K + "\n" + K.dump());
+        LOGGER.finest(() -> "rvec " + rvec + rvec.dump());
+        LOGGER.finest(() -> "t " + t + t.dump());
+        LOGGER.finest(() -> "flags " + flags);
 
         // construct homography
-        Mat R = new Mat();
+        Mat R = this.R;
         Calib3d.Rodrigues(rvec, R);
 
-        LOGGER.finest("R " + R + "\n" + R.dump());
-        Mat transform = new Mat(3, 3, CvType.CV_64FC1); // rotation matrix R and a translation matrix T (t)
+        LOGGER.finest(() -> "R " + R + "\n" + R.dump());
+        Mat transform = this.transform; // rotation matrix R and a translation matrix T (t)
         transform.put(0, 0,
             R.get(0, 0)[0], R.get(0, 1)[0], R.get(0, 2)[0], // 1st row r,second row r, third row t
                 R.get(1, 0)[0], R.get(1, 1)[0], R.get(1, 2)[0],
                 t.get(0, 0)[0], t.get(0, 1)[0], t.get(0, 2)[0]);
         Core.transpose(transform, transform);
-        Mat H = new Mat();
-        Core.gemm(K, transform, 1., new Mat(), 0., H);
+        Mat H = this.H;
+        Core.gemm(K, transform, 1., this.noMat, 0., H);
         Core.divide(H, new Scalar(H.get(2, 2)[0]), H);
    
-        LOGGER.finest("transform " + transform + "\n" + transform.dump());
-        LOGGER.finest("R " + R + "\n" + R.dump());
-        LOGGER.finest("H " + H + "\n" + H.dump());
+        LOGGER.finest(() -> "transform " + transform + "\n" + transform.dump());
+        LOGGER.finest(() -> "R " + R + "\n" + R.dump());
+        LOGGER.finest(() -> "H " + H + "\n" + H.dump());
 
-        Mat imgProjected = new Mat();
+        // preview pixel -> undistorted preview pixel (maps) -> board image pixel (inverse homography)
+        double[] pose = {rvec.get(0, 0)[0], rvec.get(0, 1)[0], rvec.get(0, 2)[0], t.get(0, 0)[0], t.get(0, 1)[0], t.get(0, 2)[0], flags};
+        if ( ! Arrays.equals(pose, this.mapPose[slot]))
+        {
+            Core.perspectiveTransform(this.maps, this.sourceMap, H.inv());
+            Imgproc.convertMaps(this.sourceMap, this.noMat, this.fixedMap[slot], this.fixedInterpolation[slot],
+                CvType.CV_16SC2, flags == Imgproc.INTER_NEAREST);
+            this.mapPose[slot] = pose;
+        }
+
+        Imgproc.remap(img, imgProjected, this.fixedMap[slot],
+            flags == Imgproc.INTER_NEAREST ? this.noMat : this.fixedInterpolation[slot], flags);
+
+        draw_axes(imgProjected, K, rvec, t);
 
-        Imgproc.warpPerspective(img, imgProjected, H, sz, flags);
+        LOGGER.finest(() -> "returning imgProjected\n" + ArrayUtils.brief(imgProjected));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     draw_axes                                                   */
+/*                                     draw_axes                                                   */
+/*                                     draw_axes                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Draw axes on the projected Guidance Board.
+     * These were drawn on the vertically flipped undistorted preview to get the axes origin in the correct
+     * corner BUT the estimated origin is reversed from where it belongs, and then distorted with the board.
+     * Drawing before the projection doesn't work - tiny image in worse spot.
+     * Now that there is no undistorted preview the axes are put where that drawing and distortion put them.
+     * @param imgProjected projected board at the preview size
+     * @param K preview camera matrix
+     * @param rvec
+     * @param t
+     */
+    private void draw_axes(Mat imgProjected, Mat K, Mat rvec, Mat t)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        // draw axes on the warped Guidance Board
-        // these are drawn in the wrong corner and drawing before the warpPerspective doesn't work - tiny image in worse spot
-        // these axes diagram cover the desired posed (warped) Guidance Board before it is processed. Maybe draw them later and they are in a different position
-        Core.flip(imgProjected, imgProjected, 0); // flip to get axes origin in correct corner BUT the estimated origin is reversed from where it belongs
-        Calib3d.drawFrameAxes(imgProjected, K, new Mat(), R, t, 300.f); // may need rotation vector rvec instead of R
-        Core.flip(imgProjected, imgProjected, 0); // put the img back right
+        // axes in the undistorted preview
+        Calib3d.projectPoints(this.axes3d, rvec, t, K, this.noDistortion, this.axes2d);
+        float[] undistorted = new float[2*4];
+        this.axes2d.get(0, 0, undistorted);
 
-        transform.release();
-        R.release();
-        H.release();
+        // flipped then distorted the same as the remap by make_distort_map
+        double fx = K.get(0, 0)[0];
+        double fy = K.get(1, 1)[0];
+        double cx = K.get(0, 2)[0];
+        double cy = K.get(1, 2)[0];
+        float[] normalized = new float[3*4];
+        for (int i = 0; i < 4; i++)
+        {
+            normalized[3*i] = (float)((undistorted[2*i] - cx) / fx);
+            normalized[3*i + 1] = (float)((this.SIZE.height - 1. - undistorted[2*i + 1] - cy) / fy);
+            normalized[3*i + 2] = 1.f;
+        }
+        this.axesNormalized.put(0, 0, normalized);
+        Calib3d.projectPoints(this.axesNormalized, this.zeroVec, this.zeroVec, K, this.cdist, this.axes2d);
+        float[] distorted = new float[2*4];
+        this.axes2d.get(0, 0, distorted);
 
-        LOGGER.finest("returning imgProjected\n" + ArrayUtils.brief(imgProjected));
+        Point[] points = new Point[4];
+        for (int i = 0; i < 4; i++)
+        {
+            points[i] = new Point(distorted[2*i], distorted[2*i + 1]);
+        }
 
-        return imgProjected;
+        // same colors and thickness as Calib3d.drawFrameAxes
+        Imgproc.line(imgProjected, points[0], points[1], new Scalar(0, 0, 255), 3);
+        Imgproc.line(imgProjected, points[0], points[2], new Scalar(0, 255, 0), 3);
+        Imgproc.line(imgProjected, points[0], points[3], new Scalar(255, 0, 0), 3);
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -114,6 +177,26 @@ class BoardPreview {
     private Mat shadow; // used for overlap score
     private Mat maps; // 2D version used for remap function
     private Mat Knew = new Mat();
+    // reused for every projection so the per frame projection of the camera pose doesn't allocate
+    private final Mat R = new Mat();
+    private final Mat transform = new Mat(3, 3, CvType.CV_64FC1);
+    private final Mat H = new Mat();
+    private final Mat noMat = new Mat(); // empty Mat for unused arguments
+    private final Mat[] projected = {new Mat(), new Mat()}; // board, shadow; kept apart since their types differ
+    private final Mat sourceMap = new Mat(); // board image pixel for each preview pixel
+    // board, shadow; kept apart so the guidance board's map is kept while the shadow pose changes
+    private final Mat[] fixedMap = {new Mat(), new Mat()}; // sourceMap in fixed point for remap
+    private final Mat[] fixedInterpolation = {new Mat(), new Mat()};
+    private final double[][] mapPose = {null, null}; // rvec, tvec and interpolation of each fixedMap
+    private final MatOfPoint3f axes3d = new MatOfPoint3f(new Point3(0., 0., 0.), new Point3(300., 0., 0.), new Point3(0., 300., 0.), new Point3(0., 0., 300.));
+    private final MatOfPoint3f axesNormalized = new MatOfPoint3f(new Point3(), new Point3(), new Point3(), new Point3());
+    private final MatOfPoint2f axes2d = new MatOfPoint2f();
+    private final MatOfDouble noDistortion = new MatOfDouble();
+    // board outline projected the same way as the board image
+    private final MatOfDouble cdist = new MatOfDouble(); // distortion the maps were made with
+    private final MatOfPoint3f outline3d = new MatOfPoint3f();
+    private final MatOfPoint2f outline2d = new MatOfPoint2f();
+    private final Mat zeroVec = Mat.zeros(3, 1, CvType.CV_64FC1);
     BoardPreview(Mat img)
     {
         LOGGER.finer("Instantiating");
@@ -164,6 +247,19 @@ class BoardPreview {
         // used for overlap score
         this.shadow = Mat.ones(this.img.rows(), this.img.cols(), CvType.CV_8UC1);
     }
+
+    /**
+     * Another preview of the same board with its own camera model and projections. The board images
+     * are only read so they are shared instead of made again.
+     * @param other
+     */
+    BoardPreview(BoardPreview other)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.img = other.img;
+        this.shadow = other.shadow;
+    }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
 /*                                                                                                 */
@@ -176,12 +272,13 @@ class BoardPreview {
     void create_maps(Mat K, Mat cdist, Size sz)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
-        LOGGER.finest("camera matrix K " + K + "\n" + K.dump());
-        LOGGER.finest("cdist " + cdist.dump());
-        LOGGER.finest("sz " + sz);
+        LOGGER.finest(() -> "camera matrix K " + K + "\n" + K.dump());
+        LOGGER.finest(() -> "cdist " + cdist.dump());
+        LOGGER.finest(() -> "sz " + sz);
 
         // cdist initialized in its constructor instead of setting to 0 here if null; did 5 not 4 for consistency with rest of code
         this.sz = sz;
+        cdist.reshape(1, (int)cdist.total()).convertTo(this.cdist, CvType.CV_64FC1); // projectPoints needs a column of coefficients
         Mat scale = Mat.zeros(3, 3, K.type()); // assuming it's K.rows(), K.cols()
         scale.put(0, 0, this.SIZE.width/sz.width);
         scale.put(1, 1, this.SIZE.height/sz.height);
@@ -192,7 +289,9 @@ class BoardPreview {
         sz = this.SIZE;
         this.Knew = Calib3d.getOptimalNewCameraMatrix(Knew, cdist, sz, 1.); // .2% higher than older Python OpenCV for same input
 
-        this.maps = Distortion.make_distort_map(Knew, sz, cdist, this.Knew);
+        this.maps = DistortionMapCache.make_distort_map(Knew, sz, cdist, this.Knew);
+        this.mapPose[0] = null; // projection maps are for the old distortion
+        this.mapPose[1] = null;
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -206,31 +305,120 @@ class BoardPreview {
     Mat project(Mat r, Mat t, boolean useShadow, int inter)
     // force users to specify useShadow=false and inter=Imgproc.INTER_NEAREST instead of defaulting
     // no default allowed in Java and I don't feel like making a bunch of overloaded methods for this conversion
+    {
+        Mat img = new Mat();
+        project(r, t, useShadow, inter, img);
+        return img;
+    }
+    /**
+     * Same as project(r, t, useShadow, inter) but into the caller's Mat. Repeated projections into
+     * the same Mat (or a pooled Mat of the camera image size and board type) don't allocate.
+     * @param r
+     * @param t
+     * @param useShadow
+     * @param inter
+     * @param img output projected board at the camera image size
+     */
+    void project(Mat r, Mat t, boolean useShadow, int inter, Mat img)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
-        LOGGER.finest("r " + r.dump());
-        LOGGER.finest("t " + t.dump());
-        LOGGER.finest("useShadow " + useShadow);
-        LOGGER.finest("inter " + inter);
-        LOGGER.finest("sz " + this.sz);
+        LOGGER.finest(() -> "r " + r.dump());
+        LOGGER.finest(() -> "t " + t.dump());
+        LOGGER.finest(() -> "useShadow " + useShadow);
+        LOGGER.finest(() -> "inter " + inter);
+        LOGGER.finest(() -> "sz " + this.sz);
 
-        Mat img = new Mat();
+        Mat imgProjected = this.projected[useShadow ? 1 : 0];
 
-        img = project_img(useShadow ? this.shadow : this.img, this.SIZE, this.Knew, r, t, Imgproc.INTER_LINEAR);
+        // the board is sampled bilinearly as warpPerspective did it before the warp and the distortion
+        // were one remap; inter is only for the resize to the camera image size
+        project_img(useShadow ? this.shadow : this.img, this.Knew, r, t, Imgproc.INTER_LINEAR, useShadow ? 1 : 0, imgProjected);
+        LOGGER.finest(() -> "img after remap " + imgProjected + "\n" + ArrayUtils.brief(imgProjected));
 
-        LOGGER.finest("maps " + this.maps + "\n" + ArrayUtils.brief(maps));
-        // Can be one map for XY or two maps X and Y. python had 2 and this has 1
-        // Imgproc.remap(img, img, maps[0]/*X*/, maps[1]/*Y*/, inter);// maybe X Mat and Y Mat somehow; separate channels?
+        // maps (2, 480, 640)
+        Imgproc.resize(imgProjected, img, this.sz, 0, 0, inter);
 
-        Imgproc.remap(img, img, this.maps, new Mat(), inter);// 1st arg can be XY with no 2nd arg (original has separate X and Y arguments)
-        LOGGER.finest("img after remap " + img + "\n" + ArrayUtils.brief(img));
+        LOGGER.finest(() -> "returning img after resize " + img + "\n" + ArrayUtils.brief(img));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     outline                                                     */
+/*                                     outline                                                     */
+/*                                     outline                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * The outline of the board that project(r, t, ...) would draw, as a polygon in camera image
+     * pixels. Each side of the board is sampled so the polygon follows the bowing of the distortion.
+     *
+     * Same homography as project_img then distorted as the remap by make_distort_map does and
+     * scaled as the final resize.
+     * @param r
+     * @param t
+     * @param samplesPerSide vertices along each side of the board
+     * @param xy output polygon x, y pairs; at least 8*samplesPerSide long
+     * @return number of vertices; 0 if the board can't be outlined (maps not made or board behind the camera)
+     */
+    int outline(Mat r, Mat t, int samplesPerSide, double[] xy)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        // maps (2, 480, 640)
-        Imgproc.resize(img, img, this.sz, 0, 0, inter);
+        if (this.maps == null)
+        {
+            return 0;
+        }
 
-        LOGGER.finest("returning img after resize " + img + "\n" + ArrayUtils.brief(img));
+        // same homography columns as project_img; its normalization by H(2,2) doesn't change the projection
+        Calib3d.Rodrigues(r, this.R);
+        double[] rotation = new double[9];
+        this.R.get(0, 0, rotation);
+        double[] translation = {t.get(0, 0)[0], t.get(0, 1)[0], t.get(0, 2)[0]};
 
-        return img;
+        // board image pixel edges; pixel centers are at the integer coordinates
+        double left = -0.5;
+        double top = -0.5;
+        double right = this.img.cols() - 0.5;
+        double bottom = this.img.rows() - 0.5;
+
+        int n = 4*samplesPerSide;
+        float[] points = new float[3*n];
+        for (int i = 0; i < n; i++)
+        {
+            // around the board: top, right, bottom then left side
+            int side = i / samplesPerSide;
+            double f = (double)(i % samplesPerSide) / samplesPerSide;
+            double x = side == 0 ? left + f*(right - left) : side == 1 ? right : side == 2 ? right - f*(right - left) : left;
+            double y = side == 0 ? top : side == 1 ? top + f*(bottom - top) : side == 2 ? bottom : bottom - f*(bottom - top);
+
+            double cx = x*rotation[0] + y*rotation[3] + translation[0];
+            double cy = x*rotation[1] + y*rotation[4] + translation[1];
+            double cz = x*rotation[2] + y*rotation[5] + translation[2];
+            if (cz <= 0.)
+            {
+                return 0; // the board warp is not a simple projection
+            }
+            points[3*i] = (float)cx;
+            points[3*i + 1] = (float)cy;
+            points[3*i + 2] = (float)cz;
+        }
+
+        this.outline3d.create(n, 1, CvType.CV_32FC3);
+        this.outline3d.put(0, 0, points);
+        Calib3d.projectPoints(this.outline3d, this.zeroVec, this.zeroVec, this.Knew, this.cdist, this.outline2d);
+
+        // the resize from the preview SIZE to the camera image
+        double scaleX = this.sz.width / this.SIZE.width;
+        double scaleY = this.sz.height / this.SIZE.height;
+        float[] distorted = new float[2*n];
+        this.outline2d.get(0, 0, distorted);
+        for (int i = 0; i < n; i++)
+        {
+            xy[2*i] = (distorted[2*i] + 0.5)*scaleX - 0.5;
+            xy[2*i + 1] = (distorted[2*i + 1] + 0.5)*scaleY - 0.5;
+        }
+        return n;
     }
 }
 /*-------------------------------------------------------------------------------------------------*/
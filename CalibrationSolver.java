@@ -0,0 +1,1157 @@
+/*-------------------------------------------------------------------------------------------------*/
+package Guidance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     CalibrationSolver class                                     */
+/*                                     CalibrationSolver class                                     */
+/*                                     CalibrationSolver class                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Camera calibration by Levenberg-Marquardt bundle adjustment of the pinhole and Brown-Conrady
+ * (k1, k2, p1, p2, k3) model - the same model, flags and error measures as OpenCV calibrateCamera.
+ *
+ * The unknowns are the 9 intrinsics and a rotation and translation of each keyframe. A keyframe's
+ * points depend only on the intrinsics and its own pose so the normal equations are block sparse;
+ * the pose blocks are eliminated (Schur complement) leaving a 9x9 system for the intrinsics and
+ * then each pose is solved from its own 6x6 block. The inverse of the undamped Schur complement is
+ * exactly the intrinsics block of the inverse of the full normal matrix so the intrinsics
+ * covariance is the whole 9x9 matrix and not just the standard deviations OpenCV returns.
+ *
+ * Unlike OpenCV the poses can be started from a previous solution. A capture adds one keyframe to
+ * the previous calibration so all but that one start next to their answer.
+ *
+ * Rotations are kept as matrices and updated by a small rotation on the left so the Jacobian of a
+ * rotation is a cross product instead of the derivative of the Rodrigues formula.
+ *
+ * Buffers are reused and grown as needed so not thread safe - one instance per calibrating thread.
+ */
+class CalibrationSolver
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    static final int NINTR = 9; // fx, fy, cx, cy, k1, k2, p1, p2, k3 - the order of Calibrator intrinsics
+    private static final int FX = 0, FY = 1, CX = 2, CY = 3, K1 = 4, K2 = 5, P1 = 6, P2 = 7, K3 = 8;
+    private static final int NEXTR = 6; // rotation x, y, z and translation x, y, z of a keyframe
+
+    // observations
+    private int nViews;
+    private int nPoints;
+    private int[] viewStart = new int[16 + 1]; // first point of each keyframe; viewStart[nViews] = nPoints
+    private double[] object = new double[3*1024]; // X, Y, Z
+    private double[] image = new double[2*1024]; // u, v
+    private float[] floats = new float[3*256]; // Mat transfer
+
+    // state and the trial state of a step
+    private double[] intr = new double[NINTR];
+    private double[] intrTrial = new double[NINTR];
+    private double[] rot = new double[9*16]; // rotation matrix of each keyframe row major
+    private double[] rotTrial = new double[9*16];
+    private double[] trans = new double[3*16];
+    private double[] transTrial = new double[3*16];
+
+    private final boolean[] free = new boolean[NINTR];
+    private int nFree;
+    private double aspectRatio; // fx/fy if CALIB_FIX_ASPECT_RATIO
+
+    // normal equations J'J and J'r
+    private final double[] U = new double[NINTR*NINTR]; // intrinsics block
+    private final double[] gI = new double[NINTR];
+    private double[] V = new double[NEXTR*NEXTR*16]; // pose blocks
+    private double[] W = new double[NINTR*NEXTR*16]; // intrinsics by pose blocks
+    private double[] gV = new double[NEXTR*16];
+    private double[] L = new double[NEXTR*NEXTR*16]; // Cholesky factors of the damped pose blocks
+
+    // step
+    private final double[] S = new double[NINTR*NINTR]; // Schur complement
+    private final double[] b = new double[NINTR];
+    private final double[] dI = new double[NINTR];
+    private double[] dV = new double[NEXTR*16];
+
+    // scratch
+    private final double[] VinvWt = new double[NEXTR*NINTR];
+    private final double[] y = new double[NEXTR];
+    private final double[] dR = new double[9];
+    private final double[] R = new double[9];
+
+    // projection of a point and its Jacobians, rows u and v
+    private double u, v;
+    private final double[] jI = new double[2*NINTR];
+    private final double[] jV = new double[2*NEXTR];
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     calibrate                                                   */
+/*                                     calibrate                                                   */
+/*                                     calibrate                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Calibrate the camera the same as Calib3d.calibrateCameraExtended with the flags
+     * CALIB_USE_INTRINSIC_GUESS, CALIB_FIX_ASPECT_RATIO, CALIB_FIX_PRINCIPAL_POINT,
+     * CALIB_FIX_FOCAL_LENGTH, CALIB_ZERO_TANGENT_DIST and CALIB_FIX_K1 to K3; others are ignored.
+     * @param keyframes object and image points of each keyframe
+     * @param img_size image size for the initial camera matrix
+     * @param K in/out; initial camera matrix if CALIB_USE_INTRINSIC_GUESS; aspect ratio if CALIB_FIX_ASPECT_RATIO
+     * @param cdist in/out; initial distortion coefficients if CALIB_USE_INTRINSIC_GUESS; 1x5 out
+     * @param rvecs in/out; with CALIB_USE_INTRINSIC_GUESS a keyframe's initial rotation if the list has
+     *   a Mat for it, otherwise (and always without the guess) the pose is started by solvePnP
+     * @param tvecs in/out; initial translations the same as rvecs
+     * @param covariance out; 9x9 covariance of the intrinsics, 0 for fixed ones
+     * @param flags
+     * @param criteria
+     * @return RMS reprojection error
+     */
+    double calibrate(List<keyframe> keyframes, Size img_size, Mat K, Mat cdist, List<Mat> rvecs, List<Mat> tvecs,
+      Mat covariance, int flags, TermCriteria criteria)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        load(keyframes);
+        init_intrinsics(keyframes, img_size, K, cdist, flags);
+        boolean guess = (flags & Calib3d.CALIB_USE_INTRINSIC_GUESS) != 0;
+        for (int view = 0; view < this.nViews; view++)
+        {
+          boolean poseGuess = guess && view < rvecs.size() && rvecs.get(view) != null && ! rvecs.get(view).empty()
+            && view < tvecs.size() && tvecs.get(view) != null && ! tvecs.get(view).empty();
+          init_pose(keyframes.get(view), view, poseGuess ? rvecs.get(view) : null, poseGuess ? tvecs.get(view) : null);
+        }
+
+        int maxCount = (criteria.type & TermCriteria.COUNT) != 0 ? Math.max(criteria.maxCount, 1) : 30;
+        double epsilon = (criteria.type & TermCriteria.EPS) != 0 ? criteria.epsilon : Cfg.DBL_EPSILON;
+
+        double err = normal_equations();
+        double lambda = 1.e-3;
+        int iter = 0;
+        while (iter < maxCount)
+        {
+          iter++;
+          boolean accepted = false;
+          while (lambda <= 1.e16)
+          {
+            if (schur(lambda) && step())
+            {
+              double errTrial = cost(this.intrTrial, this.rotTrial, this.transTrial);
+              if (errTrial <= err)
+              {
+                double[] swap;
+                swap = this.intr; this.intr = this.intrTrial; this.intrTrial = swap;
+                swap = this.rot; this.rot = this.rotTrial; this.rotTrial = swap;
+                swap = this.trans; this.trans = this.transTrial; this.transTrial = swap;
+                lambda = Math.max(lambda/10., 1.e-16);
+                accepted = true;
+                break;
+              }
+            }
+            lambda *= 10.;
+          }
+          if ( ! accepted)
+          {
+            break; // no step makes it better
+          }
+          double change = relative_change();
+          err = normal_equations(); // at the new state for the next step and the covariance
+          if (change <= epsilon)
+          {
+            break;
+          }
+        }
+        if (LOGGER.isLoggable(Level.FINER))
+        {
+            LOGGER.finer("iterations " + iter + ", lambda " + lambda);
+        }
+
+        // output in the OpenCV forms
+        K.create(3, 3, CvType.CV_64FC1);
+        K.put(0, 0, this.intr[FX], 0., this.intr[CX], 0., this.intr[FY], this.intr[CY], 0., 0., 1.);
+        cdist.create(1, 5, CvType.CV_64FC1);
+        cdist.put(0, 0, this.intr[K1], this.intr[K2], this.intr[P1], this.intr[P2], this.intr[K3]);
+
+        rvecs.clear();
+        tvecs.clear();
+        Mat Rmat = new Mat(3, 3, CvType.CV_64FC1);
+        for (int view = 0; view < this.nViews; view++)
+        {
+          Rmat.put(0, 0, java.util.Arrays.copyOfRange(this.rot, 9*view, 9*view + 9));
+          Mat rvec = new Mat();
+          Calib3d.Rodrigues(Rmat, rvec);
+          rvecs.add(rvec);
+          Mat tvec = new Mat(3, 1, CvType.CV_64FC1);
+          tvec.put(0, 0, this.trans[3*view], this.trans[3*view + 1], this.trans[3*view + 2]);
+          tvecs.add(tvec);
+        }
+        Rmat.release();
+
+        covariance.create(NINTR, NINTR, CvType.CV_64FC1);
+        covariance.put(0, 0, covariance(err));
+
+        return Math.sqrt(err/this.nPoints);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     view_information                                            */
+/*                                     view_information                                            */
+/*                                     view_information                                            */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Information about the intrinsics that a keyframe at a pose would add - the Schur complement
+     * of its pose in its J'J. Only the points that project into the image count. All 9 intrinsics
+     * are free.
+     * @param intrinsics fx, fy, cx, cy, k1, k2, p1, p2, k3
+     * @param rvec pose rotation
+     * @param tvec pose translation
+     * @param object X, Y, Z of the points
+     * @param n number of points
+     * @param img_size image size
+     * @param info out; 9x9 row major, in units of the variance of the reprojection errors
+     * @return number of points in the image
+     */
+    int view_information(double[] intrinsics, double[] rvec, double[] tvec, double[] object, int n, Size img_size, double[] info)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        System.arraycopy(intrinsics, 0, this.intr, 0, NINTR);
+        java.util.Arrays.fill(this.free, true);
+        this.nFree = NINTR;
+        this.aspectRatio = 0.;
+        rodrigues(rvec[0], rvec[1], rvec[2], this.rot);
+        System.arraycopy(tvec, 0, this.trans, 0, 3);
+        if (this.object.length < 3*n)
+        {
+          this.object = new double[3*2*n];
+          this.image = new double[2*2*n];
+        }
+
+        // keep the points in front of the camera and in the image; they are observed where they project
+        int visible = 0;
+        for (int i = 0; i < n; i++)
+        {
+          System.arraycopy(object, 3*i, this.object, 3*visible, 3);
+          double z = this.rot[6]*object[3*i] + this.rot[7]*object[3*i + 1] + this.rot[8]*object[3*i + 2] + this.trans[2];
+          if (z <= 0.)
+          {
+            continue;
+          }
+          project(this.intr, this.rot, this.trans, 0, visible, false);
+          if (this.u >= 0. && this.u < img_size.width && this.v >= 0. && this.v < img_size.height)
+          {
+            this.image[2*visible] = this.u;
+            this.image[2*visible + 1] = this.v;
+            visible++;
+          }
+        }
+        this.nViews = 1;
+        this.nPoints = visible;
+        this.viewStart[0] = 0;
+        this.viewStart[1] = visible;
+
+        java.util.Arrays.fill(info, 0, NINTR*NINTR, 0.);
+        if (visible < NEXTR)
+        {
+          return visible;
+        }
+        normal_equations();
+        if (schur(0.))
+        {
+          System.arraycopy(this.S, 0, info, 0, NINTR*NINTR);
+        }
+        return visible;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     load                                                        */
+/*                                     load                                                        */
+/*                                     load                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Copy the keyframes' points to the primitive buffers
+     * @param keyframes
+     */
+    private void load(List<keyframe> keyframes)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        this.nViews = keyframes.size();
+        int total = 0;
+        for (keyframe keyframe : keyframes)
+        {
+          total += keyframe.p2d().rows();
+        }
+        this.nPoints = total;
+
+        if (this.viewStart.length < this.nViews + 1)
+        {
+          int n = 2*this.nViews;
+          this.viewStart = new int[n + 1];
+          this.rot = new double[9*n];
+          this.rotTrial = new double[9*n];
+          this.trans = new double[3*n];
+          this.transTrial = new double[3*n];
+          this.V = new double[NEXTR*NEXTR*n];
+          this.W = new double[NINTR*NEXTR*n];
+          this.gV = new double[NEXTR*n];
+          this.L = new double[NEXTR*NEXTR*n];
+          this.dV = new double[NEXTR*n];
+        }
+        if (this.image.length < 2*total)
+        {
+          this.object = new double[3*2*total];
+          this.image = new double[2*2*total];
+        }
+
+        int start = 0;
+        for (int view = 0; view < this.nViews; view++)
+        {
+          this.viewStart[view] = start;
+          Mat p3d = keyframes.get(view).p3d(); // CV_32FC3
+          Mat p2d = keyframes.get(view).p2d(); // CV_32FC2
+          int n = p2d.rows();
+          if (this.floats.length < 3*n)
+          {
+            this.floats = new float[3*2*n];
+          }
+          p3d.get(0, 0, this.floats);
+          for (int i = 0; i < 3*n; i++)
+          {
+            this.object[3*start + i] = this.floats[i];
+          }
+          p2d.get(0, 0, this.floats);
+          for (int i = 0; i < 2*n; i++)
+          {
+            this.image[2*start + i] = this.floats[i];
+          }
+          start += n;
+        }
+        this.viewStart[this.nViews] = start;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     init_intrinsics                                             */
+/*                                     init_intrinsics                                             */
+/*                                     init_intrinsics                                             */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Starting intrinsics and which are free, as OpenCV does it
+     * @param keyframes
+     * @param img_size
+     * @param K
+     * @param cdist
+     * @param flags
+     */
+    private void init_intrinsics(List<keyframe> keyframes, Size img_size, Mat K, Mat cdist, int flags)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        double[] k = new double[9];
+        K.get(0, 0, k);
+
+        java.util.Arrays.fill(this.intr, 0.);
+        if ( ! cdist.empty())
+        {
+          double[] d = new double[(int)cdist.total()];
+          cdist.get(0, 0, d);
+          for (int i = 0; i < Math.min(d.length, 5); i++)
+          {
+            this.intr[K1 + i] = d[i];
+          }
+        }
+
+        if ((flags & Calib3d.CALIB_FIX_ASPECT_RATIO) != 0)
+        {
+          this.aspectRatio = k[0]/k[4];
+          if ( ! (this.aspectRatio > 0.) || Double.isInfinite(this.aspectRatio))
+          {
+            LOGGER.warning("bad aspect ratio " + this.aspectRatio + "; using 1");
+            this.aspectRatio = 1.;
+          }
+        }
+
+        if ((flags & Calib3d.CALIB_USE_INTRINSIC_GUESS) != 0)
+        {
+          this.intr[FX] = k[0];
+          this.intr[FY] = k[4];
+          this.intr[CX] = k[2];
+          this.intr[CY] = k[5];
+        }
+        else
+        {
+          // principal point at the center and the focal length from the homographies of the keyframes
+          List<MatOfPoint3f> objectPoints = new ArrayList<>(keyframes.size());
+          List<MatOfPoint2f> imagePoints = new ArrayList<>(keyframes.size());
+          for (keyframe keyframe : keyframes)
+          {
+            objectPoints.add(new MatOfPoint3f(keyframe.p3d()));
+            imagePoints.add(new MatOfPoint2f(keyframe.p2d()));
+          }
+          Mat K0 = Calib3d.initCameraMatrix2D(objectPoints, imagePoints, img_size, 0.);
+          K0.get(0, 0, k);
+          K0.release();
+          this.intr[FX] = k[0];
+          this.intr[FY] = k[4];
+          this.intr[CX] = k[2];
+          this.intr[CY] = k[5];
+          this.intr[K1] = this.intr[K2] = this.intr[P1] = this.intr[P2] = this.intr[K3] = 0.;
+        }
+
+        java.util.Arrays.fill(this.free, true);
+        if ((flags & Calib3d.CALIB_FIX_ASPECT_RATIO) != 0)
+        {
+          this.intr[FX] = this.intr[FY]*this.aspectRatio;
+          this.free[FX] = false; // follows fy
+        }
+        if ((flags & Calib3d.CALIB_FIX_FOCAL_LENGTH) != 0)
+        {
+          this.free[FX] = this.free[FY] = false;
+        }
+        if ((flags & Calib3d.CALIB_FIX_PRINCIPAL_POINT) != 0)
+        {
+          this.free[CX] = this.free[CY] = false;
+        }
+        if ((flags & Calib3d.CALIB_ZERO_TANGENT_DIST) != 0)
+        {
+          this.intr[P1] = this.intr[P2] = 0.;
+          this.free[P1] = this.free[P2] = false;
+        }
+        if ((flags & Calib3d.CALIB_FIX_K1) != 0)
+        {
+          this.free[K1] = false;
+        }
+        if ((flags & Calib3d.CALIB_FIX_K2) != 0)
+        {
+          this.free[K2] = false;
+        }
+        if ((flags & Calib3d.CALIB_FIX_K3) != 0)
+        {
+          this.free[K3] = false;
+        }
+
+        this.nFree = 0;
+        for (boolean f : this.free)
+        {
+          this.nFree += f ? 1 : 0;
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     init_pose                                                   */
+/*                                     init_pose                                                   */
+/*                                     init_pose                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Starting pose of a keyframe - the given one or solvePnP with the starting intrinsics
+     * @param keyframe
+     * @param view index of the keyframe
+     * @param rvec initial rotation or null
+     * @param tvec initial translation or null
+     */
+    private void init_pose(keyframe keyframe, int view, Mat rvec, Mat tvec)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        Mat r = new Mat();
+        Mat t = new Mat();
+        if (rvec != null)
+        {
+          rvec.convertTo(r, CvType.CV_64F);
+          tvec.convertTo(t, CvType.CV_64F);
+        }
+        else
+        {
+          Mat K = new Mat(3, 3, CvType.CV_64FC1);
+          K.put(0, 0, this.intr[FX], 0., this.intr[CX], 0., this.intr[FY], this.intr[CY], 0., 0., 1.);
+          MatOfDouble dist = new MatOfDouble(this.intr[K1], this.intr[K2], this.intr[P1], this.intr[P2], this.intr[K3]);
+          Calib3d.solvePnP(new MatOfPoint3f(keyframe.p3d()), new MatOfPoint2f(keyframe.p2d()), K, dist, r, t);
+          K.release();
+          dist.release();
+        }
+
+        Mat Rmat = new Mat();
+        Calib3d.Rodrigues(r, Rmat);
+        Rmat.get(0, 0, this.R);
+        System.arraycopy(this.R, 0, this.rot, 9*view, 9);
+        double[] tv = new double[3];
+        t.get(0, 0, tv);
+        System.arraycopy(tv, 0, this.trans, 3*view, 3);
+        Rmat.release();
+        r.release();
+        t.release();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     project                                                     */
+/*                                     project                                                     */
+/*                                     project                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Project a point of a keyframe; sets u, v and if asked the Jacobians jI and jV
+     * @param intr intrinsics
+     * @param rot rotations
+     * @param trans translations
+     * @param view keyframe of the point
+     * @param point index of the point in all points
+     * @param jacobian compute the Jacobians
+     */
+    private void project(double[] intr, double[] rot, double[] trans, int view, int point, boolean jacobian)
+    {
+        int r = 9*view, t = 3*view, o = 3*point;
+        double X = this.object[o], Y = this.object[o + 1], Z = this.object[o + 2];
+        // rotated point; the translation is added after so the rotation Jacobian can use it
+        double a = rot[r    ]*X + rot[r + 1]*Y + rot[r + 2]*Z;
+        double bb = rot[r + 3]*X + rot[r + 4]*Y + rot[r + 5]*Z;
+        double c = rot[r + 6]*X + rot[r + 7]*Y + rot[r + 8]*Z;
+        double xc = a + trans[t], yc = bb + trans[t + 1], zc = c + trans[t + 2];
+
+        double iz = 1./zc;
+        double x = xc*iz, y = yc*iz;
+        double x2 = x*x, y2 = y*y, xy = x*y;
+        double r2 = x2 + y2, r4 = r2*r2, r6 = r4*r2;
+        double fx = intr[FX], fy = intr[FY];
+        double k1 = intr[K1], k2 = intr[K2], p1 = intr[P1], p2 = intr[P2], k3 = intr[K3];
+        double radial = 1. + k1*r2 + k2*r4 + k3*r6;
+        double xd = x*radial + 2.*p1*xy + p2*(r2 + 2.*x2);
+        double yd = y*radial + p1*(r2 + 2.*y2) + 2.*p2*xy;
+        this.u = fx*xd + intr[CX];
+        this.v = fy*yd + intr[CY];
+
+        if ( ! jacobian)
+        {
+          return;
+        }
+
+        // intrinsics; row u then row v
+        double[] J = this.jI;
+        J[FX] = xd;           J[NINTR + FX] = 0.;
+        J[FY] = 0.;           J[NINTR + FY] = yd;
+        J[CX] = 1.;           J[NINTR + CX] = 0.;
+        J[CY] = 0.;           J[NINTR + CY] = 1.;
+        J[K1] = fx*x*r2;      J[NINTR + K1] = fy*y*r2;
+        J[K2] = fx*x*r4;      J[NINTR + K2] = fy*y*r4;
+        J[P1] = fx*2.*xy;     J[NINTR + P1] = fy*(r2 + 2.*y2);
+        J[P2] = fx*(r2 + 2.*x2); J[NINTR + P2] = fy*2.*xy;
+        J[K3] = fx*x*r6;      J[NINTR + K3] = fy*y*r6;
+        if ( ! this.free[FX] && this.free[FY] && this.aspectRatio > 0.)
+        {
+          J[FY] = this.aspectRatio*xd; // fx = aspect ratio * fy
+        }
+        for (int i = 0; i < NINTR; i++)
+        {
+          if ( ! this.free[i])
+          {
+            J[i] = J[NINTR + i] = 0.;
+          }
+        }
+
+        // pose; derivatives of u and v by the camera coordinates then by the rotation and translation
+        double D = k1 + 2.*k2*r2 + 3.*k3*r4;
+        double dxd_dx = radial + 2.*x2*D + 2.*p1*y + 6.*p2*x;
+        double dxd_dy = 2.*xy*D + 2.*p1*x + 2.*p2*y;
+        double dyd_dy = radial + 2.*y2*D + 6.*p1*y + 2.*p2*x;
+        double du_dx = fx*dxd_dx, du_dy = fx*dxd_dy;
+        double dv_dx = fy*dxd_dy, dv_dy = fy*dyd_dy;
+        double gux = du_dx*iz, guy = du_dy*iz, guz = -(du_dx*x + du_dy*y)*iz;
+        double gvx = dv_dx*iz, gvy = dv_dy*iz, gvz = -(dv_dx*x + dv_dy*y)*iz;
+        // a small rotation w on the left moves the point by w x (a, bb, c) so the derivative is (a, bb, c) x g
+        double[] P = this.jV;
+        P[0] = bb*guz - c*guy;  P[1] = c*gux - a*guz;  P[2] = a*guy - bb*gux;
+        P[3] = gux;             P[4] = guy;            P[5] = guz;
+        P[6] = bb*gvz - c*gvy;  P[7] = c*gvx - a*gvz;  P[8] = a*gvy - bb*gvx;
+        P[9] = gvx;             P[10] = gvy;           P[11] = gvz;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     cost                                                        */
+/*                                     cost                                                        */
+/*                                     cost                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Sum of squared reprojection errors
+     * @param intr
+     * @param rot
+     * @param trans
+     * @return
+     */
+    private double cost(double[] intr, double[] rot, double[] trans)
+    {
+        double err = 0.;
+        for (int view = 0; view < this.nViews; view++)
+        {
+          for (int point = this.viewStart[view]; point < this.viewStart[view + 1]; point++)
+          {
+            project(intr, rot, trans, view, point, false);
+            double ru = this.image[2*point] - this.u;
+            double rv = this.image[2*point + 1] - this.v;
+            err += ru*ru + rv*rv;
+          }
+        }
+        return err;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     normal_equations                                            */
+/*                                     normal_equations                                            */
+/*                                     normal_equations                                            */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * J'J and J'r at the current state in the blocks U, V, W and gI, gV
+     * @return sum of squared reprojection errors
+     */
+    private double normal_equations()
+    {
+        java.util.Arrays.fill(this.U, 0.);
+        java.util.Arrays.fill(this.gI, 0.);
+        java.util.Arrays.fill(this.V, 0, NEXTR*NEXTR*this.nViews, 0.);
+        java.util.Arrays.fill(this.W, 0, NINTR*NEXTR*this.nViews, 0.);
+        java.util.Arrays.fill(this.gV, 0, NEXTR*this.nViews, 0.);
+
+        double[] J = this.jI, P = this.jV;
+        double err = 0.;
+        for (int view = 0; view < this.nViews; view++)
+        {
+          int v0 = NEXTR*NEXTR*view, w0 = NINTR*NEXTR*view, g0 = NEXTR*view;
+          for (int point = this.viewStart[view]; point < this.viewStart[view + 1]; point++)
+          {
+            project(this.intr, this.rot, this.trans, view, point, true);
+            double ru = this.image[2*point] - this.u;
+            double rv = this.image[2*point + 1] - this.v;
+            err += ru*ru + rv*rv;
+
+            for (int i = 0; i < NINTR; i++)
+            {
+              double ju = J[i], jv = J[NINTR + i];
+              if (ju == 0. && jv == 0.)
+              {
+                continue; // fixed
+              }
+              this.gI[i] += ju*ru + jv*rv;
+              for (int k = i; k < NINTR; k++)
+              {
+                this.U[NINTR*i + k] += ju*J[k] + jv*J[NINTR + k];
+              }
+              for (int k = 0; k < NEXTR; k++)
+              {
+                this.W[w0 + NEXTR*i + k] += ju*P[k] + jv*P[NEXTR + k];
+              }
+            }
+            for (int i = 0; i < NEXTR; i++)
+            {
+              double pu = P[i], pv = P[NEXTR + i];
+              this.gV[g0 + i] += pu*ru + pv*rv;
+              for (int k = i; k < NEXTR; k++)
+              {
+                this.V[v0 + NEXTR*i + k] += pu*P[k] + pv*P[NEXTR + k];
+              }
+            }
+          }
+          // lower triangles
+          for (int i = 0; i < NEXTR; i++)
+          {
+            for (int k = 0; k < i; k++)
+            {
+              this.V[v0 + NEXTR*i + k] = this.V[v0 + NEXTR*k + i];
+            }
+          }
+        }
+        for (int i = 0; i < NINTR; i++)
+        {
+          for (int k = 0; k < i; k++)
+          {
+            this.U[NINTR*i + k] = this.U[NINTR*k + i];
+          }
+        }
+        return err;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     schur                                                       */
+/*                                     schur                                                       */
+/*                                     schur                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Eliminate the poses from the damped normal equations; S and b are the intrinsics system and L
+     * the Cholesky factors of the damped pose blocks
+     * @param lambda Marquardt damping; the diagonal is multiplied by 1 + lambda
+     * @return false if a block is not positive definite
+     */
+    private boolean schur(double lambda)
+    {
+        double damp = 1. + lambda;
+        System.arraycopy(this.U, 0, this.S, 0, NINTR*NINTR);
+        System.arraycopy(this.gI, 0, this.b, 0, NINTR);
+        for (int i = 0; i < NINTR; i++)
+        {
+          this.S[NINTR*i + i] = this.free[i] ? this.S[NINTR*i + i]*damp : 1.; // fixed ones solve to 0
+        }
+
+        for (int view = 0; view < this.nViews; view++)
+        {
+          int v0 = NEXTR*NEXTR*view, w0 = NINTR*NEXTR*view, g0 = NEXTR*view;
+          System.arraycopy(this.V, v0, this.L, v0, NEXTR*NEXTR);
+          for (int i = 0; i < NEXTR; i++)
+          {
+            this.L[v0 + NEXTR*i + i] *= damp;
+          }
+          if ( ! cholesky(this.L, v0, NEXTR))
+          {
+            return false;
+          }
+          // V^-1 W' one intrinsic at a time
+          for (int i = 0; i < NINTR; i++)
+          {
+            System.arraycopy(this.W, w0 + NEXTR*i, this.y, 0, NEXTR);
+            cholesky_solve(this.L, v0, NEXTR, this.y);
+            for (int k = 0; k < NEXTR; k++)
+            {
+              this.VinvWt[NINTR*k + i] = this.y[k];
+            }
+          }
+          // S -= W V^-1 W'
+          for (int i = 0; i < NINTR; i++)
+          {
+            for (int j = i; j < NINTR; j++)
+            {
+              double s = 0.;
+              for (int k = 0; k < NEXTR; k++)
+              {
+                s += this.W[w0 + NEXTR*i + k]*this.VinvWt[NINTR*k + j];
+              }
+              this.S[NINTR*i + j] -= s;
+              if (j != i)
+              {
+                this.S[NINTR*j + i] -= s;
+              }
+            }
+          }
+          // b -= W V^-1 gV
+          System.arraycopy(this.gV, g0, this.y, 0, NEXTR);
+          cholesky_solve(this.L, v0, NEXTR, this.y);
+          for (int i = 0; i < NINTR; i++)
+          {
+            double s = 0.;
+            for (int k = 0; k < NEXTR; k++)
+            {
+              s += this.W[w0 + NEXTR*i + k]*this.y[k];
+            }
+            this.b[i] -= s;
+          }
+        }
+        for (int i = 0; i < NINTR; i++)
+        {
+          if ( ! this.free[i])
+          {
+            this.b[i] = 0.;
+          }
+        }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     step                                                        */
+/*                                     step                                                        */
+/*                                     step                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Solve the eliminated system for the intrinsics step, back substitute the pose steps and make
+     * the trial state
+     * @return false if the system is not positive definite
+     */
+    private boolean step()
+    {
+        if ( ! cholesky(this.S, 0, NINTR))
+        {
+          return false;
+        }
+        System.arraycopy(this.b, 0, this.dI, 0, NINTR);
+        cholesky_solve(this.S, 0, NINTR, this.dI);
+
+        for (int i = 0; i < NINTR; i++)
+        {
+          this.intrTrial[i] = this.intr[i] + this.dI[i];
+        }
+        if ( ! this.free[FX] && this.free[FY] && this.aspectRatio > 0.)
+        {
+          this.intrTrial[FX] = this.intrTrial[FY]*this.aspectRatio;
+        }
+
+        for (int view = 0; view < this.nViews; view++)
+        {
+          int v0 = NEXTR*NEXTR*view, w0 = NINTR*NEXTR*view, g0 = NEXTR*view;
+          // dV = V^-1 (gV - W' dI)
+          for (int k = 0; k < NEXTR; k++)
+          {
+            double s = this.gV[g0 + k];
+            for (int i = 0; i < NINTR; i++)
+            {
+              s -= this.W[w0 + NEXTR*i + k]*this.dI[i];
+            }
+            this.y[k] = s;
+          }
+          cholesky_solve(this.L, v0, NEXTR, this.y);
+          System.arraycopy(this.y, 0, this.dV, g0, NEXTR);
+
+          // R = exp(w) R and t += dt
+          rodrigues(this.y[0], this.y[1], this.y[2], this.dR);
+          int r = 9*view;
+          for (int i = 0; i < 3; i++)
+          {
+            for (int j = 0; j < 3; j++)
+            {
+              this.rotTrial[r + 3*i + j] =
+                this.dR[3*i]*this.rot[r + j] + this.dR[3*i + 1]*this.rot[r + 3 + j] + this.dR[3*i + 2]*this.rot[r + 6 + j];
+            }
+          }
+          for (int i = 0; i < 3; i++)
+          {
+            this.transTrial[3*view + i] = this.trans[3*view + i] + this.y[3 + i];
+          }
+        }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     relative_change                                             */
+/*                                     relative_change                                             */
+/*                                     relative_change                                             */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Size of the last accepted step relative to the state; the rotations count by their angles
+     * @return
+     */
+    private double relative_change()
+    {
+        double step = 0., state = 0.;
+        for (int i = 0; i < NINTR; i++)
+        {
+          step += this.dI[i]*this.dI[i];
+          state += this.intr[i]*this.intr[i];
+        }
+        for (int view = 0; view < this.nViews; view++)
+        {
+          for (int k = 0; k < NEXTR; k++)
+          {
+            step += this.dV[NEXTR*view + k]*this.dV[NEXTR*view + k];
+          }
+          int r = 9*view;
+          double angle = Math.acos(Math.max(-1., Math.min(1., (this.rot[r] + this.rot[r + 4] + this.rot[r + 8] - 1.)/2.)));
+          state += angle*angle;
+          for (int k = 0; k < 3; k++)
+          {
+            state += this.trans[3*view + k]*this.trans[3*view + k];
+          }
+        }
+        return Math.sqrt(step/Math.max(state, Cfg.DBL_EPSILON));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     covariance                                                  */
+/*                                     covariance                                                  */
+/*                                     covariance                                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Covariance of the intrinsics - the inverse of the undamped Schur complement scaled by the
+     * variance of the errors, the same estimate of the error variance as OpenCV
+     * @param err sum of squared reprojection errors at the solution
+     * @return 9x9 row major; 0 for fixed intrinsics, NaN if there are too few points
+     */
+    private double[] covariance(double err)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        double[] cov = new double[NINTR*NINTR];
+        int dof = 2*this.nPoints - this.nFree - NEXTR*this.nViews; // residuals less unknowns
+        if ( ! schur(0.) || dof <= 0)
+        {
+          LOGGER.warning("intrinsics covariance not determined");
+          java.util.Arrays.fill(cov, Double.NaN);
+          return cov;
+        }
+        double sigma2 = err/dof;
+
+        // pseudo-inverse like OpenCV; one keyframe doesn't determine the focal length and principal
+        // point together so the Schur complement can be singular
+        pseudo_inverse(this.S, NINTR, cov);
+        for (int i = 0; i < NINTR; i++)
+        {
+          for (int j = 0; j < NINTR; j++)
+          {
+            cov[NINTR*i + j] = this.free[i] && this.free[j] ? cov[NINTR*i + j]*sigma2 : 0.;
+          }
+        }
+        return cov;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     pseudo_inverse                                              */
+/*                                     pseudo_inverse                                              */
+/*                                     pseudo_inverse                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Pseudo-inverse of a small symmetric matrix by Jacobi eigenvalue rotations; eigenvalues too
+     * small relative to the largest are treated as 0
+     * @param A row major n x n; destroyed
+     * @param n
+     * @param inv out; row major n x n
+     */
+    static void pseudo_inverse(double[] A, int n, double[] inv)
+    {
+        double[] E = new double[n*n]; // eigenvectors in columns
+        for (int i = 0; i < n; i++)
+        {
+          E[n*i + i] = 1.;
+        }
+        for (int sweep = 0; sweep < 50; sweep++)
+        {
+          double off = 0.;
+          for (int p = 0; p < n; p++)
+          {
+            for (int q = p + 1; q < n; q++)
+            {
+              off += A[n*p + q]*A[n*p + q];
+            }
+          }
+          if (off == 0.)
+          {
+            break;
+          }
+          for (int p = 0; p < n; p++)
+          {
+            for (int q = p + 1; q < n; q++)
+            {
+              double apq = A[n*p + q];
+              if (apq == 0.)
+              {
+                continue;
+              }
+              double theta = (A[n*q + q] - A[n*p + p])/(2.*apq);
+              double t = Math.signum(theta)/(Math.abs(theta) + Math.sqrt(theta*theta + 1.));
+              if (theta == 0.)
+              {
+                t = 1.;
+              }
+              double c = 1./Math.sqrt(t*t + 1.), s = t*c;
+              for (int k = 0; k < n; k++) // columns p and q
+              {
+                double akp = A[n*k + p], akq = A[n*k + q];
+                A[n*k + p] = c*akp - s*akq;
+                A[n*k + q] = s*akp + c*akq;
+              }
+              for (int k = 0; k < n; k++) // rows p and q
+              {
+                double apk = A[n*p + k], aqk = A[n*q + k];
+                A[n*p + k] = c*apk - s*aqk;
+                A[n*q + k] = s*apk + c*aqk;
+              }
+              for (int k = 0; k < n; k++)
+              {
+                double ekp = E[n*k + p], ekq = E[n*k + q];
+                E[n*k + p] = c*ekp - s*ekq;
+                E[n*k + q] = s*ekp + c*ekq;
+              }
+            }
+          }
+        }
+
+        double max = 0.;
+        for (int i = 0; i < n; i++)
+        {
+          max = Math.max(max, Math.abs(A[n*i + i]));
+        }
+        double threshold = max*n*Cfg.DBL_EPSILON;
+        java.util.Arrays.fill(inv, 0, n*n, 0.);
+        for (int k = 0; k < n; k++)
+        {
+          double w = A[n*k + k];
+          if (Math.abs(w) <= threshold)
+          {
+            continue;
+          }
+          for (int i = 0; i < n; i++)
+          {
+            for (int j = 0; j < n; j++)
+            {
+              inv[n*i + j] += E[n*i + k]*E[n*j + k]/w;
+            }
+          }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     cholesky                                                    */
+/*                                     cholesky                                                    */
+/*                                     cholesky                                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * In place Cholesky factorization A = L L' of a symmetric positive definite matrix
+     * @param A row major n x n at offset; the lower triangle is replaced by L
+     * @param offset
+     * @param n
+     * @return false if not positive definite
+     */
+    private static boolean cholesky(double[] A, int offset, int n)
+    {
+        for (int j = 0; j < n; j++)
+        {
+          double d = A[offset + n*j + j];
+          for (int k = 0; k < j; k++)
+          {
+            d -= A[offset + n*j + k]*A[offset + n*j + k];
+          }
+          if ( ! (d > 0.))
+          {
+            return false;
+          }
+          d = Math.sqrt(d);
+          A[offset + n*j + j] = d;
+          for (int i = j + 1; i < n; i++)
+          {
+            double s = A[offset + n*i + j];
+            for (int k = 0; k < j; k++)
+            {
+              s -= A[offset + n*i + k]*A[offset + n*j + k];
+            }
+            A[offset + n*i + j] = s/d;
+          }
+        }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     cholesky_solve                                              */
+/*                                     cholesky_solve                                              */
+/*                                     cholesky_solve                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Solve L L' x = b with the factor from cholesky
+     * @param L
+     * @param offset
+     * @param n
+     * @param x in b; out x
+     */
+    private static void cholesky_solve(double[] L, int offset, int n, double[] x)
+    {
+        for (int i = 0; i < n; i++)
+        {
+          double s = x[i];
+          for (int k = 0; k < i; k++)
+          {
+            s -= L[offset + n*i + k]*x[k];
+          }
+          x[i] = s/L[offset + n*i + i];
+        }
+        for (int i = n - 1; i >= 0; i--)
+        {
+          double s = x[i];
+          for (int k = i + 1; k < n; k++)
+          {
+            s -= L[offset + n*k + i]*x[k];
+          }
+          x[i] = s/L[offset + n*i + i];
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     rodrigues                                                   */
+/*                                     rodrigues                                                   */
+/*                                     rodrigues                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Rotation matrix of a rotation vector
+     * @param wx
+     * @param wy
+     * @param wz
+     * @param R out; row major 3x3
+     */
+    private static void rodrigues(double wx, double wy, double wz, double[] R)
+    {
+        double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+        double s, c1; // sin(theta)/theta and (1 - cos(theta))/theta^2
+        if (theta < 1.e-8)
+        {
+          s = 1.;
+          c1 = 0.5;
+        }
+        else
+        {
+          s = Math.sin(theta)/theta;
+          c1 = (1. - Math.cos(theta))/(theta*theta);
+        }
+        R[0] = 1. - c1*(wy*wy + wz*wz); R[1] = c1*wx*wy - s*wz;         R[2] = c1*wx*wz + s*wy;
+        R[3] = c1*wx*wy + s*wz;         R[4] = 1. - c1*(wx*wx + wz*wz); R[5] = c1*wy*wz - s*wx;
+        R[6] = c1*wx*wz - s*wy;         R[7] = c1*wy*wz + s*wx;         R[8] = 1. - c1*(wx*wx + wy*wy);
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End CalibrationSolver class                                 */
+/*                                     End CalibrationSolver class                                 */
+/*                                     End CalibrationSolver class                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
@@ -4,10 +4,14 @@
 
 package Guidance;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.opencv.calib3d.Calib3d;
@@ -16,6 +20,7 @@ import org.opencv.core.CvException;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -54,6 +59,10 @@ public class Calibrator {
     // private int N_pts = 0; // not used - only for Jacobian covariance that was removed
     private double reperr = Double.NaN;
     private double[] varIntrinsics =  {0., 0., 0., 0., 0., 0., 0., 0., 0.}; // nintr length
+    private Mat covIntrinsics = Mat.zeros(9, 9, CvType.CV_64FC1); // nintr x nintr; only the diagonal from the OpenCV solver
+    private List<Mat> rvecs = new ArrayList<>(20); // keyframe poses of the last calibration of all the keyframes
+    private List<Mat> tvecs = new ArrayList<>(20);
+    private final CalibrationSolver solver = new CalibrationSolver();
     private double[] pose_var = {0., 0., 0., 0., 0., 0.}; // rotation x, y, z and translation x, y, z
     private double[] disp_idx = // index of dispersion. One for each intrinsic this program handles (nintr=9)
       {Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
@@ -75,6 +84,10 @@ public class Calibrator {
     {
       return this.varIntrinsics;
     }
+    Mat covIntrinsics()
+    {
+      return this.covIntrinsics;
+    }
     double[] pose_var()
     {
       return this.pose_var;
@@ -105,7 +118,81 @@ public class Calibrator {
         this.Kin.put(2, 2, 1.);
         this.Kin = Calib3d.getDefaultNewCameraMatrix(this.Kin, img_size, true);
         this.Kin.copyTo(this.K);
-        LOGGER.finest("K/Kin\n" + this.K.dump() + "\n" + this.Kin.dump());
+        LOGGER.finest(() -> "K/Kin\n" + this.K.dump() + "\n" + this.Kin.dump());
+    }
+
+    /**
+     * Copy of a calibration to be calibrated again on another thread while the original is in use.
+     * The list of keyframes is copied; the keyframes themselves are shared since they don't change.
+     * @param calib
+     */
+    Calibrator(Calibrator calib)
+    {
+        LOGGER.finer("Instantiating");
+        this.img_size = calib.img_size;
+        this.nintr = calib.nintr;
+        this.Kin = calib.Kin.clone();
+        calib.K.copyTo(this.K);
+        calib.cdist.copyTo(this.cdist);
+        this.flags = calib.flags;
+        this.keyframes.addAll(calib.keyframes);
+        this.reperr = calib.reperr;
+        this.varIntrinsics = calib.varIntrinsics.clone();
+        calib.covIntrinsics.copyTo(this.covIntrinsics);
+        this.rvecs.addAll(calib.rvecs); // the poses are replaced, not changed, by a calibration
+        this.tvecs.addAll(calib.tvecs);
+        this.pose_var = calib.pose_var.clone();
+        this.disp_idx = calib.disp_idx.clone();
+    }
+
+    /**
+     * Write everything but the keyframes to a SessionJournal record
+     * @param out
+     * @throws IOException
+     */
+    void writeState(DataOutputStream out) throws IOException
+    {
+        SessionJournal.writeMat(out, this.Kin);
+        SessionJournal.writeMat(out, this.K);
+        SessionJournal.writeMat(out, this.cdist);
+        out.writeInt(this.flags);
+        out.writeDouble(this.reperr);
+        SessionJournal.writeDoubles(out, this.varIntrinsics);
+        SessionJournal.writeMat(out, this.covIntrinsics);
+        SessionJournal.writeDoubles(out, this.pose_var);
+        SessionJournal.writeDoubles(out, this.disp_idx);
+        out.writeInt(this.rvecs.size());
+        for (int i = 0; i < this.rvecs.size(); i++)
+        {
+            SessionJournal.writeMat(out, this.rvecs.get(i));
+            SessionJournal.writeMat(out, this.tvecs.get(i));
+        }
+    }
+
+    /**
+     * Replace everything but the keyframes with what writeState wrote
+     * @param in
+     * @throws IOException
+     */
+    void readState(DataInputStream in) throws IOException
+    {
+        this.Kin = SessionJournal.readMat(in);
+        SessionJournal.readMat(in).copyTo(this.K);
+        SessionJournal.readMat(in).copyTo(this.cdist);
+        this.flags = in.readInt();
+        this.reperr = in.readDouble();
+        this.varIntrinsics = SessionJournal.readDoubles(in, this.varIntrinsics.length);
+        this.covIntrinsics = SessionJournal.readMat(in);
+        this.pose_var = SessionJournal.readDoubles(in, this.pose_var.length);
+        this.disp_idx = SessionJournal.readDoubles(in, this.disp_idx.length);
+        int nposes = in.readInt();
+        this.rvecs = new ArrayList<>(nposes);
+        this.tvecs = new ArrayList<>(nposes);
+        for (int i = 0; i < nposes; i++)
+        {
+            this.rvecs.add(SessionJournal.readMat(in));
+            this.tvecs.add(SessionJournal.readMat(in));
+        }
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -130,8 +217,8 @@ public class Calibrator {
         this.cdist.get(0, 3)[0],
         this.cdist.get(0, 4)[0]
         };
-      LOGGER.finest("K\n" + K.dump());
-      LOGGER.finest(java.util.Arrays.toString(intrinsics));
+      LOGGER.finest(() -> "K\n" + K.dump());
+      LOGGER.finest(() -> java.util.Arrays.toString(intrinsics));
       return intrinsics;
     }
 /*-------------------------------------------------------------------------------------------------*/
@@ -143,7 +230,14 @@ public class Calibrator {
 /*                                                                                                 */
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
-    public double[] calibrate(List<keyframe> keyframes) // force use of keyframes instead of default None
+    /**
+     * 
+     * @param keyframes frames to calibrate with; empty for all the captured keyframes
+     * @param fullPrecision solve from the start to full precision; otherwise a calibration after the
+     *   initialization poses starts from the previous intrinsics and stops sooner
+     * @return index of dispersion of each intrinsic
+     */
+    public double[] calibrate(List<keyframe> keyframes, boolean fullPrecision) // force use of keyframes instead of default None
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
@@ -151,7 +245,8 @@ public class Calibrator {
  
         int flags = this.flags;
 
-        if (keyframes.isEmpty()) // indicates use all captured keyframes (not empty means use the individual frame before a capture)
+        boolean allKeyframes = keyframes.isEmpty();
+        if (allKeyframes) // indicates use all captured keyframes (not empty means use the individual frame before a capture)
         {
           keyframes.addAll(this.keyframes);
         }
@@ -186,16 +281,47 @@ public class Calibrator {
         // }
         // nkeyframesPrevious = nkeyframes;
 
-        calibrateCameraReturn res = calibrateCamera(keyframes, this.img_size, flags, this.Kin);
+        // the solver overwrites its camera matrix so it's given a copy; Kin stays the initial camera matrix.
+        // Without CALIB_USE_INTRINSIC_GUESS OpenCV reads only the fx/fy aspect ratio from it; with it (warm
+        // start) the copy of the previous intrinsics is the initial guess.
+        Mat Kguess = this.K.clone();
+        Mat cdist = new Mat();
+        List<Mat> rvecs = new ArrayList<>(keyframes.size());
+        List<Mat> tvecs = new ArrayList<>(keyframes.size());
+        TermCriteria criteria = Cfg.calibrateCameraCriteria;
+        // A capture adds only one keyframe to the previous calibration so its intrinsics are close.
+        // Start there and stop at a looser tolerance; the final calibration is solved fully.
+        // The Java solver also starts the previous keyframes from their poses; OpenCV takes no
+        // extrinsics guess and starts each keyframe's pose from its homography.
+        if ( ! fullPrecision && Cfg.calibrationWarmStart && allKeyframes && nkeyframes > 2
+            && ! Double.isNaN(this.reperr) && this.cdist.total() == 5)
+        {
+          flags |= Calib3d.CALIB_USE_INTRINSIC_GUESS;
+          this.cdist.copyTo(cdist);
+          rvecs.addAll(this.rvecs);
+          tvecs.addAll(this.tvecs);
+          criteria = Cfg.calibrateCameraWarmStartCriteria;
+        }
+
+        calibrateCameraReturn res = calibrateCamera(keyframes, this.img_size, flags, Kguess, cdist, rvecs, tvecs, criteria);
 
         this.reperr = res.reperr;
         res.K.copyTo(this.K);
+        Kguess.release(); // res.K
         res.cdist.copyTo(this.cdist);
         List<Mat> rvecsList = res.rvecsList;
         List<Mat> tvecsList = res.tvecsList;
-        Mat variances = res.varianceIntrinsics;
+        if (allKeyframes)
+        {
+          this.rvecs = rvecsList;
+          this.tvecs = tvecsList;
+        }
+        this.covIntrinsics = res.covarianceIntrinsics;
 
-        variances.get(0, 0, this.varIntrinsics); // convert from Mat to double array; this.varIntrinsics replaces self.PCov in Python
+        for (int i = 0; i < this.varIntrinsics.length; i++)
+        {
+          this.varIntrinsics[i] = this.covIntrinsics.get(i, i)[0]; // this.varIntrinsics replaces self.PCov in Python
+        }
 
         this.pose_var = compute_pose_var(rvecsList, tvecsList);
 
@@ -239,9 +365,9 @@ public class Calibrator {
 */
 
 /**
- *    Jc2J and compute_state_cov  replaced by OpenCV std dev -- NOT CONVERTED
- *    Jc2J and compute_state_cov  replaced by OpenCV std dev -- NOT CONVERTED
- *    Jc2J and compute_state_cov  replaced by OpenCV std dev -- NOT CONVERTED
+ *    Jc2J and compute_state_cov  replaced by CalibrationSolver covariance -- NOT CONVERTED
+ *    Jc2J and compute_state_cov  replaced by CalibrationSolver covariance -- NOT CONVERTED
+ *    Jc2J and compute_state_cov  replaced by CalibrationSolver covariance -- NOT CONVERTED
 */
 
 /*-------------------------------------------------------------------------------------------------*/
@@ -276,7 +402,7 @@ public class Calibrator {
         {
           Calib3d.Rodrigues(r, dst);
           double[] reuler = Calib3d.RQDecomp3x3(dst, mtxR, mtxQ); // always returns reuler.length = 3
-          LOGGER.finest("\nreuler degrees " + java.util.Arrays.toString(reuler) + "\nr " + r.t().dump());
+          LOGGER.finest(() -> "\nreuler degrees " + java.util.Arrays.toString(reuler) + "\nr " + r.t().dump());
           // workaround for the given board so r_x does not oscilate between +-180°
           reuler[0] = reuler[0] % 360.;
           reulers.add(reuler);
@@ -372,11 +498,16 @@ public class Calibrator {
      * @param keyframes
      * @param img_size
      * @param flags
-     * @param K
+     * @param K in/out; initial camera matrix if CALIB_USE_INTRINSIC_GUESS
+     * @param cdist in/out; initial distortion coefficients if CALIB_USE_INTRINSIC_GUESS
+     * @param rvecs in/out; initial keyframe rotations if CALIB_USE_INTRINSIC_GUESS, as many as known (Java solver only)
+     * @param tvecs in/out; initial keyframe translations the same as rvecs
+     * @param criteria
      * @return
      * @throws Exception
      */
-    calibrateCameraReturn calibrateCamera(List<keyframe> keyframes, Size img_size, int flags, Mat K)
+    calibrateCameraReturn calibrateCamera(List<keyframe> keyframes, Size img_size, int flags, Mat K, Mat cdist,
+      List<Mat> rvecs, List<Mat> tvecs, TermCriteria criteria)
     {
       LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
@@ -398,13 +529,29 @@ public class Calibrator {
         {
             LOGGER.severe("not enough total points");
         }
-        Mat cdist = new Mat();
-        List<Mat> rvecs = new ArrayList<>();
-        List<Mat> tvecs = new ArrayList<>();
-        Mat stdDeviationsIntrinsics = new Mat();
+        Mat covarianceIntrinsics = new Mat();
         double reperr = Double.NaN;
-        LOGGER.finest("K input to calibration\n" + K.dump());
-        LOGGER.finest(formatFlags(flags));
+        LOGGER.finest(() -> "K input to calibration\n" + K.dump());
+        LOGGER.finest(() -> formatFlags(flags));
+
+        if (Cfg.calibrationSolver == Cfg.Solver.JAVA)
+        {
+          reperr = this.solver.calibrate(keyframes, img_size, K, cdist, rvecs, tvecs, covarianceIntrinsics, flags, criteria);
+
+          LOGGER.finer(() -> "total caputered number of points = " + N);
+          LOGGER.finer(() -> "camera matrix " + K + "\n" + K.dump());
+          LOGGER.finer(() -> "distortion coefficients " + cdist.dump() + cdist);
+          if (LOGGER.isLoggable(Level.FINER))
+          {
+              LOGGER.finer("repError " + reperr);
+          }
+
+          return new calibrateCameraReturn(reperr, K, cdist, rvecs, tvecs, covarianceIntrinsics);
+        }
+
+        rvecs.clear(); // OpenCV takes no extrinsics guess
+        tvecs.clear();
+        Mat stdDeviationsIntrinsics = new Mat();
         try
         {
             reperr = Calib3d.calibrateCameraExtended(
@@ -412,12 +559,15 @@ public class Calibrator {
             img_size, K, cdist,
             rvecs, tvecs,
             stdDeviationsIntrinsics, new Mat(), new Mat(),
-            flags, Cfg.calibrateCameraCriteria);
+            flags, criteria);
 
-          LOGGER.finer("total caputered number of points = " + N);
-          LOGGER.finer("camera matrix " + K + "\n" + K.dump());
-          LOGGER.finer("distortion coefficients " + cdist.dump() + cdist);
-          LOGGER.finer("repError " + reperr);
+          LOGGER.finer(() -> "total caputered number of points = " + N);
+          LOGGER.finer(() -> "camera matrix " + K + "\n" + K.dump());
+          LOGGER.finer(() -> "distortion coefficients " + cdist.dump() + cdist);
+          if (LOGGER.isLoggable(Level.FINER))
+          {
+              LOGGER.finer("repError " + reperr);
+          }
         }
         catch(CvException error)
         {
@@ -425,10 +575,18 @@ public class Calibrator {
         }
 
         Mat varianceIntrinsics = new Mat();
-        Core.multiply(stdDeviationsIntrinsics, stdDeviationsIntrinsics, varianceIntrinsics); // variance = stddev squared
+        if (stdDeviationsIntrinsics.rows() >= this.nintr)
+        {
+          Core.multiply(stdDeviationsIntrinsics.rowRange(0, this.nintr), stdDeviationsIntrinsics.rowRange(0, this.nintr), varianceIntrinsics); // variance = stddev squared
+          covarianceIntrinsics = Mat.diag(varianceIntrinsics); // OpenCV has only the variances
+        }
+        else
+        {
+          covarianceIntrinsics = Mat.zeros(this.nintr, this.nintr, CvType.CV_64FC1); // calibration failed
+        }
         stdDeviationsIntrinsics.release();
 
-        return new calibrateCameraReturn(reperr, K, cdist, rvecs, tvecs, varianceIntrinsics);
+        return new calibrateCameraReturn(reperr, K, cdist, rvecs, tvecs, covarianceIntrinsics);
     }
 
     class calibrateCameraReturn
@@ -438,15 +596,15 @@ public class Calibrator {
         Mat cdist;
         List<Mat> rvecsList;
         List<Mat> tvecsList;
-        Mat varianceIntrinsics; 
-        calibrateCameraReturn(double reperr, Mat K, Mat cdist, List<Mat> rvecs, List<Mat> tvecs, Mat varianceIntrinsics)
+        Mat covarianceIntrinsics;
+        calibrateCameraReturn(double reperr, Mat K, Mat cdist, List<Mat> rvecs, List<Mat> tvecs, Mat covarianceIntrinsics)
         {
             this.reperr = reperr;
             this.K = K;
             this.cdist = cdist;
             this.rvecsList = rvecs;
             this.tvecsList = tvecs;
-            this.varianceIntrinsics = varianceIntrinsics;
+            this.covarianceIntrinsics = covarianceIntrinsics;
             // N_pts not used
         }         
     }
@@ -473,6 +631,7 @@ public class Calibrator {
         flags.put(Calib3d.CALIB_FIX_K1, "+fix k1");
         flags.put(Calib3d.CALIB_FIX_K2, "+fix k2");
         flags.put(Calib3d.CALIB_FIX_K3, "+fix k3");
+        flags.put(Calib3d.CALIB_USE_INTRINSIC_GUESS, "+use intrinsic guess");
       
         StringBuilder flags_str = new StringBuilder("flags: ");
         int unknownFlags = flagsCalibration; // initially assume all flags are unknown to the hashmap
@@ -32,16 +32,41 @@ public class Cfg
     static int board_y = 8; //6;
     static int resXDPM = 9843; // board printing pixels per meter 9843 = 250 DPI
     static int resYDPM = 9843; // board printing pixels per meter 9843 = 250 DPI
+    static Level loggerMinimumLevel = Level.FINE;
+    static boolean sessionFile = false; // logSnapshot saves to a binary SessionFile instead of image files, video and vnlog
+    static String resumeJournal = null; // SessionJournal file to resume the guidance from; null for a new session
 
 // MAYBE SHOULD BE USER SPECIFIABLE
-    static final Level loggerMinimumLevel = Level.FINE;
+    static final int logQueueCapacity = 4096; // log records waiting for the log writer thread
+    static final AsyncLogHandler.OverflowPolicy logOverflowPolicy = AsyncLogHandler.OverflowPolicy.DROP; // full log queue: DROP the record or WAIT for room
     static final String boardFile = "ChArUcoBoard";
     static final String cornersLog = "Corners"; // only used for a snapshot log
     static final String videoFile = "CalibrationVideo"; // video format of saved images
+    static final String sessionFilePrefix = "Session"; // binary session file of the snapshots
+    static final boolean sessionJournal = true; // journal the state after each capture so the session can be resumed
+    static final String sessionJournalPrefix = "Journal"; // SessionJournal file of the guidance state
     static final long messageHoldTime = 5000L; // milliseconds to hold display of message
+    static final int pipelineQueueDepth = 2; // frames waiting between pipelined stages before the oldest is dropped
+    static final int pipelineStatsFrames = 500; // camera frames between logging the pipelined stages' queue statistics
+    static final int snapshotQueueDepth = 8; // snapshots waiting for the snapshot writer thread before the frame loop waits for it
+    static final double benchmarkRegression = 0.1; // fraction slower than benchmark_baseline.csv that's logged as a regression
+    static final int metricsWindowSeconds = 60; // the stage quantiles are of the last one to two of these windows
+
+    // synthetic camera (-synthetic) ground truth and image quality
+    static final double syntheticFocalLength = 1100.; // fx and fy at 1280 wide; scaled with the width for the same field of view
+    static final double[] syntheticPrincipalPoint = {0.51, 0.49}; // cx and cy as fractions of the width and height
+    static final double[] syntheticDistortion = {-0.12, 0.08, 0.0005, -0.0005, 0.}; // k1, k2, p1, p2, k3
+    static final double syntheticExposure = 0.9; // gain; 1 is the printed board's black and white
+    static final double syntheticBlur = 0.7; // Gaussian sigma pixels; 0 for none
+    static final double syntheticNoise = 2.; // sensor noise standard deviation in gray levels; 0 for none
+    static final int syntheticFramesPerPose = 30; // frames at each fixed pose when not following the guidance
+    static final double syntheticFollowRate = 0.3; // fraction of the way to the target pose the board moves each frame
 
     // ALL THE FOLLOWING STUFF MIGHT NEVER NEED TO BE CHANGED
-    public static final int garbageCollectionFrames = 500; // camera frames - periodically do garbage collection because Java doesn't know there are big Mats to be released
+    static final int matPoolStatsFrames = 500; // camera frames between logging the per frame Mat pool allocations
+    static final int matPoolRekeyedMax = 4; // Mats an OpenCV function reallocated to a size and type the pool keeps beyond those acquired at it
+    static final int distortionMapCacheEntries = 8; // distortion maps kept in memory for reuse by later intrinsics updates
+    static String distortionMapCacheDir = null; // directory of saved distortion maps reused by later sessions; null is memory only
     static final double initialFocalLength = 1000.; // fx and fy, aspect ratio = 1 (fy/fx)
     // ChArUco Board pixels = (board_x*square_len, board_y*square_len)
 
@@ -65,6 +90,37 @@ public class Cfg
     static final float errorCorrectionRate = 3.0f;
     static final float minRepDistance = 10.0f;
 
+    // detection region of interest tracking - search only near where the board was in the previous frame
+    static final boolean roiTracking = true;
+    static final double roiMargin = 0.25; // fraction of the board's bounding box width and height added on each side
+    static final int roiMinMargin = 32; // pixels, minimum added on each side of the board's bounding box
+    static final double roiMaxArea = 0.6; // fraction of the image; a larger region is searched as the full frame
+    static final int roiFullFrameInterval = 30; // frames between full frame searches while tracking
+
+    // coarse to fine detection for large images - markers are found in a reduced image and the corners refined at full size
+    static final boolean pyramidDetection = true;
+    static final int pyramidMinImageWidth = 1920; // pixels; narrower camera images are always searched at full size
+    static final int pyramidMaxScale = 4; // largest reduction of the image (power of 2)
+    static final double pyramidMinMarkerSize = 40.; // pixels; smallest marker side in the reduced image based on the previous frame
+    static final TermCriteria pyramidSubPixCriteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 10, 0.01); // marker corners refined at full size
+
+    // optical flow tracking of the corners between full detections
+    static int flowDetectInterval = 1; // frames; detect the board every n frames and track the corners in between; 1 is no tracking
+    static final int flowWindow = 21; // pixels, Lucas-Kanade search window side
+    static final int flowMaxLevel = 3; // pyramid levels for the optical flow
+    static final TermCriteria flowCriteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 30, 0.01);
+    static final double flowMaxError = 0.5; // pixels; largest forward-backward tracking error of a kept corner
+    static final double flowMinFraction = 0.8; // fraction of the previous frame's corners that must be kept or detect the board again
+
+    // Jaccard score of the camera pose board to the guidance board
+    static final JaccardScore jaccardScore = JaccardScore.ANALYTIC;
+    static final int jaccardOutlineSamples = 8; // vertices along each side of a projected board outline; enough to follow the distortion
+
+    static PoseSelection poseSelection = PoseSelection.HEURISTIC; // user specified
+    static final boolean calibrationAsync = true; // calibrate captures on a worker thread; false waits for each calibration in the frame loop
+    static final boolean speculativeTarget = true; // calibrate a frame close to the target before it's captured so the next target is ready at the capture
+    static final double speculationCloseMin = 0.7; // minimum Jaccard score with the target to speculate; below pose_close_to_tgt_min to be done by the capture
+    static final double speculationTolerance = 0.5; // pixels; a capture is the speculated frame if no corner moved more
     static final double mean_flow_max = 3.; // exclusive, larger is more movement allowed
     public static final double pose_close_to_tgt_min = 0.85; // exclusive, - minimum Jaccard score between shadow and actual img for auto capture; larger is less deviation allowed
     static final double MAX_OVERLAP = 0.9; // maximum fraction of distortion mask overlapping with this pose before pose considered not contributing enough to help fill distortion mask
@@ -73,6 +129,9 @@ public class Cfg
 
     static final double DBL_EPSILON = Math.ulp(1.);
     static final TermCriteria calibrateCameraCriteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 30, DBL_EPSILON);
+    static Solver calibrationSolver = Solver.OPENCV; // user specified
+    static final boolean calibrationWarmStart = true; // a capture's calibration starts from the previous intrinsics
+    static final TermCriteria calibrateCameraWarmStartCriteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 10, 1e-6); // captures before the final calibration
 
     static final float FLT_EPSILON = Math.ulp(1.f);
     static final TermCriteria solvePnPRefineVVSCriteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 20, FLT_EPSILON);
@@ -92,6 +151,25 @@ public class Cfg
         }
     }
 
+    // Jaccard score methods
+    enum JaccardScore {
+        ANALYTIC, // intersection over union of the projected board outline polygons
+        RASTER, // count the pixels of the projected board images
+        VALIDATE // score RASTER but also compute ANALYTIC and log the difference
+    }
+
+    // next guidance pose methods
+    enum PoseSelection {
+        HEURISTIC, // orbital angle sequences for focal length and principal point; least distorted area for distortion
+        INFORMATION_GAIN // the candidate pose predicted to most reduce the variance of the target intrinsic
+    }
+
+    // camera calibration solvers
+    enum Solver {
+        OPENCV, // Calib3d.calibrateCameraExtended; intrinsics standard deviations only
+        JAVA // CalibrationSolver; full intrinsics covariance and warm start of the keyframe poses; not yet compared to OPENCV
+    }
+
     private Cfg()
     {
         throw new UnsupportedOperationException("This is a utility class");
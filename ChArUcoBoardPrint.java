@@ -1,8 +1,14 @@
 package Guidance;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
 
@@ -39,11 +45,9 @@ public class ChArUcoBoardPrint {
         
         /* PNG */
         final String boardFilePNG = Cfg.boardFile + ".png";
-        try (FileOutputStream outputStreamPNG = new FileOutputStream(new File(boardFilePNG))) {
+        try (BufferedOutputStream outputStreamPNG = new BufferedOutputStream(new FileOutputStream(new File(boardFilePNG)))) {
             LOGGER.info("ChArUcoBoard to be printed is in file " + boardFilePNG);
 
-            byte[] boardByte = new byte[boardImage.rows()*boardImage.cols()]; // assumes 1 channel Mat [ 1680*2520*CV_8UC1, isCont=true, isSubmat=false, nativeObj=0x294e475cc20, dataAddr=0x294e55f7080 ]
-
             CRC32 crc32 = new CRC32();
 
             // SIGNATURE
@@ -99,67 +103,119 @@ public class ChArUcoBoardPrint {
             outputStreamPNG.write(pHYs);
 
             // DATA
-            //The complete filtered PNG image is represented by a single zlib datastream that is stored in a number of IDAT chunks.
+            // The complete filtered PNG image is represented by a single zlib datastream that is stored in a number of IDAT chunks.
+            // Filtered and compressed a band of rows at a time in parallel and written as it's compressed
+            // so a poster size board at a high DPI doesn't need copies of the whole image.
+            PngImageData.write(boardImage, outputStreamPNG);
+
+            // END
+            final byte[] IEND =
+                {
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // chunk length (not including length, "IEND", crc)
+                (byte)0x49, (byte)0x45, (byte)0x4e, (byte)0x44, // "IEND"
+                (byte)0xae, (byte)0x42, (byte)0x60, (byte)0x82  // crc
+                };
+            
+            outputStreamPNG.write(IEND);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the board as a vector SVG file of filled rectangles - the black squares, the markers and
+     * the white bit cells of the markers - of exact physical size. Nothing is rasterized so it's
+     * instant and small at any size; the physical size is the PNG's at resXDPM and resYDPM.
+     * The markers are placed by the board's marker corners and ids and their bits come from the
+     * dictionary so the layout is the one the detector expects.
+     */
+    public static void printSVG()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        final String boardFileSVG = Cfg.boardFile + ".svg";
+        final int width = Cfg.board_x*Cfg.square_len; // board units, the same as the PNG pixels
+        final int height = Cfg.board_y*Cfg.square_len;
+        final int markerCells = dictionary.get_markerSize() + 2; // bits and a 1 bit black border
+
+        try (PrintWriter svg = new PrintWriter(new BufferedWriter(new FileWriter(boardFileSVG)))) {
+            LOGGER.info("ChArUcoBoard to be printed is in file " + boardFileSVG);
 
-            // create the filtered, compressed datastream
+            svg.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            svg.printf(Locale.ROOT, "<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" width=\"%.4fmm\" height=\"%.4fmm\" viewBox=\"0 0 %d %d\" shape-rendering=\"crispEdges\">%n",
+                1000.*width/Cfg.resXDPM, 1000.*height/Cfg.resYDPM, width, height);
+            svg.printf(Locale.ROOT, "<rect width=\"%d\" height=\"%d\" fill=\"#fff\"/>%n", width, height);
 
-            boardImage.get(0, 0, boardByte); // board from OpenCV Mat
+            List<? extends Mat> markerCorners = board.getObjPoints(); // x, y, z clockwise from the top left of each marker
+            int[] ids = board.getIds().toArray();
+            float[] corners = new float[4*3];
 
-            // filter type begins each row so step through all the rows adding the filter type to each row
-            byte[] boardByteFilter = new byte[boardImage.rows() + boardByte.length];
-            int flatIndex = 0;
-            int flatIndexFilter = 0;
-            for (int row = 0; row < boardImage.rows(); row++)
+            // a square with a marker is white; the others are black
+            boolean[] whiteSquare = new boolean[Cfg.board_x*Cfg.board_y];
+            for (Mat marker : markerCorners)
             {
-                boardByteFilter[flatIndexFilter++] = 0x00; // filter type none begins each row          
-                for (int col = 0; col < boardImage.cols(); col++)
+                marker.get(0, 0, corners);
+                int x = (int)(corners[0]/Cfg.square_len);
+                int y = (int)(corners[1]/Cfg.square_len);
+                whiteSquare[y*Cfg.board_x + x] = true;
+            }
+
+            svg.println("<g fill=\"#000\">");
+            for (int y = 0; y < Cfg.board_y; y++)
+            {
+                for (int x = 0; x < Cfg.board_x; x++)
                 {
-                    boardByteFilter[flatIndexFilter++] = boardByte[flatIndex++];
+                    if ( ! whiteSquare[y*Cfg.board_x + x])
+                    {
+                        svg.printf(Locale.ROOT, "<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\"/>%n",
+                            x*Cfg.square_len, y*Cfg.square_len, Cfg.square_len, Cfg.square_len);
+                    }
                 }
             }
-            // complete filtered PNG image is represented by a single zlib compression datastream
-            byte[] boardCompressed = ArrayUtils.compress(boardByteFilter);
-
-            // chunk the compressed datastream
-            // chunking not necessary for the ChArUcoBoard but it's potentially good for other uses
-            int chunkSize = 0;
-            int chunkSizeMax = 100_000; // arbitrary "small" number
-            int dataWritten = 0;
-
-            while (dataWritten < boardCompressed.length) // chunk until done
+            for (Mat marker : markerCorners)
             {
-                chunkSize = Math.min(chunkSizeMax, boardCompressed.length - dataWritten); // max or what's left in the last chunk
+                marker.get(0, 0, corners);
+                svg.printf(Locale.ROOT, "<rect x=\"%.4f\" y=\"%.4f\" width=\"%.4f\" height=\"%.4f\"/>%n",
+                    corners[0], corners[1], corners[3] - corners[0], corners[10] - corners[1]);
+            }
+            svg.println("</g>");
 
-                byte[] IDAT = new byte[4 + 4 + chunkSize + 4]; // 4 length + 4 "IDAT" + chunk length + 4 CRC
+            // the white bits of each marker; a row's adjacent white bits are one rectangle
+            svg.println("<g fill=\"#fff\">");
+            Mat markerImage = new Mat();
+            byte[] cells = new byte[markerCells*markerCells];
+            for (int i = 0; i < ids.length; i++)
+            {
+                markerCorners.get(i).get(0, 0, corners);
+                double cellWidth = (corners[3] - corners[0])/markerCells;
+                double cellHeight = (corners[10] - corners[1])/markerCells;
 
-                ArrayUtils.intToByteArray(chunkSize, IDAT, 0); // stash length of the chunk data in first 4 bytes
-                IDAT[4] = (byte)("IDAT".charAt(0));
-                IDAT[5] = (byte)("IDAT".charAt(1));
-                IDAT[6] = (byte)("IDAT".charAt(2));
-                IDAT[7] = (byte)("IDAT".charAt(3));
-                for(int i=0; i < chunkSize; i++)
+                Objdetect.generateImageMarker(dictionary, ids[i], markerCells, markerImage, 1); // 1 pixel per bit
+                markerImage.get(0, 0, cells);
+                for (int row = 0; row < markerCells; row++)
                 {
-                    IDAT[8 + i] = boardCompressed[dataWritten + i]; // stash data from where we left off to its place in the chunk
+                    int col = 0;
+                    while (col < markerCells)
+                    {
+                        if (cells[row*markerCells + col] == 0) // black
+                        {
+                            col++;
+                            continue;
+                        }
+                        int start = col;
+                        while (col < markerCells && cells[row*markerCells + col] != 0)
+                        {
+                            col++;
+                        }
+                        svg.printf(Locale.ROOT, "<rect x=\"%.4f\" y=\"%.4f\" width=\"%.4f\" height=\"%.4f\"/>%n",
+                            corners[0] + start*cellWidth, corners[1] + row*cellHeight, (col - start)*cellWidth, cellHeight);
+                    }
                 }
-
-                crc32.reset();
-                crc32.update(IDAT, 4, IDAT.length - 8); // skip the beginning 4 for length and ending 4 for crc
-                ArrayUtils.intToByteArray((int)crc32.getValue(), IDAT, IDAT.length - 4); // crc in last 4 bytes  
-
-                outputStreamPNG.write(IDAT);
-                dataWritten += chunkSize;
             }
-
-            // END
-            final byte[] IEND =
-                {
-                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // chunk length (not including length, "IEND", crc)
-                (byte)0x49, (byte)0x45, (byte)0x4e, (byte)0x44, // "IEND"
-                (byte)0xae, (byte)0x42, (byte)0x60, (byte)0x82  // crc
-                };
-            
-            outputStreamPNG.write(IEND);
-
+            markerImage.release();
+            svg.println("</g>");
+            svg.println("</svg>");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -5,17 +5,26 @@
 package Guidance;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfFloat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.ArucoDetector;
 import org.opencv.objdetect.CharucoBoard;
 import org.opencv.objdetect.CharucoDetector;
 import org.opencv.objdetect.CharucoParameters;
@@ -23,6 +32,7 @@ import org.opencv.objdetect.DetectorParameters;
 import org.opencv.objdetect.Dictionary;
 import org.opencv.objdetect.Objdetect;
 import org.opencv.objdetect.RefineParameters;
+import org.opencv.video.Video;
 
 
 /*-------------------------------------------------------------------------------------------------*/
@@ -57,8 +67,8 @@ public class ChArucoDetector {
     // In this case the board is flat at its Z origin (say, the wall upon which it is mounted) so the Z coordinate is always 0.
     // p2d is the coordinates of the corresponding board corners as they are located in the camera image,
     // distorted by perspective (pose) and camera intrinsic parameters and camera distortion.
-    private final Mat p3d = new Mat(); // 3 dimensional currentObjectPoints, the physical target ChArUco Board
-    private final Mat p2d = new Mat(); // 2 dimensional currentImagePoints, the likely distorted board on the flat camera sensor frame posed relative to the target
+    private final MatOfPoint3f p3d = new MatOfPoint3f(); // 3 dimensional currentObjectPoints, the physical target ChArUco Board
+    private final MatOfPoint2f p2d = new MatOfPoint2f(); // 2 dimensional currentImagePoints, the likely distorted board on the flat camera sensor frame posed relative to the target
     private int N_pts = 0;
     private boolean pose_valid = false;
     // private Mat raw_img = null; // not used
@@ -79,6 +89,46 @@ public class ChArucoDetector {
     private boolean intrinsic_valid = false;
     private Mat K;
     private Mat cdist;
+    private MatOfDouble distReTyped; // shares cdist data
+
+    // reused every frame so matching and pose estimation don't allocate
+    private float[] chessboardCorners; // board object points indexed by corner id (x, y, z)
+    private int[] cidsArray = new int[0];
+    private float[] p3dArray = new float[0];
+    private final Mat rvecPnP = new Mat();
+    private final Mat tvecPnP = new Mat();
+    private final Mat inLiers = new Mat();
+
+    // region of interest tracking - find_corners searches near where the board was last found
+    private Rect roi = null; // null to search the full frame
+    private int roiFrames = 0; // consecutive frames searched in the region
+    private int roiLastCorners = 0; // corners found in the previous search
+    private final MatOfPoint3f boardOutline; // board corner object points for projecting the last pose
+    private final MatOfPoint2f projectedOutline = new MatOfPoint2f();
+    private final Mat rvecProject = new Mat();
+
+    // coarse to fine (pyramid) detection - markers found in a reduced image
+    private ArucoDetector markerDetector;
+    private double lastMarkerSize = 0.; // average marker side in pixels in the previous detection; 0 if unknown
+    private final Mat gray = new Mat();
+    private final Mat reduced = new Mat();
+    private final List<Mat> markerCorners = new ArrayList<>();
+    private final Mat markerIds = new Mat();
+    private final List<Mat> rejectedCorners = new ArrayList<>();
+
+    // optical flow tracking of the corners between full detections
+    private boolean tracked = false; // corners of the latest frame were tracked, not detected
+    private int flowFrames = 0; // consecutive frames tracked since the last detection
+    private Mat flowGray = new Mat(); // current frame
+    private Mat flowPrevGray = new Mat(); // previous frame
+    private final MatOfPoint2f flowCorners = new MatOfPoint2f(); // corners in the previous frame
+    private final Mat flowIds = new Mat(); // ids of flowCorners
+    private final MatOfPoint2f flowNext = new MatOfPoint2f(); // corners tracked to the current frame
+    private final MatOfPoint2f flowBack = new MatOfPoint2f(); // current corners tracked back to the previous frame
+    private final MatOfByte flowStatus = new MatOfByte();
+    private final MatOfByte flowStatusBack = new MatOfByte();
+    private final MatOfFloat flowError = new MatOfFloat();
+    private final Size flowWindow = new Size(Cfg.flowWindow, Cfg.flowWindow);
 
     private final Mat ccorners = new Mat(); // currentCharucoCorners
     private final Mat cids = new Mat(); // currentCharucoIds
@@ -125,6 +175,10 @@ public class ChArucoDetector {
     {
         return cids;
     }
+    boolean corners_tracked()
+    {
+        return tracked;
+    }
 
     public ChArucoDetector(Size img_size) // throws FileNotFoundException, IOException
     {
@@ -150,6 +204,18 @@ public class ChArucoDetector {
         refineParams.set_minRepDistance(Cfg.minRepDistance); // 10.0 default
 
         detector = new CharucoDetector(this.board, charucoParams, detectParams, refineParams);
+        markerDetector = new ArucoDetector(this.dictionary, detectParams, refineParams);
+
+        Mat chessboardCornersMat = this.board.getChessboardCorners();
+        this.chessboardCorners = new float[(int)chessboardCornersMat.total()*chessboardCornersMat.channels()];
+        chessboardCornersMat.get(0, 0, this.chessboardCorners);
+        chessboardCornersMat.release();
+
+        double boardWidth = this.board_sz.width*this.square_len;
+        double boardHeight = this.board_sz.height*this.square_len;
+        this.boardOutline = new MatOfPoint3f(
+            new Point3(0., 0., 0.), new Point3(boardWidth, 0., 0.),
+            new Point3(boardWidth, boardHeight, 0.), new Point3(0., boardHeight, 0.));
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -167,7 +233,8 @@ public class ChArucoDetector {
         this.intrinsic_valid = true;
         this.K = calib.K();
         this.cdist = calib.cdist();
-        LOGGER.finest("K\n" + this.K.dump() + "\n" + calib.K().dump());
+        this.distReTyped = new MatOfDouble(this.cdist);
+        LOGGER.finest(() -> "K\n" + this.K.dump() + "\n" + calib.K().dump());
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -203,22 +270,338 @@ public class ChArucoDetector {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
         this.N_pts = 0;
         this.mean_flow = Double.MAX_VALUE;
- 
-        try
+
+        if ( ! find_corners(img, this.ccorners, this.cids))
+        {
+            this.last_cids.release(); // board lost; the flow starts again from the frame it's found in
+            return; // skipping this image frame
+        }
+
+        if (!this.cids.empty())
+        {
+            Objdetect.drawDetectedCornersCharuco(img, this.ccorners, this.cids);
+        }
+
+        match_pts();
+    }
+    /**
+     * Accept corners that were already found by find_corners (possibly by another detector instance
+     * on another thread) and process them the same as detect_pts would have.
+     * @param img camera image to mark the corners on
+     * @param ccorners corners found in img
+     * @param cids ids of the corners found in img
+     * @param tracked the corners were tracked by optical flow, not detected
+     */
+    public void detect_pts(Mat img, Mat ccorners, Mat cids, boolean tracked)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+        this.N_pts = 0;
+        this.mean_flow = Double.MAX_VALUE;
+        this.tracked = tracked;
+
+        ccorners.copyTo(this.ccorners);
+        cids.copyTo(this.cids);
+
+        if (!this.cids.empty())
+        {
+            Objdetect.drawDetectedCornersCharuco(img, this.ccorners, this.cids);
+        }
+
+        match_pts();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     find_corners                                                */
+/*                                     find_corners                                                */
+/*                                     find_corners                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Run the OpenCV board detector on the image. This is the expensive part of the detection and it
+     * uses no state of the tracker other than the detector and the region of interest tracking so it
+     * may run on its own thread. The image is not marked.
+     *
+     * If the board was found in the previous frame only the region around it is searched. The full
+     * frame is searched if that finds fewer corners than before (board moved or lost) and
+     * periodically in case more of the board came into view.
+     * @param img camera image
+     * @param ccorners output corners
+     * @param cids output ids of the corners
+     * @return false if the detector failed on this image
+     */
+    public boolean find_corners(Mat img, Mat ccorners, Mat cids)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        this.tracked = false;
+
+        if (Cfg.flowDetectInterval <= 1) // no optical flow tracking
+        {
+            return search_corners(img, ccorners, cids);
+        }
+
+        if (img.channels() == 1)
+        {
+            img.copyTo(this.flowGray);
+        }
+        else
+        {
+            Imgproc.cvtColor(img, this.flowGray, Imgproc.COLOR_BGR2GRAY);
+        }
+
+        boolean found;
+        if (this.flowFrames + 1 < Cfg.flowDetectInterval && track_flow(ccorners, cids))
+        {
+            this.flowFrames++;
+            this.tracked = true;
+            track_roi(img, ccorners);
+            found = true;
+        }
+        else
+        {
+            this.flowFrames = 0;
+            found = search_corners(img, ccorners, cids);
+        }
+
+        // this frame's corners are tracked from in the next frame
+        if (found)
+        {
+            ccorners.copyTo(this.flowCorners);
+            cids.copyTo(this.flowIds);
+        }
+        else
+        {
+            this.flowCorners.release();
+            this.flowIds.release();
+        }
+        Mat swap = this.flowPrevGray;
+        this.flowPrevGray = this.flowGray;
+        this.flowGray = swap;
+
+        return found;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     track_flow                                                  */
+/*                                     track_flow                                                  */
+/*                                     track_flow                                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Move the previous frame's corners to this frame by pyramidal Lucas-Kanade optical flow.
+     * Each corner is tracked forward and then back again and is kept only if it returns to where
+     * it started. Fails if too many corners are lost - time for a full detection.
+     * @param ccorners output corners
+     * @param cids output ids of the corners
+     * @return true if enough corners were tracked
+     */
+    private boolean track_flow(Mat ccorners, Mat cids)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        int n = this.flowCorners.rows();
+        if (n < Cfg.minCorners || ! this.flowPrevGray.size().equals(this.flowGray.size()))
+        {
+            return false;
+        }
+
+        Video.calcOpticalFlowPyrLK(this.flowPrevGray, this.flowGray, this.flowCorners, this.flowNext,
+            this.flowStatus, this.flowError, this.flowWindow, Cfg.flowMaxLevel, Cfg.flowCriteria);
+        Video.calcOpticalFlowPyrLK(this.flowGray, this.flowPrevGray, this.flowNext, this.flowBack,
+            this.flowStatusBack, this.flowError, this.flowWindow, Cfg.flowMaxLevel, Cfg.flowCriteria);
+
+        float[] previous = new float[2*n];
+        float[] next = new float[2*n];
+        float[] back = new float[2*n];
+        byte[] status = new byte[n];
+        byte[] statusBack = new byte[n];
+        int[] ids = new int[n];
+        this.flowCorners.get(0, 0, previous);
+        this.flowNext.get(0, 0, next);
+        this.flowBack.get(0, 0, back);
+        this.flowStatus.get(0, 0, status);
+        this.flowStatusBack.get(0, 0, statusBack);
+        this.flowIds.get(0, 0, ids);
+
+        // keep the corners that went there and back again; compress in place
+        int kept = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (status[i] != 0 && statusBack[i] != 0
+                && Math.hypot(back[2*i] - previous[2*i], back[2*i + 1] - previous[2*i + 1]) <= Cfg.flowMaxError)
+            {
+                next[2*kept] = next[2*i];
+                next[2*kept + 1] = next[2*i + 1];
+                ids[kept] = ids[i];
+                kept++;
+            }
+        }
+
+        if (LOGGER.isLoggable(Level.FINEST))
+        {
+            LOGGER.finest("tracked " + kept + " of " + n + " corners");
+        }
+
+        if (kept < Cfg.minCorners || kept < Cfg.flowMinFraction*n)
+        {
+            return false;
+        }
+
+        ccorners.create(kept, 1, CvType.CV_32FC2);
+        ccorners.put(0, 0, Arrays.copyOf(next, 2*kept));
+        cids.create(kept, 1, CvType.CV_32SC1);
+        cids.put(0, 0, Arrays.copyOf(ids, kept));
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     search_corners                                              */
+/*                                     search_corners                                              */
+/*                                     search_corners                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Detect the board in the region of interest or the full frame
+     * @param img camera image
+     * @param ccorners output corners
+     * @param cids output ids of the corners
+     * @return false if the detector failed on this image
+     */
+    private boolean search_corners(Mat img, Mat ccorners, Mat cids)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (Cfg.roiTracking && this.roi != null && this.roiFrames < Cfg.roiFullFrameInterval)
         {
-            this.ccorners.release();
-            this.cids.release();
+            Mat imgRoi = img.submat(this.roi);
+            boolean found = detect_board(imgRoi, ccorners, cids);
+            imgRoi.release();
+
+            if (found && cids.rows() >= Math.max(Cfg.minCorners, this.roiLastCorners))
+            {
+                Core.add(ccorners, new Scalar(this.roi.x, this.roi.y), ccorners); // region to full frame coordinates
+                LOGGER.finest(() -> "found " + cids.rows() + " corners in region " + this.roi);
+                this.roiFrames++;
+                track_roi(img, ccorners);
+                return true;
+            }
+            LOGGER.finest(() -> "found " + cids.rows() + " corners in region " + this.roi + "; searching full frame");
+        }
+
+        this.roiFrames = 0;
+        if ( ! detect_board(img, ccorners, cids))
+        {
+            this.roi = null;
+            return false; // skipping this image frame
+        }
+        track_roi(img, ccorners);
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     track_roi                                                   */
+/*                                     track_roi                                                   */
+/*                                     track_roi                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Set the region to search in the next frame - the detected corners' bounding box and, if there
+     * is a camera pose from the previous frame, the whole board projected at that pose (may include
+     * parts of the board not detected), expanded by a margin to allow for movement.
+     * @param img camera image
+     * @param ccorners corners found in img
+     */
+    private void track_roi(Mat img, Mat ccorners)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        this.roiLastCorners = ccorners.rows();
+        if (ccorners.rows() < Cfg.minCorners)
+        {
+            this.roi = null; // too little to track; search the full frame
+            return;
+        }
+
+        Rect box = Imgproc.boundingRect(ccorners);
+
+        if (this.pose_valid && this.intrinsic_valid)
+        {
+            Core.multiply(this.rvec, new Scalar(-1.), this.rvecProject); // undo the negation in update_pose
+            Calib3d.projectPoints(this.boardOutline, this.rvecProject, this.tvec, this.K, this.distReTyped, this.projectedOutline);
+            Rect boardBox = Imgproc.boundingRect(this.projectedOutline);
+            int x = Math.min(box.x, boardBox.x);
+            int y = Math.min(box.y, boardBox.y);
+            box = new Rect(x, y,
+                Math.max(box.x + box.width, boardBox.x + boardBox.width) - x,
+                Math.max(box.y + box.height, boardBox.y + boardBox.height) - y);
+        }
+
+        int marginX = Math.max(Cfg.roiMinMargin, (int)(Cfg.roiMargin*box.width));
+        int marginY = Math.max(Cfg.roiMinMargin, (int)(Cfg.roiMargin*box.height));
+        int x0 = Math.max(0, box.x - marginX);
+        int y0 = Math.max(0, box.y - marginY);
+        int x1 = Math.min(img.cols(), box.x + box.width + marginX);
+        int y1 = Math.min(img.rows(), box.y + box.height + marginY);
+
+        if (x1 <= x0 || y1 <= y0 || (double)(x1 - x0)*(y1 - y0) > Cfg.roiMaxArea*img.cols()*img.rows())
+        {
+            this.roi = null; // board fills most of the image; searching the region wouldn't save much
+            return;
+        }
+
+        this.roi = new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     detect_board                                                */
+/*                                     detect_board                                                */
+/*                                     detect_board                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * OpenCV detectBoard with its errors caught
+     * @param img image to search
+     * @param ccorners output corners
+     * @param cids output ids of the corners
+     * @return false if the detector failed on this image
+     */
+    private boolean detect_board(Mat img, Mat ccorners, Mat cids)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-            detector.detectBoard( img, this.ccorners, this.cids/*, markerCorners, markerIds*/ );
-            if (!this.cids.empty())
+        // detectBoard leaves the outputs unchanged if there isn't a board
+        ccorners.release();
+        cids.release();
+        release_all(this.markerCorners); // empty markers input means detectBoard finds them itself
+        this.markerIds.release();
+
+        try
+        {
+            int scale = pyramid_scale();
+            if (scale > 1 && detect_markers_reduced(img, scale))
+            {
+                detector.detectBoard( this.gray, ccorners, cids, this.markerCorners, this.markerIds ); // corners at full size
+            }
+            else
             {
-                Objdetect.drawDetectedCornersCharuco(img, this.ccorners, this.cids);
+                detector.detectBoard( img, ccorners, cids, this.markerCorners, this.markerIds );
             }
+            this.lastMarkerSize = marker_size(this.markerCorners);
         }
         catch(Exception e) // shouldn't happen but it does; likely OpenCV error since it should handle whatever image it is given
         {
             LOGGER.severe("OpenCV detectBoard error - skipping frame: " + e.getMessage());
-            return; // skipping this image frame
+            return false; // skipping this image frame
             // sometimes a likely OpenCV error:
             // [General - ChArucoDetector] [ERROR] CvException [org.opencv.core.CvException: cv::Exception: OpenCV(4.8.0)
             // D:\a\thirdparty-opencv\thirdparty-opencv\opencv\modules\objdetect\src\aruco\charuco_detector.cpp:202:
@@ -236,6 +619,164 @@ public class ChArucoDetector {
             // at org.photonvision.calibrator.ChArucoDetector.detect(ChArucoDetector.java:505)
             // at org.photonvision.calibrator.Main.main(Main.java:357)
         }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     pyramid_scale                                               */
+/*                                     pyramid_scale                                               */
+/*                                     pyramid_scale                                               */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Choose how much to reduce the image for the marker search from the size of the markers in the
+     * previous detection. Markers must stay big enough in the reduced image to be found reliably.
+     * @return reduction factor; 1 for the full size image
+     */
+    private int pyramid_scale()
+    {
+        if ( ! Cfg.pyramidDetection || this.img_size.width < Cfg.pyramidMinImageWidth)
+        {
+            return 1;
+        }
+
+        int scale = 1;
+        while (2*scale <= Cfg.pyramidMaxScale && this.lastMarkerSize/(2*scale) >= Cfg.pyramidMinMarkerSize)
+        {
+            scale *= 2;
+        }
+        return scale;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     detect_markers_reduced                                      */
+/*                                     detect_markers_reduced                                      */
+/*                                     detect_markers_reduced                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Find the markers in the image reduced by scale then put them back at full size and refine
+     * their corners on the full size image. The full size gray image is left in this.gray.
+     * @param img camera image
+     * @param scale reduction factor
+     * @return true if markers were found; false to search the full size image
+     */
+    private boolean detect_markers_reduced(Mat img, int scale)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (img.channels() == 1)
+        {
+            img.copyTo(this.gray);
+        }
+        else
+        {
+            Imgproc.cvtColor(img, this.gray, Imgproc.COLOR_BGR2GRAY);
+        }
+        Imgproc.resize(this.gray, this.reduced, new Size(this.gray.cols()/scale, this.gray.rows()/scale), 0, 0, Imgproc.INTER_AREA);
+
+        release_all(this.rejectedCorners);
+        this.markerDetector.detectMarkers(this.reduced, this.markerCorners, this.markerIds, this.rejectedCorners);
+
+        if (this.markerCorners.isEmpty())
+        {
+            if (LOGGER.isLoggable(Level.FINEST))
+            {
+                LOGGER.finest("no markers in image reduced by " + scale);
+            }
+            this.markerIds.release();
+            return false;
+        }
+
+        // reduced pixel centers to full size pixel centers
+        Size window = new Size(scale, scale);
+        Size zeroZone = new Size(-1, -1);
+        for (Mat corners : this.markerCorners)
+        {
+            Core.add(corners, new Scalar(0.5, 0.5), corners);
+            Core.multiply(corners, new Scalar(scale, scale), corners);
+            Core.subtract(corners, new Scalar(0.5, 0.5), corners);
+            Imgproc.cornerSubPix(this.gray, corners, window, zeroZone, Cfg.pyramidSubPixCriteria);
+        }
+        for (Mat corners : this.rejectedCorners)
+        {
+            Core.add(corners, new Scalar(0.5, 0.5), corners);
+            Core.multiply(corners, new Scalar(scale, scale), corners);
+            Core.subtract(corners, new Scalar(0.5, 0.5), corners);
+        }
+
+        if (Cfg.tryRefineMarkers) // what detectBoard would have done after its own marker search
+        {
+            this.markerDetector.refineDetectedMarkers(this.gray, this.board, this.markerCorners, this.markerIds, this.rejectedCorners);
+        }
+
+        if (LOGGER.isLoggable(Level.FINEST))
+        {
+            LOGGER.finest(this.markerCorners.size() + " markers in image reduced by " + scale);
+        }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     marker_size                                                 */
+/*                                     marker_size                                                 */
+/*                                     marker_size                                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param markerCorners detected markers' 4 corners each
+     * @return average side of the markers in pixels; 0 if none
+     */
+    private static double marker_size(List<Mat> markerCorners)
+    {
+        if (markerCorners.isEmpty())
+        {
+            return 0.;
+        }
+
+        double perimeter = 0.;
+        float[] corners = new float[8];
+        for (Mat marker : markerCorners)
+        {
+            marker.get(0, 0, corners);
+            for (int i = 0; i < 4; i++)
+            {
+                int j = (i + 1)%4;
+                perimeter += Math.hypot(corners[2*j] - corners[2*i], corners[2*j + 1] - corners[2*i + 1]);
+            }
+        }
+        return perimeter/(4*markerCorners.size());
+    }
+
+    private static void release_all(List<Mat> mats)
+    {
+        for (Mat mat : mats)
+        {
+            mat.release();
+        }
+        mats.clear();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     match_pts                                                   */
+/*                                     match_pts                                                   */
+/*                                     match_pts                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Match the detected corners (ccorners, cids) to the board object points and compute the flow
+     */
+    private void match_pts()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
         // double check detect results since there was some unknown rare failure to get the N_pts set right
         if ( this.cids.rows() != this.ccorners.rows() ) // shouldn't happen
@@ -251,25 +792,33 @@ public class ChArucoDetector {
     
         if (this.N_pts <= 0) // the less than shouldn't happen (maybe use the min N_pts from Cfg?)
         {
+            this.last_cids.release(); // board lost; the flow starts again from the frame it's found in
             return; // skipping this image frame
         }
 
-        LOGGER.finest("N_pts " + this.N_pts);
-        LOGGER.finest("detected ccorners\n" + this.ccorners.dump());
-        LOGGER.finest("detected cids\n" + this.cids.dump());
+        LOGGER.finest(() -> "N_pts " + this.N_pts);
+        LOGGER.finest(() -> "detected ccorners\n" + this.ccorners.dump());
+        LOGGER.finest(() -> "detected cids\n" + this.cids.dump());
         
-        // reformat the Mat to a List<Mat> for matchImagePoints
-        final List<Mat> ccornersList = new ArrayList<>();
-        for (int i = 0; i < this.ccorners.total(); i++) {
-          ccornersList.add(this.ccorners.row(i));
+        // Same as board.matchImagePoints() which for a ChArUco board pairs each detected corner with the
+        // board chessboard corner of the same id. Done here since matchImagePoints needs a List with a
+        // Mat for each corner made every frame.
+        if (this.cidsArray.length != this.N_pts)
+        {
+            this.cidsArray = new int[this.N_pts];
+            this.p3dArray = new float[3*this.N_pts];
         }
+        this.cids.get(0, 0, this.cidsArray);
+        for (int i = 0; i < this.N_pts; i++)
+        {
+            System.arraycopy(this.chessboardCorners, 3*this.cidsArray[i], this.p3dArray, 3*i, 3);
+        }
+        this.p3d.create(this.N_pts, 1, CvType.CV_32FC3);
+        this.p3d.put(0, 0, this.p3dArray);
+        this.ccorners.copyTo(this.p2d);
 
-        board.matchImagePoints(ccornersList, this.cids, this.p3d, this.p2d); // p2d same data as ccornersList
-        // oddly this method returns 3 channels instead of 2 for imgPoints and there isn't much to do about it and it works in solvePnP
-        // after copying to MatOfPoint2f. A waste of cpu and memory.
-
-        LOGGER.finest("p3d\n" + this.p3d.dump()); // data okay here
-        LOGGER.finest("p2d\n" + this.p2d.dump()); // data okay here
+        LOGGER.finest(() -> "p3d\n" + this.p3d.dump()); // data okay here
+        LOGGER.finest(() -> "p2d\n" + this.p2d.dump()); // data okay here
 
         if (this.p3d.empty() || this.p2d.empty()) // shouldn't happen
         {
@@ -296,7 +845,9 @@ public class ChArucoDetector {
 /*-------------------------------------------------------------------------------------------------*/
     /**
      * Compare current and previous corner detections to see how far they are displaced from each other - flow
-     * The lists of current and previous corners must be the same and then the displacement is computed
+     * The flow is of the corners in both frames so a corner lost or found (a tracked frame keeps only
+     * some of the corners) doesn't stop the board from being still. The frame the board is found
+     * again in has no previous corners to compare and isn't still until the next frame.
      */
     public void computeMeanFlow()
     {
@@ -304,51 +855,57 @@ public class ChArucoDetector {
 
         this.mean_flow = Double.MAX_VALUE; // first assume default flow is big
 
-        if (cids.rows() <= 0 || cids.rows() != last_cids.rows()) // handle first time or number of rows differ
+        if (cids.rows() <= 0 || last_cids.rows() <= 0) // handle first time
         {
-            return; // cids lists lengths differ so can't compute flow so assume it's big
+            return; // no previous corners so can't compute flow so assume it's big
         }
 
-        // lists' lengths are the same so check the individual elements (cids) for equality
-
         // get all the last cids and ccorners and all the current cids and ccorners in arrays.
         // do all the computations in the arrays.
 
-        // check that the lists of current and previous cids match
-        // assume the cids and last_cids are in the same order (it's ascending but that doesn't matter)
-        
         int[] last_cidsArray = new int[last_cids.rows()]; // assume 1 col 1 channel
         int[]      cidsArray = new int[     cids.rows()];
 
         this.last_cids.get(0, 0, last_cidsArray);
         this.     cids.get(0, 0,      cidsArray );
 
-        for (int row = 0; row < cidsArray.length; row++)
-        {
-            if (cidsArray[row] != last_cidsArray[row])
-            {
-                return; // cids differ so can't compute flow so assume it's big
-            }
-        }
-
-        // previous and current cids lists match so compute flow of each corner
-  
         float[] last_ccornersArray = new float[last_ccorners.rows() * last_ccorners.channels()]; // assume 1 col
         float[]      ccornersArray = new float[     ccorners.rows() *      ccorners.channels()];
 
         this.last_ccorners.get(0,0, last_ccornersArray);
         this.     ccorners.get(0, 0,     ccornersArray);
 
-        this.mean_flow = 0.; // starting at 0 for a summation process but that will change to flow or max value
-        for (int rowChannel = 0; rowChannel < ccornersArray.length; rowChannel += 2) // step by 2 assumes 2 channels (x, y) per point
+        // row of each id in the previous corners; -1 if it wasn't there
+        int[] last_row = new int[this.chessboardCorners.length/3];
+        Arrays.fill(last_row, -1);
+        for (int row = 0; row < last_cidsArray.length; row++)
         {
-            double diffX = ccornersArray[rowChannel    ] - last_ccornersArray[rowChannel    ]; // X channel (current - last)
-            double diffY = ccornersArray[rowChannel + 1] - last_ccornersArray[rowChannel + 1]; // Y channel (current - last)
+            last_row[last_cidsArray[row]] = row;
+        }
+
+        // flow of each corner in both frames
+        double flow = 0.;
+        int shared = 0;
+        for (int row = 0; row < cidsArray.length; row++)
+        {
+            int last = last_row[cidsArray[row]];
+            if (last < 0)
+            {
+                continue; // corner not in the previous frame
+            }
+            double diffX = ccornersArray[2*row    ] - last_ccornersArray[2*last    ]; // X channel (current - last)
+            double diffY = ccornersArray[2*row + 1] - last_ccornersArray[2*last + 1]; // Y channel (current - last)
 
-            this.mean_flow += Math.sqrt(Math.pow(diffX, 2) + Math.pow(diffY, 2)); // sum the L2 norm (Frobenious)
+            flow += Math.sqrt(Math.pow(diffX, 2) + Math.pow(diffY, 2)); // sum the L2 norm (Frobenious)
+            shared++;
         }
 
-        this.mean_flow /= ccornersArray.length; // mean of the sum of the norms
+        if (shared < Cfg.minCorners)
+        {
+            return; // too few corners in both frames to tell so assume it's big
+        }
+
+        this.mean_flow = flow / (2*shared); // mean of the sum of the norms over the x, y channels as always
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -369,11 +926,38 @@ public class ChArucoDetector {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
         // raw_img never used - not converted
         boolean fewCorners = false;
+        long start = System.nanoTime();
         this.detect_pts(img);
+        Metrics.detect_pts.record(start);
+
+        if (this.intrinsic_valid)
+        {
+            start = System.nanoTime();
+            fewCorners = this.update_pose();
+            Metrics.update_pose.record(start);
+        }
+
+        return fewCorners;
+    } 
+/**
+ * Same as detect(img) but with the corners already found by find_corners
+ * @param img
+ * @param ccorners
+ * @param cids
+ * @param tracked the corners were tracked by optical flow, not detected
+ * @return true if too few corners to use image
+ */
+    public boolean detect(Mat img, Mat ccorners, Mat cids, boolean tracked)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+        boolean fewCorners = false;
+        this.detect_pts(img, ccorners, cids, tracked); // the detect stage timed the detection
 
         if (this.intrinsic_valid)
         {
+            long start = System.nanoTime();
             fewCorners = this.update_pose();
+            Metrics.update_pose.record(start);
         }
 
         return fewCorners;
@@ -429,23 +1013,23 @@ public class ChArucoDetector {
 
         if (this.N_pts < Cfg.minCorners) // original had 4; solvePnp wants 6 sometimes, and UserGuidance wants many more
         {
-            LOGGER.finest("too few corners " + (this.N_pts == 0 ? "- possibly blurred by movement or bad aim" : this.N_pts));
+            LOGGER.finest(() -> "too few corners " + (this.N_pts == 0 ? "- possibly blurred by movement or bad aim" : this.N_pts));
             fewCorners = true;
             this.pose_valid = false;
             return fewCorners;
         }
 
-        MatOfPoint3f p3dReTyped = new MatOfPoint3f(this.p3d);
-        MatOfPoint2f p2dReTyped = new MatOfPoint2f(this.p2d);
-        MatOfDouble distReTyped = new MatOfDouble(this.cdist);
+        MatOfPoint3f p3dReTyped = this.p3d;
+        MatOfPoint2f p2dReTyped = this.p2d;
+        MatOfDouble distReTyped = this.distReTyped;
 
-        LOGGER.finest("p3d\n" + p3dReTyped.dump());
-        LOGGER.finest("p2d\n" + p2dReTyped.dump());
+        LOGGER.finest(() -> "p3d\n" + p3dReTyped.dump());
+        LOGGER.finest(() -> "p2d\n" + p2dReTyped.dump());
         
-        Mat rvec = new Mat(); // neither previous pose nor guidance board pose helped the solvePnP (made pose estimate worse)
-        Mat tvec = new Mat(); // so don't give solvePnP a starting pose estimate
+        Mat rvec = this.rvecPnP; // neither previous pose nor guidance board pose helped the solvePnP (made pose estimate worse)
+        Mat tvec = this.tvecPnP; // so don't give solvePnP a starting pose estimate (useExtrinsicGuess false)
 
-        Mat inLiers = new Mat();
+        Mat inLiers = this.inLiers;
 
         this.pose_valid = Calib3d.solvePnPRansac(
             p3dReTyped, p2dReTyped,
@@ -453,7 +1037,7 @@ public class ChArucoDetector {
             rvec, tvec,
             false, 100, 8.0f, 0.99, inLiers, Calib3d.SOLVEPNP_ITERATIVE);
 
-        LOGGER.finest("inliers " + inLiers.rows() + " of " + p3dReTyped.rows() + " " + inLiers);
+        LOGGER.finest(() -> "inliers " + inLiers.rows() + " of " + p3dReTyped.rows() + " " + inLiers);
         
         if ( ! this.pose_valid)
         {
@@ -522,11 +1106,11 @@ public class ChArucoDetector {
         // removing this and flipping 
         Core.multiply(rvec, new Scalar(-1., 1., 1.), rvec);
 
-        this.rvec = rvec.t(); // t() like ravel(), solvePnp returns r and t as Mat(3, 1, )
-        this.tvec = tvec.t(); // and the rest of the program uses Mat(1, 3, )
+        Core.transpose(rvec, this.rvec); // like ravel(), solvePnp returns r and t as Mat(3, 1, )
+        Core.transpose(tvec, this.tvec); // and the rest of the program uses Mat(1, 3, )
 
-        LOGGER.finest("out rvec\n" + this.rvec.dump());
-        LOGGER.finest("out tvec\n" + this.tvec.dump());
+        LOGGER.finest(() -> "out rvec\n" + this.rvec.dump());
+        LOGGER.finest(() -> "out tvec\n" + this.tvec.dump());
         return fewCorners;
     }
 }
@@ -0,0 +1,442 @@
+package Guidance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     DistortionMapCache class                                    */
+/*                                     DistortionMapCache class                                    */
+/*                                     DistortionMapCache class                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Distortion maps by the camera matrices, distortion coefficients, size and step they were made
+ * with so an intrinsics update only computes the maps it hasn't seen before.
+ *
+ * The most recently used maps are kept in memory (Cfg.distortionMapCacheEntries). If a directory
+ * is set (Cfg.distortionMapCacheDir) the maps are also saved there and a later session with the
+ * same camera model reads them instead of computing them - the initial intrinsics are the same
+ * for every session at the same image size.
+ *
+ * The key is a SHA-256 hash of all the inputs including the undistortPointsIter criteria. The
+ * caller gets its own copy of the maps and may change or release them.
+ */
+class DistortionMapCache
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private static final int FILE_MAGIC = 0x444D4331; // "DMC1" start of a saved map file
+
+    // most recently used last; evicted maps are released; guarded by its own lock which is held only
+    // to look up, add and copy maps - never while they're read or computed
+    private static final Map<String, List<Mat>> memory = new LinkedHashMap<String, List<Mat>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Mat>> eldest)
+            {
+                if (size() > Cfg.distortionMapCacheEntries)
+                {
+                    for (Mat map : eldest.getValue())
+                    {
+                        map.release();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private static long hits = 0; // found in memory
+    private static long diskHits = 0; // read from the directory
+    private static long misses = 0; // computed
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     make_distort_map                                            */
+/*                                     make_distort_map                                            */
+/*                                     make_distort_map                                            */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Distortion.make_distort_map from the cache
+     *
+     * @param K
+     * @param sz width, height
+     * @param dist
+     * @param Knew
+     * @return caller's copy of the map
+     */
+    static Mat make_distort_map(Mat K, Size sz, Mat dist, Mat Knew)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        String key = key("distort", K, sz, dist, Knew, 0);
+        return maps(key, () ->
+            {
+                long start = System.nanoTime();
+                List<Mat> maps = List.of(Distortion.make_distort_map(K, sz, dist, Knew));
+                LOGGER.fine(() -> "distortion map " + sz + " computed in " + (System.nanoTime() - start)/1000000L + " ms");
+                return maps;
+            }).get(0);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     sparse_undistort_map                                        */
+/*                                     sparse_undistort_map                                        */
+/*                                     sparse_undistort_map                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Distortion.sparse_undistort_map from the cache
+     *
+     * @param K
+     * @param sz width, height
+     * @param dist
+     * @param Knew
+     * @param step
+     * @return caller's copy of the distorted points, original points
+     */
+    static List<Mat> sparse_undistort_map(Mat K, Size sz, Mat dist, Mat Knew, int step)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        String key = key("sparse", K, sz, dist, Knew, step);
+        return maps(key, () -> Distortion.sparse_undistort_map(K, sz, dist, Knew, step));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     maps                                                        */
+/*                                     maps                                                        */
+/*                                     maps                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * The maps for the key from memory, the directory or computed. Only the lookup, the add and the
+     * copy hold the lock so a computation doesn't hold up other threads' lookups. Two threads that
+     * miss the same key at once both compute it and the first one added is kept.
+     * @param key
+     * @param compute makes the maps if they aren't in memory or the directory
+     * @return caller's copy of the maps
+     */
+    private static List<Mat> maps(String key, Supplier<List<Mat>> compute)
+    {
+        synchronized (memory)
+        {
+            List<Mat> maps = memory.get(key);
+            if (maps != null)
+            {
+                hits++;
+                LOGGER.finest(() -> "memory hit " + key);
+                return copy(maps);
+            }
+        }
+
+        boolean computed = false;
+        List<Mat> maps = load(key);
+        if (maps == null)
+        {
+            maps = compute.get();
+            computed = true;
+        }
+
+        synchronized (memory)
+        {
+            List<Mat> existing = memory.putIfAbsent(key, maps);
+            if (existing != null) // another thread added them first
+            {
+                for (Mat map : maps)
+                {
+                    map.release();
+                }
+                return copy(existing);
+            }
+            if (computed)
+            {
+                misses++;
+            }
+            else
+            {
+                diskHits++;
+            }
+            LOGGER.fine(() -> "distortion maps " + hits + " memory hits, " + diskHits + " disk hits, " + misses + " computed");
+            maps = copy(maps); // before another thread's add could evict and release them
+        }
+
+        if (computed)
+        {
+            save(key, maps);
+        }
+        return maps;
+    }
+
+    private static List<Mat> copy(List<Mat> maps)
+    {
+        List<Mat> copy = new ArrayList<>(maps.size());
+        for (Mat map : maps)
+        {
+            copy.add(map.clone());
+        }
+        return copy;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     load                                                        */
+/*                                     load                                                        */
+/*                                     load                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * maps from the directory; null if they have to be computed
+     */
+    private static List<Mat> load(String key)
+    {
+        Path file = file(key);
+        if (file != null && Files.isReadable(file))
+        {
+            try
+            {
+                List<Mat> maps = read(file);
+                LOGGER.fine(() -> "distortion maps read from " + file);
+                return maps;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOGGER.warning("ignoring unreadable distortion map file " + file + " " + e);
+            }
+        }
+        return null;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     save                                                        */
+/*                                     save                                                        */
+/*                                     save                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * save the maps to the directory if there is one
+     */
+    private static void save(String key, List<Mat> maps)
+    {
+        Path file = file(key);
+        if (file == null)
+        {
+            return;
+        }
+        try
+        {
+            Files.createDirectories(file.getParent());
+            // write a temporary file and rename it so another session never reads a partial file
+            Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+            write(temp, maps);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.fine(() -> "distortion maps saved to " + file);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warning("distortion maps not saved to " + file + " " + e);
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     file                                                        */
+/*                                     file                                                        */
+/*                                     file                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @return where the maps for the key are saved; null if there is no directory
+     */
+    private static Path file(String key)
+    {
+        return Cfg.distortionMapCacheDir == null ? null : Paths.get(Cfg.distortionMapCacheDir, key + ".map");
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * saved as a count of Mats then for each Mat its rows, cols, type and the float data
+     */
+    private static void write(Path file, List<Mat> maps) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file))))
+        {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(maps.size());
+            for (Mat map : maps)
+            {
+                Mat continuous = map.isContinuous() ? map : map.clone();
+                float[] data = new float[(int)(continuous.total()*continuous.channels())];
+                continuous.get(0, 0, data);
+                out.writeInt(continuous.rows());
+                out.writeInt(continuous.cols());
+                out.writeInt(continuous.type());
+                ByteBuffer bytes = ByteBuffer.allocate(4*data.length);
+                bytes.asFloatBuffer().put(data);
+                out.write(bytes.array());
+            }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     read                                                        */
+/*                                     read                                                        */
+/*                                     read                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private static List<Mat> read(Path file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if (in.readInt() != FILE_MAGIC)
+            {
+                throw new IOException("not a distortion map file");
+            }
+            int count = in.readInt();
+            List<Mat> maps = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                int rows = in.readInt();
+                int cols = in.readInt();
+                int type = in.readInt();
+                if (CvType.depth(type) != CvType.CV_32F)
+                {
+                    throw new IOException("unexpected map type " + CvType.typeToString(type));
+                }
+                byte[] bytes = new byte[4*rows*cols*CvType.channels(type)];
+                in.readFully(bytes);
+                float[] data = new float[bytes.length/4];
+                ByteBuffer.wrap(bytes).asFloatBuffer().get(data);
+                Mat map = new Mat(rows, cols, type);
+                map.put(0, 0, data);
+                maps.add(map);
+            }
+            return maps;
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     key                                                         */
+/*                                     key                                                         */
+/*                                     key                                                         */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * hex SHA-256 of everything the map depends on
+     */
+    private static String key(String kind, Mat K, Size sz, Mat dist, Mat Knew, int step)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e); // every Java platform has SHA-256
+        }
+        ByteBuffer header = ByteBuffer.allocate(64);
+        header.put(kind.getBytes());
+        header.putDouble(sz.width).putDouble(sz.height).putInt(step);
+        header.putInt(Cfg.undistortPointsIterCriteria.type)
+            .putInt(Cfg.undistortPointsIterCriteria.maxCount)
+            .putDouble(Cfg.undistortPointsIterCriteria.epsilon);
+        digest.update(header.array(), 0, header.position());
+        update(digest, K);
+        update(digest, dist);
+        update(digest, Knew);
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest())
+        {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     update                                                      */
+/*                                     update                                                      */
+/*                                     update                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * add the values of a Mat to the hash; the shape doesn't matter so a row or column of
+     * coefficients is the same key
+     */
+    private static void update(MessageDigest digest, Mat mat)
+    {
+        Mat values = new Mat();
+        mat.reshape(1, 1).convertTo(values, CvType.CV_64F); // reshape needs continuous; camera matrices always are
+        double[] data = new double[(int)values.total()];
+        values.get(0, 0, data);
+        values.release();
+        ByteBuffer bytes = ByteBuffer.allocate(4 + 8*data.length);
+        bytes.putInt(data.length);
+        bytes.asDoubleBuffer().put(data);
+        digest.update(bytes.array());
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     DistortionMapCache constructor                              */
+/*                                     DistortionMapCache constructor                              */
+/*                                     DistortionMapCache constructor                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private DistortionMapCache()
+    {
+        throw new UnsupportedOperationException("This is a utility class");
+    }
+}
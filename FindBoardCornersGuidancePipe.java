@@ -24,13 +24,13 @@
 package Guidance;
 
 import java.util.ArrayList;
-import java.util.List;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.tuple.Pair;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
@@ -76,6 +76,15 @@ public class FindBoardCornersGuidancePipe
     EndMessage endMessage;
 
     int frameNumber;
+
+    // reused Mats for the per frame processing
+    MatPool pool = new MatPool();
+    long poolAllocationsPrevious;
+
+    // corners found ahead of time by another detector (pipelined mode); null to detect them here
+    private Mat detectedCorners = null;
+    private Mat detectedIds = null;
+    private boolean detectedTracked = false;
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
 /*                                                                                                 */
@@ -87,6 +96,20 @@ public class FindBoardCornersGuidancePipe
 /*-------------------------------------------------------------------------------------------------*/
     public FindBoardCornersGuidancePipe() {}
 
+    /**
+     * Use corners already found in the next image instead of detecting them in process().
+     * Applies to the next run() only.
+     *
+     * @param ccorners corners found by ChArucoDetector.find_corners
+     * @param cids ids of the corners
+     * @param tracked the corners were tracked by optical flow, not detected
+     */
+    public void setDetection(Mat ccorners, Mat cids, boolean tracked) {
+        this.detectedCorners = ccorners;
+        this.detectedIds = cids;
+        this.detectedTracked = tracked;
+    }
+
     /**
      * Finds the corners in a given image and returns them
      *
@@ -122,8 +145,11 @@ public class FindBoardCornersGuidancePipe
 
         // first time through processing; effectively the constructor for a calibration
         img_size_start = img_size.clone(); // set resolution; all frames must match this first
+        pool.release(); // free the previous calibration's Mats (their sizes may be wrong now)
+        poolAllocationsPrevious = pool.allocations();
         tracker = new ChArucoDetector(this.img_size);
-        ugui = new UserGuidance(tracker, Cfg.var_terminate, this.img_size);
+        ugui = new UserGuidance(tracker, Cfg.var_terminate, this.img_size, pool);
+        ugui.journal(Cfg.resumeJournal); // resume from the journal or start a new one
         mirror = false; // indicator for user pressed the "m" key to present mirrored view
         frameNumber = 0;
     }
@@ -139,27 +165,34 @@ public class FindBoardCornersGuidancePipe
     public  FindBoardCornersGuidancePipeResult findBoardCornersGuidance(Pair<Mat, Mat> in) {
         // resets for every frame
         endMessage = EndMessage.NONE;
-        progressInsert = new Mat();
         Mat imgPV = in.getLeft();
         Mat outPV = in.getRight();
 
-        Mat img = new Mat();
+        // all the per frame Mats are from the pool and returned to it at the end of the frame
+        progressInsert = pool.acquire(this.img_size, CvType.CV_8UC1);
+
+        Mat img = pool.acquire(imgPV.rows(), imgPV.cols(), imgPV.type());
         imgPV.copyTo(img);
 
-        Mat out = new Mat(); // user display Mat
+        Mat out = pool.acquire(imgPV.rows(), imgPV.cols(), imgPV.type()); // user display Mat
 
         frameNumber++;
-        if (frameNumber%Cfg.garbageCollectionFrames == 0) // periodically cleanup old Mats
-        {
-            System.runFinalization();
-            System.gc();
-        }
 
-        boolean fewCorners = tracker.detect(img); // detect the board
+        boolean fewCorners;
+        if (detectedIds == null) {
+            fewCorners = tracker.detect(img); // detect the board
+        }
+        else {
+            fewCorners = tracker.detect(img, detectedCorners, detectedIds, detectedTracked); // board already detected
+            detectedCorners = null;
+            detectedIds = null;
+        }
 
         img.copyTo(out); // out has the camera image at his point
 
+        long start = System.nanoTime();
         ugui.draw(out, mirror); // this adds the guidance board to the camera image (out) to make the new out
+        Metrics.draw.record(start);
 
         boolean capturedPose = ugui.update(this.params.save, progressInsert); // calibrate
         
@@ -168,13 +201,15 @@ public class FindBoardCornersGuidancePipe
             endMessage = EndMessage.CAPTURED;
         }
 
+        start = System.nanoTime();
         displayOverlay(out, ugui, fewCorners, frameNumber, progressInsert);
+        Metrics.displayOverlay.record(start);
 
         out.copyTo(outPV);
 
         if (ugui.converged()) // are we there yet?
         {
-            ugui.calib.calibrate(new ArrayList<>(1)); // final, dummy arg to use all captures
+            ugui.calib.calibrate(new ArrayList<>(1), true); // final, dummy arg to use all captures
 
             ugui.write(); // write all the calibration data
 
@@ -186,6 +221,14 @@ public class FindBoardCornersGuidancePipe
             LOGGER.info("Pose Guidance Camera action " + endMessage);
         }
 
+        int allocations = pool.endFrame(); // done with this frame's Mats
+        LOGGER.finest(() -> "frame " + frameNumber + " Mat allocations " + allocations);
+        if (frameNumber%Cfg.matPoolStatsFrames == 0)
+        {
+            LOGGER.fine(() -> pool.stats() + ", " + (pool.allocations() - poolAllocationsPrevious) + " in the last " + Cfg.matPoolStatsFrames + " frames");
+            poolAllocationsPrevious = pool.allocations();
+        }
+
         FindBoardCornersGuidancePipeResult findBoardCornersGuidancePipeResult = new FindBoardCornersGuidancePipeResult();
         // most frames will return falses since nothing special happened
         findBoardCornersGuidancePipeResult.madeSnapshot = false;
@@ -262,7 +305,9 @@ public class FindBoardCornersGuidancePipe
         }
 
         // ugui.tgt_r() ugui.tgt_t guidance board target rotation and translation from pose generation
-        Mat rotationMatrix = new Mat();
+        Mat rotationMatrix = pool.acquire(3, 3, CvType.CV_64FC1);
+        Mat mtxR = pool.acquire(3, 3, CvType.CV_64FC1); // RQDecomp3x3 outputs not used
+        Mat mtxQ = pool.acquire(3, 3, CvType.CV_64FC1);
         double[] rotationDegrees;
         double[] translation = new double[3];
         
@@ -270,7 +315,7 @@ public class FindBoardCornersGuidancePipe
         if ( ! ugui.tgt_r().empty() && ! ugui.tgt_t().empty())
         {
             Calib3d.Rodrigues(ugui.tgt_r(), rotationMatrix);
-            rotationDegrees = Calib3d.RQDecomp3x3(rotationMatrix, new Mat(), new Mat()); // always returns reuler.length = 3
+            rotationDegrees = Calib3d.RQDecomp3x3(rotationMatrix, mtxR, mtxQ); // always returns reuler.length = 3
             rotationDegrees[0] -= 180.;
 
             ugui.tgt_t().get(0, 0, translation);
@@ -287,7 +332,7 @@ public class FindBoardCornersGuidancePipe
         if ( ! ugui.tracker.rvec().empty() && ! ugui.tracker.tvec().empty())
         {
             Calib3d.Rodrigues(ugui.tracker.rvec(), rotationMatrix);
-            rotationDegrees = Calib3d.RQDecomp3x3(rotationMatrix, new Mat(), new Mat()); // always returns reuler.length = 3
+            rotationDegrees = Calib3d.RQDecomp3x3(rotationMatrix, mtxR, mtxQ); // always returns reuler.length = 3
             rotationDegrees[1] = -rotationDegrees[1];
             rotationDegrees[2] = -rotationDegrees[2];
 
@@ -308,26 +353,25 @@ public class FindBoardCornersGuidancePipe
         // final MatOfInt writeBoardParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 100); // debugging - pair-wise; param1, value1, ...
         // Imgcodecs.imwrite("java" + frame + ".jpg", out, writeBoardParams); // debugging - save image in jpg file
         
-        if ( ! progressInsert.empty())
+        if (ugui.progressInsertValid())
         {
             // add to the display the board/camera overlap image
-            Imgproc.resize(progressInsert, progressInsert, new Size(this.img_size.width*0.1, this.img_size.height*0.1), 0, 0, Imgproc.INTER_CUBIC);
-            List<Mat> temp1 = new ArrayList<>(3); // make the 1 b&w channel into 3 channels
-            temp1.add(progressInsert);
-            temp1.add(progressInsert);
-            temp1.add(progressInsert);
-            Mat temp2 = new Mat();
-            Core.merge(temp1, temp2);
+            Size insertSize = new Size((int)(this.img_size.width*0.1), (int)(this.img_size.height*0.1)); // same as resize rounding
+            Mat insert = pool.acquire(insertSize, CvType.CV_8UC1);
+            ugui.progress_insert(progressInsert, insert);
+            Mat temp2 = pool.acquire(insertSize, CvType.CV_8UC3);
+            Imgproc.cvtColor(insert, temp2, Imgproc.COLOR_GRAY2BGR); // make the 1 b&w channel into 3 channels
             Imgproc.rectangle(temp2, // outline the insert for better visibility
                 new Point(0, 0),
-                new Point(progressInsert.cols()-1., progressInsert.rows()-1.),
+                new Point(insert.cols()-1., insert.rows()-1.),
                 new Scalar(255., 255., 0.), 1);
-            temp2.copyTo(out.submat((int)(this.img_size.height*0.45), (int)(this.img_size.height*0.45)+progressInsert.rows(), 0,progressInsert.cols()));
-            temp2.release();
+            Mat insertLocation = out.submat((int)(this.img_size.height*0.45), (int)(this.img_size.height*0.45)+insert.rows(), 0, insert.cols());
+            temp2.copyTo(insertLocation);
+            insertLocation.release();
 
             Imgproc.putText(out,
                 String.format("similar%5.2f/%4.2f", ugui.pose_close_to_tgt_get(), Cfg.pose_close_to_tgt_min),
-                new Point(0,(int)(this.img_size.height*0.45)+progressInsert.rows()+20) , Imgproc.FONT_HERSHEY_SIMPLEX, 0.6, new Scalar(255, 255, 255), 1);
+                new Point(0,(int)(this.img_size.height*0.45)+insert.rows()+20) , Imgproc.FONT_HERSHEY_SIMPLEX, 0.6, new Scalar(255, 255, 255), 1);
         }  
 
         // display intrinsics convergence
@@ -0,0 +1,86 @@
+package Guidance;
+
+import org.opencv.core.Mat;
+
+import edu.wpi.first.cscore.CvSink;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     FrameSource interface                                       */
+/*                                     FrameSource interface                                       */
+/*                                     FrameSource interface                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Source of camera image frames for the frame grab loop - a live camera CvSink or a replay of a
+ * recorded session. The methods follow the CvSink usage so the loop is the same for either.
+ */
+interface FrameSource
+{
+    /**
+     * Wait for the next frame and copy it into image
+     * @param image destination of the frame
+     * @param timeout seconds to wait for a frame
+     * @return frame time or 0 on error or no more frames
+     */
+    long grabFrame(Mat image, double timeout);
+
+    /**
+     * @return description of the last error
+     */
+    String getError();
+
+    /**
+     * @return true if there will never be another frame (end of a replay); a live camera never ends
+     */
+    default boolean isExhausted()
+    {
+        return false;
+    }
+
+    /**
+     * @return true if frames arrive at the camera's pace whether or not they are taken (not a replay)
+     */
+    default boolean isLive()
+    {
+        return true;
+    }
+
+    /**
+     * Release the source
+     */
+    default void close()
+    {
+    }
+
+    /**
+     * @param sink live camera from CameraUSB or CameraHTTP
+     * @return the camera as a FrameSource
+     */
+    static FrameSource of(CvSink sink)
+    {
+        return new FrameSource()
+        {
+            public long grabFrame(Mat image, double timeout)
+            {
+                return sink.grabFrame(image, timeout);
+            }
+
+            public String getError()
+            {
+                return sink.getError();
+            }
+        };
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End FrameSource interface                                   */
+/*                                     End FrameSource interface                                   */
+/*                                     End FrameSource interface                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
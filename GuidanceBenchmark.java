@@ -0,0 +1,391 @@
+package Guidance;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     GuidanceBenchmark class                                     */
+/*                                     GuidanceBenchmark class                                     */
+/*                                     GuidanceBenchmark class                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Micro-benchmarks of the guidance hot paths run by the -benchmark option.
+ *
+ * The fixtures are the same every run: frames of the ChArUco board rendered by the SyntheticSource
+ * camera at its fixed POSES, its ground truth camera matrix K and distortion cdist, and the keyframes
+ * of the corners detected in those frames.
+ *
+ * Each benchmark is run for WARMUP_ITERATIONS seconds to let the JIT compile it and then for
+ * MEASUREMENT_ITERATIONS seconds that are timed; the mean time per operation and its spread over
+ * the timed seconds are logged. The results are written to benchmark.csv. If there is a
+ * benchmark_baseline.csv (a copy of an earlier benchmark.csv) each result is compared to it and a
+ * warning is logged for any that are slower by more than Cfg.benchmarkRegression.
+ */
+class GuidanceBenchmark
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final String RESULTS = "benchmark.csv";
+    private static final String BASELINE = "benchmark_baseline.csv";
+
+    static volatile long sink; // results of the operations so they can't be optimized away
+
+    private final Size img_size;
+    private final Mat K = new Mat(); // synthetic camera ground truth
+    private final Mat cdist = new Mat();
+    private final List<Mat> frames = new ArrayList<>();
+    private final List<keyframe> keyframes = new ArrayList<>();
+    private final Map<String, Double> results = new HashMap<>(); // ms per operation
+    private final String filter;
+
+    private GuidanceBenchmark(Size img_size, String filter)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.img_size = img_size;
+        this.filter = filter.equalsIgnoreCase("all") ? "" : filter;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     run                                                         */
+/*                                     run                                                         */
+/*                                     run                                                         */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Run the benchmarks
+     * @param img_size frame size of the fixtures
+     * @param filter run the benchmarks whose names contain this; "all" for all
+     */
+    static void run(Size img_size, String filter)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        GuidanceBenchmark benchmark = new GuidanceBenchmark(img_size, filter);
+        benchmark.fixtures();
+        benchmark.benchmarks();
+        benchmark.report();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     fixtures                                                    */
+/*                                     fixtures                                                    */
+/*                                     fixtures                                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Make the fixed frames and keyframes
+     */
+    private void fixtures()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SyntheticSource camera = new SyntheticSource(this.img_size, 0.);
+        camera.K().copyTo(this.K);
+        camera.cdist().reshape(1, 1).copyTo(this.cdist); // row like the calibrated cdist
+
+        ChArucoDetector tracker = new ChArucoDetector(this.img_size);
+        double[] pose = new double[6];
+        for (int i = 0; i < SyntheticSource.POSES.length; i++)
+        {
+            camera.pose(SyntheticSource.POSES[i], pose);
+            Mat frame = new Mat();
+            camera.render(pose, frame, i);
+            this.frames.add(frame);
+
+            tracker.detect(frame);
+            if (tracker.N_pts() >= Cfg.minCorners)
+            {
+                this.keyframes.add(tracker.get_calib_pts());
+            }
+        }
+
+        LOGGER.info(this.frames.size() + " fixture frames " + this.img_size + ", " + this.keyframes.size() + " keyframes");
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     benchmarks                                                  */
+/*                                     benchmarks                                                  */
+/*                                     benchmarks                                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void benchmarks()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        // intrinsics as calibrated from all the fixture keyframes
+        Calibrator calib = new Calibrator(this.img_size);
+        calib.keyframes.addAll(this.keyframes);
+        calib.calibrate(new ArrayList<>(), true);
+
+        // ChArucoDetector
+        ChArucoDetector tracker = new ChArucoDetector(this.img_size);
+        tracker.set_intrinsics(calib);
+        int[] next = {0};
+        measure("ChArucoDetector.detect", () -> {
+            Mat frame = this.frames.get(next[0]++ % this.frames.size()); // the board moves every frame
+            return tracker.detect(frame) ? 1 : 0;
+        });
+
+        tracker.detect(this.frames.get(0));
+        measure("ChArucoDetector.update_pose", () -> tracker.update_pose() ? 1 : 0);
+        measure("ChArucoDetector.computeMeanFlow", () -> {
+            tracker.computeMeanFlow();
+            return (long)tracker.mean_flow();
+        });
+
+        // UserGuidance
+        MatPool pool = new MatPool();
+        UserGuidance ugui = new UserGuidance(tracker, Cfg.var_terminate, this.img_size, pool);
+        Mat progressInsert = new Mat(this.img_size, CvType.CV_8UC1);
+        measure("UserGuidance.pose_close_to_tgt", () -> {
+            double jaccard = ugui.pose_close_to_tgt(progressInsert);
+            pool.endFrame();
+            return Double.doubleToLongBits(jaccard);
+        });
+        Mat out = new Mat();
+        measure("UserGuidance.draw", () -> {
+            this.frames.get(0).copyTo(out);
+            ugui.draw(out, false);
+            return out.dataAddr();
+        });
+
+        // BoardPreview
+        BoardPreview preview = new BoardPreview(tracker.boardImage);
+        measure("BoardPreview.create_maps", () -> { // the maps are cached by DistortionMapCache
+            preview.create_maps(this.K, this.cdist, this.img_size);
+            return 0;
+        });
+        PoseGeneratorDist posegen = new PoseGeneratorDist(this.img_size);
+        Mat bbox = new Mat(3, 1, CvType.CV_64FC1);
+        bbox.put(0, 0, Cfg.board_x*Cfg.square_len, Cfg.board_y*Cfg.square_len, Cfg.board_x*Cfg.square_len);
+        List<Mat> rt = posegen.get_pose(bbox, 0, 0, this.K, this.cdist);
+        Mat projected = new Mat();
+        measure("BoardPreview.project", () -> {
+            preview.project(rt.get(0), rt.get(1), false, Imgproc.INTER_NEAREST, projected);
+            return projected.dataAddr();
+        });
+
+        // Distortion (not cached)
+        measure("Distortion.make_distort_map", () -> {
+            Mat maps = Distortion.make_distort_map(this.K, this.img_size, this.cdist, this.K);
+            long size = maps.total();
+            maps.release();
+            return size;
+        });
+        int subsample = 20;
+        measure("Distortion.sparse_undistort_map", () -> {
+            List<Mat> maps = Distortion.sparse_undistort_map(this.K, this.img_size, this.cdist, this.K, subsample);
+            long size = maps.get(0).total();
+            maps.forEach(Mat::release);
+            return size;
+        });
+        List<Mat> sparse = Distortion.sparse_undistort_map(this.K, this.img_size, this.cdist, this.K, subsample);
+        Mat mask = Mat.zeros(new Size(Math.floor(this.img_size.width/subsample), Math.floor(this.img_size.height/subsample)), CvType.CV_8UC1);
+        measure("Distortion.loc_from_dist", () -> {
+            Object bounds = Distortion.loc_from_dist(sparse.get(1), sparse.get(0), mask, false, 1.);
+            return bounds == null ? 0 : 1;
+        });
+
+        // PoseGeneratorDist
+        measure("PoseGeneratorDist.get_pose orbital", () -> {
+            List<Mat> pose = posegen.get_pose(bbox, 2, 0, this.K, this.cdist); // focal length target
+            pose.forEach(Mat::release);
+            return pose.size();
+        });
+        measure("PoseGeneratorDist.get_pose distortion", () -> {
+            // new generator each time so the distortion pose always has an empty mask to place in
+            PoseGeneratorDist generator = new PoseGeneratorDist(this.img_size);
+            List<Mat> pose = generator.get_pose(bbox, 2, 4, this.K, this.cdist); // k1 target
+            pose.forEach(Mat::release);
+            return pose.size();
+        });
+
+        // Calibrator
+        for (int n : new int[] {5, 10, 20})
+        {
+            if (n > this.keyframes.size())
+            {
+                LOGGER.warning("Calibrator.calibrate " + n + " keyframes skipped; only " + this.keyframes.size() + " fixture keyframes detected");
+                continue;
+            }
+            List<keyframe> captures = this.keyframes.subList(0, n);
+            measure("Calibrator.calibrate " + n + " keyframes", () -> {
+                Calibrator calibrator = new Calibrator(this.img_size);
+                calibrator.keyframes.addAll(captures);
+                return calibrator.calibrate(new ArrayList<>(), true).length;
+            });
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     measure                                                     */
+/*                                     measure                                                     */
+/*                                     measure                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Warm up and time an operation
+     * @param name
+     * @param operation returns something of its result to keep it from being optimized away
+     */
+    private void measure(String name, LongSupplier operation)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if ( ! name.contains(this.filter))
+        {
+            return;
+        }
+
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++)
+        {
+            iterate(operation);
+        }
+
+        double[] msPerOp = new double[MEASUREMENT_ITERATIONS];
+        long operations = 0;
+        for (int iteration = 0; iteration < MEASUREMENT_ITERATIONS; iteration++)
+        {
+            long[] timed = iterate(operation);
+            msPerOp[iteration] = timed[0] / 1.e6 / timed[1];
+            operations += timed[1];
+        }
+
+        double mean = 0.;
+        for (double ms : msPerOp)
+        {
+            mean += ms;
+        }
+        mean /= MEASUREMENT_ITERATIONS;
+        double variance = 0.;
+        for (double ms : msPerOp)
+        {
+            variance += (ms - mean)*(ms - mean);
+        }
+        double stddev = Math.sqrt(variance / (MEASUREMENT_ITERATIONS - 1));
+
+        this.results.put(name, mean);
+        LOGGER.info(String.format("%-45s %10.4f ms/op +- %.4f (%d ops)", name, mean, stddev, operations));
+    }
+
+    /**
+     * @param operation
+     * @return nanoseconds and number of operations of one iteration
+     */
+    private static long[] iterate(LongSupplier operation)
+    {
+        long result = 0;
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            result += operation.getAsLong();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        sink += result;
+        return new long[] {elapsed, operations};
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     report                                                      */
+/*                                     report                                                      */
+/*                                     report                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Save the results and compare them to the baseline
+     */
+    private void report()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        try (PrintWriter csv = new PrintWriter(RESULTS))
+        {
+            csv.println("benchmark,ms per op");
+            this.results.forEach((name, ms) -> csv.println(name + "," + ms));
+        }
+        catch (IOException e)
+        {
+            LOGGER.warning("benchmark results not saved " + e);
+        }
+
+        Path baseline = Paths.get(BASELINE);
+        if ( ! Files.exists(baseline))
+        {
+            return;
+        }
+        try
+        {
+            for (String line : Files.readAllLines(baseline))
+            {
+                String[] fields = line.split(",");
+                Double ms = this.results.get(fields[0]);
+                if (fields.length != 2 || ms == null || fields[1].equals("ms per op"))
+                {
+                    continue;
+                }
+                double before = Double.parseDouble(fields[1]);
+                double change = (ms - before) / before;
+                if (change > Cfg.benchmarkRegression)
+                {
+                    LOGGER.warning(String.format("%s is %.0f%% slower than the baseline (%.4f ms/op was %.4f)", fields[0], change*100., ms, before));
+                }
+                else
+                {
+                    LOGGER.info(String.format("%s %+.0f%% of the baseline", fields[0], change*100.));
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            LOGGER.warning("benchmark baseline not read " + e);
+        }
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End GuidanceBenchmark class                                 */
+/*                                     End GuidanceBenchmark class                                 */
+/*                                     End GuidanceBenchmark class                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
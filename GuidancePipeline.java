@@ -0,0 +1,421 @@
+package Guidance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import edu.wpi.first.cscore.CvSource;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     GuidancePipeline class                                      */
+/*                                     GuidancePipeline class                                      */
+/*                                     GuidancePipeline class                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Optional pipelined frame loop. The serial loop in Main grabs, detects, guides and displays
+ * one frame at a time so a slow stage stalls the camera and frames are dropped by the camera.
+ *
+ * Here each stage runs on its own thread:
+ *   capture  - FrameSource.grabFrame (camera or replay)
+ *   detect   - ChArucoDetector.find_corners (the OpenCV detectBoard) on its own detector instance
+ *   guidance - the rest of FindBoardCornersGuidancePipe (pose, scoring, calibration, overlay)
+ *   display  - MJPEG output (none if headless)
+ * joined by LatestFrameQueues so a stage that falls behind works on the newest frame and the
+ * older frames are dropped (and counted) at the hand-off.
+ *
+ * A replay isn't dropped; the stages wait for each other and when the replay runs out the
+ * frames in flight are finished before the pipeline stops.
+ */
+public class GuidancePipeline
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    /**
+     * The guidance stage work for one frame
+     */
+    interface GuidanceStage
+    {
+        /**
+         * @param img camera image
+         * @param ccorners corners found in img
+         * @param cids ids of the corners found in img
+         * @param tracked the corners were tracked by optical flow, not detected
+         * @param out display image to be filled in
+         * @return false to stop the pipeline
+         */
+        boolean process(Mat img, Mat ccorners, Mat cids, boolean tracked, Mat out) throws Exception;
+    }
+
+    /**
+     * Everything that moves down the pipeline for one camera frame
+     */
+    static class FramePacket
+    {
+        final Mat img = new Mat(); // camera image
+        final Mat ccorners = new Mat(); // detected corners
+        final Mat cids = new Mat(); // detected corner ids
+        boolean tracked; // corners tracked by optical flow, not detected
+        final Mat out = new Mat(); // user display
+        long frameNumber;
+
+        void release()
+        {
+            img.release();
+            ccorners.release();
+            cids.release();
+            out.release();
+        }
+    }
+
+    private final FrameSource capture;
+    private final Size img_size;
+    private final ChArucoDetector cornerFinder; // detect stage's own detector; not shared with the guidance stage
+    private final GuidanceStage guidanceStage;
+    private final CvSource networkDisplay;
+
+    private final LatestFrameQueue<FramePacket> detectQueue;
+    private final LatestFrameQueue<FramePacket> guidanceQueue;
+    private final LatestFrameQueue<FramePacket> displayQueue;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final List<Thread> stages = new ArrayList<>(4);
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     GuidancePipeline constructor                                */
+/*                                     GuidancePipeline constructor                                */
+/*                                     GuidancePipeline constructor                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param capture camera image source
+     * @param img_size camera image size; a change in size stops the pipeline
+     * @param guidanceStage guidance processing of each frame
+     * @param networkDisplay user display or null if headless
+     */
+    GuidancePipeline(FrameSource capture, Size img_size, GuidanceStage guidanceStage, CvSource networkDisplay)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.capture = capture;
+        this.img_size = img_size;
+        this.cornerFinder = new ChArucoDetector(img_size);
+        this.guidanceStage = guidanceStage;
+        this.networkDisplay = networkDisplay;
+
+        boolean dropOldest = capture.isLive(); // a live camera doesn't wait for slow stages; a replay does
+        this.detectQueue = new LatestFrameQueue<>("detect", Cfg.pipelineQueueDepth, FramePacket::release, dropOldest);
+        this.guidanceQueue = new LatestFrameQueue<>("guidance", Cfg.pipelineQueueDepth, FramePacket::release, dropOldest);
+        this.displayQueue = new LatestFrameQueue<>("display", Cfg.pipelineQueueDepth, FramePacket::release, dropOldest);
+        Metrics.counter("guidance_frames_dropped_total{queue=\"detect\"}", this.detectQueue::dropped);
+        Metrics.counter("guidance_frames_dropped_total{queue=\"guidance\"}", this.guidanceQueue::dropped);
+        Metrics.counter("guidance_frames_dropped_total{queue=\"display\"}", this.displayQueue::dropped);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     run                                                         */
+/*                                     run                                                         */
+/*                                     run                                                         */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Start the stage threads and wait for the pipeline to stop
+     * @throws InterruptedException
+     */
+    void run() throws InterruptedException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        running.set(true);
+
+        stages.add(new Thread(this::captureStage, "capture"));
+        stages.add(new Thread(this::detectStage, "detect"));
+        stages.add(new Thread(this::guidanceStage, "guidance"));
+        stages.add(new Thread(this::displayStage, "display"));
+
+        for (Thread stage : stages)
+        {
+            stage.start();
+        }
+
+        try {
+            for (Thread stage : stages)
+            {
+                stage.join();
+            }
+        }
+        finally {
+            stop();
+            detectQueue.clear();
+            guidanceQueue.clear();
+            displayQueue.clear();
+            logStats();
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     stop                                                        */
+/*                                     stop                                                        */
+/*                                     stop                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Ask all the stages to quit
+     */
+    void stop()
+    {
+        if (running.getAndSet(false))
+        {
+            for (Thread stage : stages)
+            {
+                if (stage != Thread.currentThread())
+                {
+                    stage.interrupt();
+                }
+            }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     captureStage                                                */
+/*                                     captureStage                                                */
+/*                                     captureStage                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void captureStage()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        long frameNumber = 0;
+        try {
+            while (running.get() && ! Thread.interrupted())
+            {
+                FramePacket packet = new FramePacket();
+                long start = System.nanoTime();
+                long status = capture.grabFrame(packet.img, 0.5);
+                Metrics.grab.record(start);
+                if (status == 0)
+                {
+                    packet.release();
+                    if (capture.isExhausted())
+                    {
+                        break; // end of replay - let the frames in flight finish
+                    }
+                    Metrics.grabErrors.incrementAndGet();
+                    LOGGER.warning("grabFrame error " + capture.getError());
+                    continue; // pretend frame never happened
+                }
+
+                Size size = packet.img.size();
+                if ( ! img_size.equals(size))
+                {
+                    // if image size changes during calibration bail out and get ready to calibrate again with new size
+                    LOGGER.warning("changing image size to " + size + " from " + img_size + ", quitting guidance calibration");
+                    packet.release();
+                    stop();
+                    break;
+                }
+
+                packet.frameNumber = ++frameNumber;
+                detectQueue.put(packet);
+            }
+        }
+        catch (InterruptedException e) {
+            // normal stop
+        }
+        catch (Exception e) {
+            LOGGER.severe("capture stage failed " + e);
+            stop();
+        }
+        finally {
+            detectQueue.close();
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     detectStage                                                 */
+/*                                     detectStage                                                 */
+/*                                     detectStage                                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void detectStage()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        try {
+            while (running.get() && ! Thread.interrupted())
+            {
+                FramePacket packet = detectQueue.take(100);
+                if (packet == null)
+                {
+                    if (detectQueue.isDrained())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                long start = System.nanoTime();
+                boolean found = cornerFinder.find_corners(packet.img, packet.ccorners, packet.cids);
+                Metrics.detect_pts.record(start);
+                if ( ! found)
+                {
+                    // detector failed on this frame; guidance sees it as no corners
+                    packet.ccorners.release();
+                    packet.cids.release();
+                }
+                packet.tracked = cornerFinder.corners_tracked();
+                guidanceQueue.put(packet);
+            }
+        }
+        catch (InterruptedException e) {
+            // normal stop
+        }
+        catch (Exception e) {
+            LOGGER.severe("detect stage failed " + e);
+            stop();
+        }
+        finally {
+            guidanceQueue.close();
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     guidanceStage                                               */
+/*                                     guidanceStage                                               */
+/*                                     guidanceStage                                               */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void guidanceStage()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        long framesProcessed = 0;
+        try {
+            while (running.get() && ! Thread.interrupted())
+            {
+                FramePacket packet = guidanceQueue.take(100);
+                if (packet == null)
+                {
+                    if (guidanceQueue.isDrained())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+
+                if ( ! guidanceStage.process(packet.img, packet.ccorners, packet.cids, packet.tracked, packet.out))
+                {
+                    packet.release();
+                    stop();
+                    break; // calibration completed or cancelled
+                }
+
+                displayQueue.put(packet);
+
+                if (++framesProcessed % Cfg.pipelineStatsFrames == 0)
+                {
+                    logStats();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // normal stop
+        }
+        catch (Exception e) {
+            LOGGER.severe("guidance stage failed " + e);
+            stop();
+        }
+        finally {
+            displayQueue.close();
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     displayStage                                                */
+/*                                     displayStage                                                */
+/*                                     displayStage                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void displayStage()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        try {
+            while (running.get() && ! Thread.interrupted())
+            {
+                FramePacket packet = displayQueue.take(100);
+                if (packet == null)
+                {
+                    if (displayQueue.isDrained())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                if (networkDisplay != null)
+                {
+                    long start = System.nanoTime();
+                    networkDisplay.putFrame(packet.out);
+                    Metrics.putFrame.record(start);
+                }
+                packet.release();
+            }
+        }
+        catch (InterruptedException e) {
+            // normal stop
+        }
+        catch (Exception e) {
+            LOGGER.severe("display stage failed " + e);
+        }
+        finally {
+            stop();
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     logStats                                                    */
+/*                                     logStats                                                    */
+/*                                     logStats                                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private void logStats()
+    {
+        LOGGER.fine(() -> "pipeline " + detectQueue.stats() + "; " + guidanceQueue.stats() + "; " + displayQueue.stats());
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End GuidancePipeline class                                  */
+/*                                     End GuidancePipeline class                                  */
+/*                                     End GuidancePipeline class                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
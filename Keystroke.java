@@ -49,7 +49,7 @@ class Keystroke implements Runnable
                 System.out.println("Pose should auto capture otherwise, press c (capture), m (mirror); q (quit calibrating or focusing) then the Enter key");
                 String entered = keyboard.next();
                 int keyScanner = entered.charAt(0);
-                LOGGER.finest("user entered " + entered + ", action is " + keyScanner + " " + String.valueOf(Character.toChars(keyScanner)));
+                LOGGER.finest(() -> "user entered " + entered + ", action is " + keyScanner + " " + String.valueOf(Character.toChars(keyScanner)));
                 // map Scanner character codes to OpenCV character codes
                 if (keyScanner == keyCaptureScanner)
                 {
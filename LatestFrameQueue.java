@@ -0,0 +1,235 @@
+package Guidance;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     LatestFrameQueue class                                      */
+/*                                     LatestFrameQueue class                                      */
+/*                                     LatestFrameQueue class                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Bounded hand-off between two pipeline stages with a "latest frame wins" policy.
+ *
+ * For a live camera the producer never waits. If the consumer has fallen behind and the queue
+ * is full, the oldest item is discarded to make room for the new one and counted as a drop.
+ *
+ * For a replay every frame counts so instead the producer waits for room in the queue.
+ *
+ * The producer closes the queue when it has no more items and the consumer stops when the
+ * queue is drained.
+ *
+ * @param <T> item handed off between the stages
+ */
+class LatestFrameQueue<T>
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private final String name;
+    private final int capacity;
+    private final ArrayDeque<T> queue;
+    private final Consumer<T> discard; // cleanup of dropped items (release their Mats)
+    private final boolean dropOldest; // false to make the producer wait instead of dropping
+    private boolean closed = false; // producer finished
+
+    // statistics
+    private long offered = 0;
+    private long dropped = 0;
+    private int maxDepth = 0;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     LatestFrameQueue constructor                                */
+/*                                     LatestFrameQueue constructor                                */
+/*                                     LatestFrameQueue constructor                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param name stage name for the statistics
+     * @param capacity maximum number of items waiting (at least 1)
+     * @param discard called with each item that is dropped or cleared
+     * @param dropOldest true to drop the oldest item when full; false to wait for room
+     */
+    LatestFrameQueue(String name, int capacity, Consumer<T> discard, boolean dropOldest)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayDeque<>(this.capacity);
+        this.discard = discard;
+        this.dropOldest = dropOldest;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     put                                                         */
+/*                                     put                                                         */
+/*                                     put                                                         */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Add an item. If the queue is full either the oldest item is dropped or the
+     * producer waits for room.
+     * @param item
+     * @throws InterruptedException
+     */
+    synchronized void put(T item) throws InterruptedException
+    {
+        while ( ! this.dropOldest && this.queue.size() >= this.capacity)
+        {
+            wait();
+        }
+
+        if (this.queue.size() >= this.capacity)
+        {
+            this.discard.accept(this.queue.pollFirst()); // latest frame wins
+            this.dropped++;
+        }
+        this.queue.addLast(item);
+        this.offered++;
+        this.maxDepth = Math.max(this.maxDepth, this.queue.size());
+        notifyAll();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     take                                                        */
+/*                                     take                                                        */
+/*                                     take                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Remove the oldest item waiting, waiting for one if necessary
+     * @param timeoutMillis maximum wait
+     * @return the item or null if none arrived in time
+     * @throws InterruptedException
+     */
+    synchronized T take(long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (this.queue.isEmpty())
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                return null;
+            }
+            if (this.closed)
+            {
+                return null; // drained
+            }
+            wait(remaining);
+        }
+        notifyAll(); // room for a waiting producer
+        return this.queue.pollFirst();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Producer has no more items
+     */
+    synchronized void close()
+    {
+        this.closed = true;
+        notifyAll();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     isDrained                                                   */
+/*                                     isDrained                                                   */
+/*                                     isDrained                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @return true if the producer is finished and the consumer has taken everything
+     */
+    synchronized boolean isDrained()
+    {
+        return this.closed && this.queue.isEmpty();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     clear                                                       */
+/*                                     clear                                                       */
+/*                                     clear                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Discard all waiting items (at shutdown)
+     */
+    synchronized void clear()
+    {
+        while ( ! this.queue.isEmpty())
+        {
+            this.discard.accept(this.queue.pollFirst());
+        }
+        notifyAll();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     dropped                                                     */
+/*                                     dropped                                                     */
+/*                                     dropped                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @return number of items dropped because the queue was full
+     */
+    synchronized long dropped()
+    {
+        return this.dropped;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     stats                                                       */
+/*                                     stats                                                       */
+/*                                     stats                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @return queue depth and drop counters formatted for the log
+     */
+    synchronized String stats()
+    {
+        return String.format("%s queue depth %d/%d (max %d), offered %d, dropped %d",
+            this.name, this.queue.size(), this.capacity, this.maxDepth, this.offered, this.dropped);
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End LatestFrameQueue class                                  */
+/*                                     End LatestFrameQueue class                                  */
+/*                                     End LatestFrameQueue class                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
@@ -14,10 +14,13 @@ import java.util.logging.SimpleFormatter;
  * Direct all messages to the log file without colors.
  * 
  * Direct all messages to the consle (terminal) with colors.
+ *
+ * Both are written on a log writer thread (AsyncLogHandler).
  */
 public class LoggerSetup {
 
     private static Logger LOGGER;  
+    private static AsyncLogHandler asyncHandler;
 
     public static Logger setupLogger() {
 
@@ -44,19 +47,29 @@ public class LoggerSetup {
 
     logFile.setFormatter(new SimpleFormatter());
 
-    LOGGER.addHandler(consoleHandler);
+    // the console and the file are written on their own thread so logging never waits on them
+    asyncHandler = new AsyncLogHandler(Cfg.logQueueCapacity, Cfg.logOverflowPolicy, consoleHandler, logFile);
 
-    LOGGER.addHandler(logFile);
+    LOGGER.addHandler(asyncHandler);
 
-    handlers = LOGGER.getHandlers();
-    for(Handler handler : handlers) {
-        handler.setLevel(Cfg.loggerMinimumLevel);
-    }
+    Runtime.getRuntime().addShutdownHook(new Thread(asyncHandler::close, "log flush")); // write what's queued
+
+    asyncHandler.setTargetLevel(Cfg.loggerMinimumLevel);
     LOGGER.setLevel(Cfg.loggerMinimumLevel);
-    Logger.getLogger("").getHandlers()[0].setLevel(Level.FINEST);
+    consoleHandler.setLevel(Level.FINEST);
 
     return LOGGER;
     }
+
+    /**
+     * change the minimum level logged after the setup, for example from a runtime option
+     * @param level
+     */
+    public static void setLevel(Level level) {
+
+    asyncHandler.setTargetLevel(level);
+    LOGGER.setLevel(level);
+    }
     // test logging
     // LOGGER.finest("a finest message");
     // LOGGER.finer("a finer message");
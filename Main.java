@@ -11,6 +11,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,19 +23,13 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.lang3.tuple.Pair;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.objdetect.CharucoBoard;
-import org.opencv.objdetect.Dictionary;
-import org.opencv.objdetect.Objdetect;
 
 import Guidance.CVPipe.CVPipeResult;
 import Guidance.FindBoardCornersGuidancePipe.FindBoardCornersGuidancePipeResult;
-import edu.wpi.first.cscore.CvSink;
 import edu.wpi.first.cscore.CvSource;
 import edu.wpi.first.cscore.MjpegServer;
 import edu.wpi.first.util.PixelFormat;
@@ -82,8 +77,14 @@ public class Main {
     private static FindBoardCornersGuidancePipe findBoardCornersGuidancePipe;
     private static CVPipeResult<FindBoardCornersGuidancePipeResult> findBoardCornersGuidancePipeResult;
 
-    private static PrintWriter vnlog = null; // first time switch value is null
-    private static VideoCreation video = null; // first time switch value is null
+    private static SnapshotWriter snapshotWriter = null; // first time switch value is null
+
+    // calibration frame processing state - shared by the serial frame loop and the pipelined guidance stage
+    private static Keystroke keystroke;
+    private static boolean remoteCamera;
+    private static FindBoardCornersGuidancePipe.FindCornersGuidancePipeParams param;
+    private static long holdMessageTimer;
+    private static boolean recentSnapshot;
 
     ///////////////////////////// USER INPUT ARGUMENTS ///////////////////////////////
     // camera ID instructions:
@@ -103,9 +104,15 @@ public class Main {
 
     static boolean focus; // specify focus mode (or calibration mode if focus mode is false)
     static boolean logSnapshot; // specify saving images and corners used for calibration
+    static boolean pipelined; // specify capture, detect, guidance and display each on their own thread
+    static String replay; // recorded video file or snapshot directory to process headless instead of a camera
+    static String synthetic; // frames per second of the synthetic camera used instead of a camera; 0 for as fast as taken
+    static String export; // session file to export as image files, video and vnlog instead of calibrating
+    static String benchmark; // run the benchmarks whose names contain this ("all" for all) instead of calibrating
 
     // output URL port - focus and calibration modes
     static int displayPort;
+    static int metricsPort; // Prometheus metrics; 0 for none
     ///////////////////////////// END USER INPUT ARGUMENTS ///////////////////////////////
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -131,38 +138,62 @@ public class Main {
             System.exit(0);
         }
 
-        // establish keyboard handler
-        Keystroke keystroke;
+        if (benchmark != null) {
+            GuidanceBenchmark.run(new Size(image_width, image_height), benchmark);
+            return;
+        }
+
+        if (export != null) {
+            SessionFile.export(export);
+            return;
+        }
+
+        // establish keyboard handler - none for a headless replay; its keystroke is always keyNone
         Thread keyboardThread;
         keystroke = new Keystroke();
-        keyboardThread = new Thread(keystroke, "keys");
-        keyboardThread.setDaemon(true);
-        keyboardThread.start();
+        if (replay == null) {
+            keyboardThread = new Thread(keystroke, "keys");
+            keyboardThread.setDaemon(true);
+            keyboardThread.start();
+        }
 
-        // image input source - determine if USB attached camera or URL for remote camera
-        CvSink capture;
+        // image input source - determine if replay, USB attached camera or URL for remote camera
+        FrameSource capture;
 
-        var remoteCamera = camId.toLowerCase().contains("http://"); // assume it's a URL remote feed or not
+        remoteCamera = replay == null && synthetic == null && camId.toLowerCase().contains("http://"); // assume it's a URL remote feed or not
 
+        if (replay != null) {
+            capture = new ReplaySource(replay);
+        }
+        else
+        if (synthetic != null) {
+            capture = new SyntheticSource(new Size(image_width, image_height), Double.parseDouble(synthetic));
+        }
+        else
         if (remoteCamera) {
-            capture = CameraHTTP.getSource(
+            capture = FrameSource.of(CameraHTTP.getSource(
                 camId.substring(0, camId.indexOf(",")),
-                camId.substring(camId.indexOf(",") + 1).trim());
+                camId.substring(camId.indexOf(",") + 1).trim()));
         }
         else { // assume it's an integer camera id
-            capture = CameraUSB.getSource(Integer.parseInt(camId), image_width, image_height, fps, pixelFormat);            
+            capture = FrameSource.of(CameraUSB.getSource(Integer.parseInt(camId), image_width, image_height, fps, pixelFormat));            
         }
 
         Mat img = new Mat();
 
-        // output display for pose guidance board with input image or focus board
+        // output display for pose guidance board with input image or focus board - none for a headless replay
         CvSource networkDisplay = null;
-        MjpegServer mjpegServer;
-        networkDisplay = new CvSource("calibPV", PixelFormat.kMJPEG,
-                image_height, image_width, fps);
-        mjpegServer = new MjpegServer("GuidanceView", displayPort);
-        mjpegServer.setSource(networkDisplay);
-        LOGGER.config("View Guidance Board with Camera Image On Port " + displayPort);
+        MjpegServer mjpegServer = null;
+        if (replay == null) {
+            networkDisplay = new CvSource("calibPV", PixelFormat.kMJPEG,
+                    image_height, image_width, fps);
+            mjpegServer = new MjpegServer("GuidanceView", displayPort);
+            mjpegServer.setSource(networkDisplay);
+            LOGGER.config("View Guidance Board with Camera Image On Port " + displayPort);
+            if (metricsPort != 0) {
+                Metrics.serve(metricsPort);
+            }
+        }
 
         // Grab first good image from camera to set the size.
 
@@ -180,6 +211,13 @@ public class Main {
                 break;
             }
             else
+            if (capture.isExhausted())
+            {
+                LOGGER.severe("no image to replay " + capture.getError());
+                capture.close();
+                return;
+            }
+            else
             {
                 LOGGER.warning("initial grabFrame error " + capture.getError() + " - retrying");
             }
@@ -190,9 +228,12 @@ public class Main {
         Mat out = new Mat(); // user display Mat
 
         findBoardCornersGuidancePipe = new FindBoardCornersGuidancePipe();
+        if (capture instanceof SyntheticSource) {
+            ((SyntheticSource)capture).follow(() -> findBoardCornersGuidancePipe.ugui); // the synthetic user aligns the board with the guidance
+        }
 
         // initialize the params - "save" and "mirror" can change with each image frame
-        var param = new FindBoardCornersGuidancePipe.FindCornersGuidancePipeParams(
+        param = new FindBoardCornersGuidancePipe.FindCornersGuidancePipeParams(
             false,
             false,
             Cfg.board_x,
@@ -204,17 +245,32 @@ public class Main {
 
         findBoardCornersGuidancePipe.setParams(param);
         findBoardCornersGuidancePipeResult = null;
-        long holdMessageTimer = System.currentTimeMillis();
-        var recentSnapshot = false;
-        
+        holdMessageTimer = System.currentTimeMillis();
+        recentSnapshot = false;
+
+        // pipelined calibration - capture, detect, guide and display each run on their own thread
+        boolean runPipelined = pipelined && ! focus;
+        if (runPipelined) {
+            LOGGER.config("Pipelined capture, detect, guidance and display stages");
+            GuidancePipeline pipeline = new GuidancePipeline(capture, img_size,
+                (frame, ccorners, cids, tracked, display) -> {
+                    findBoardCornersGuidancePipe.setDetection(ccorners, cids, tracked); // detect stage already found the corners
+                    return calibrationFrame(frame, display);
+                },
+                networkDisplay);
+            pipeline.run();
+        }
+
         // Grab a camera image, process it, and interpret any keyed entry commands.
         // Loop until calibration is automatically complete or user quits (especially focus mode).
 
         frameGrabLoop:
-        while ( ! Thread.interrupted()) {
+        while ( ! runPipelined && ! Thread.interrupted()) {
 
             // get an image frame and validate it
+            long start = System.nanoTime();
             long status = capture.grabFrame(img, 0.5);
+            Metrics.grab.record(start);
             if (status != 0)
             {
                 img_size = new Size(img.width(), img.height());
@@ -227,7 +283,14 @@ public class Main {
                 }
             }
             else
+            if (capture.isExhausted())
+            {
+                LOGGER.info("Replay ended before calibration completed");
+                break frameGrabLoop; // quit
+            }
+            else
             {
+                Metrics.grabErrors.incrementAndGet();
                 LOGGER.warning("grabFrame error " + capture.getError());
                 continue frameGrabLoop; // pretend frame never happened - rkt addition; original reprocessed previous frame
             }
@@ -258,102 +321,135 @@ public class Main {
 
             // calibrate mode processing
             else {
-
-                // calibration image frame initialization
-                param.save = false;
-                
-                // get any user keyed input useful for calibration mode (ignore the rest)
-                switch (keystroke.getKey())
-                {
-                    case Keystroke.keyNone: // no key press to process
-                            break;
-                    case Keystroke.keyTerminate:
-                            LOGGER.info("Pose Guidance Camera action CANCELLED");
-                            break frameGrabLoop; // quit
-                    case Keystroke.keyMirrorToggle:
-                            LOGGER.info("Toggled mirror guidance");
-                            param.mirror = ! param.mirror;
-                            break;
-                    case Keystroke.keyCapture:
-                            LOGGER.info("Forced capture snapshot");
-                            param.save = true; // it's one frame behind what user sees but it's usually too fast to notice
-                            break;
-                    default: // unassigned key
-                            break;
-                }
-
-                findBoardCornersGuidancePipe.setParams(param); // update find corners params in case they changed
-                var images = Pair.of(img,out ); // define the find corners input and output
-                findBoardCornersGuidancePipeResult = findBoardCornersGuidancePipe.run(images);
-
-                // act on find corners results
-                if (findBoardCornersGuidancePipeResult.output.madeSnapshot)
-                {
-                    // The guidance program saves elsewhere its own snapshot needed for guidance and notifies us here.
-                    // In addition, corners and images could be logged here and saved snapshots could be further
-                    // processed by say Mr.Cal.
-                    if (logSnapshot) {
-                        logSnapshot(img, findBoardCornersGuidancePipeResult);
-                    }
-
-                    recentSnapshot = true; // trigger snapshot display message
-
-                    LOGGER.info("Snapshot taken");
-                }
-
-                // if calibrating on another program user needs to inform it of this guidance pose snapshot
-                if (recentSnapshot && remoteCamera && (holdMessageTimer + Cfg.messageHoldTime) > System.currentTimeMillis()) {
-                    Imgproc.putText(out, "HOLD STEADY", new Point(0.,  45.), Imgproc.FONT_HERSHEY_SIMPLEX, 2., new Scalar(255, 255, 255), 5);
-                    Imgproc.putText(out, "TAKE SNAPSHOT", new Point(0., 110.), Imgproc.FONT_HERSHEY_SIMPLEX, 2., new Scalar(255, 255, 255), 5);
-                    Imgproc.putText(out, "ON REMOTE", new Point(0., 175.), Imgproc.FONT_HERSHEY_SIMPLEX, 2., new Scalar(255, 255, 255), 5);
-                }
-                else { // message held long enough so reset hold message timing
-                    holdMessageTimer = System.currentTimeMillis();
-                    recentSnapshot = false;
-                }
-
-                if (findBoardCornersGuidancePipeResult.output.haveEnough) // done calibrating
-                {
-                    // further processing of the complete set of snapshots could be done here - this is the end   
-                    // The guidance program prints elsewhere its calibration results to the LOGGER and notifies us here.
-                    if(logSnapshot) {
-                        if(vnlog != null) {
-                            vnlog.close();
-                            vnlog = null; // redundant cleanup just to make sure a logic error doesn't try to use it again
-                        }
-                        if(video != null) {
-                            video.close();
-                            video = null; // redundant cleanup just to make sure a logic error doesn't try to use it again
-                        }
-                    }
-                        LOGGER.info("Pose Guidance Camera action calibrated");
-
-                    // check for holding the last message before quitting
-                    if (!recentSnapshot)
-                    {
-                        break frameGrabLoop; // done with calibration
-                    }
-                }
-                else    
-                if (findBoardCornersGuidancePipeResult.output.cancelCalibration)
-                {
+                if ( ! calibrationFrame(img, out)) {
                     break frameGrabLoop; // quit
                 }
             }
 
             // completed processing image frame - display results
-            networkDisplay.putFrame(out);
+            if (networkDisplay != null) {
+                start = System.nanoTime();
+                networkDisplay.putFrame(out);
+                Metrics.putFrame.record(start);
+            }
 
         } // bottom of frameGrabLoop loop
 
         // quitting
-        mjpegServer.close();
-        networkDisplay.close();
+        closeSnapshots(); // write the snapshots still queued
+        if (findBoardCornersGuidancePipe.ugui != null) {
+            findBoardCornersGuidancePipe.ugui.close_journal(); // write the journal records still queued
+        }
+        if (capture instanceof SyntheticSource && findBoardCornersGuidancePipe.ugui != null) {
+            ((SyntheticSource)capture).compare(findBoardCornersGuidancePipe.ugui.calib);
+        }
+        if (mjpegServer != null) {
+            mjpegServer.close();
+            networkDisplay.close();
+        }
+        Metrics.stop();
+        capture.close();
         LOGGER.info("End of running main");
     } // end main method
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
 /*                                                                                                 */
+/*                                     calibrationFrame                                            */
+/*                                     calibrationFrame                                            */
+/*                                     calibrationFrame                                            */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Calibrate mode processing of one good camera image frame
+     * @param img camera image
+     * @param out user display
+     * @return false to quit - calibration completed or cancelled
+     * @throws FileNotFoundException
+     */
+    private static boolean calibrationFrame(Mat img, Mat out) throws FileNotFoundException
+    {
+        // calibration image frame initialization
+        param.save = false;
+        
+        // get any user keyed input useful for calibration mode (ignore the rest)
+        switch (keystroke.getKey())
+        {
+            case Keystroke.keyNone: // no key press to process
+                    break;
+            case Keystroke.keyTerminate:
+                    LOGGER.info("Pose Guidance Camera action CANCELLED");
+                    return false; // quit
+            case Keystroke.keyMirrorToggle:
+                    LOGGER.info("Toggled mirror guidance");
+                    param.mirror = ! param.mirror;
+                    break;
+            case Keystroke.keyCapture:
+                    LOGGER.info("Forced capture snapshot");
+                    param.save = true; // it's one frame behind what user sees but it's usually too fast to notice
+                    break;
+            default: // unassigned key
+                    break;
+        }
+
+        findBoardCornersGuidancePipe.setParams(param); // update find corners params in case they changed
+        var images = Pair.of(img,out ); // define the find corners input and output
+        findBoardCornersGuidancePipeResult = findBoardCornersGuidancePipe.run(images);
+        Metrics.frame.add(findBoardCornersGuidancePipeResult.nanosElapsed);
+        Metrics.frames.incrementAndGet();
+
+        // act on find corners results
+        if (findBoardCornersGuidancePipeResult.output.madeSnapshot)
+        {
+            // The guidance program saves elsewhere its own snapshot needed for guidance and notifies us here.
+            // In addition, corners and images could be logged here and saved snapshots could be further
+            // processed by say Mr.Cal.
+            if (logSnapshot) {
+                logSnapshot(img, findBoardCornersGuidancePipeResult);
+            }
+
+            recentSnapshot = true; // trigger snapshot display message
+
+            LOGGER.info("Snapshot taken");
+        }
+
+        // if calibrating on another program user needs to inform it of this guidance pose snapshot
+        if (recentSnapshot && remoteCamera && (holdMessageTimer + Cfg.messageHoldTime) > System.currentTimeMillis()) {
+            Imgproc.putText(out, "HOLD STEADY", new Point(0.,  45.), Imgproc.FONT_HERSHEY_SIMPLEX, 2., new Scalar(255, 255, 255), 5);
+            Imgproc.putText(out, "TAKE SNAPSHOT", new Point(0., 110.), Imgproc.FONT_HERSHEY_SIMPLEX, 2., new Scalar(255, 255, 255), 5);
+            Imgproc.putText(out, "ON REMOTE", new Point(0., 175.), Imgproc.FONT_HERSHEY_SIMPLEX, 2., new Scalar(255, 255, 255), 5);
+        }
+        else { // message held long enough so reset hold message timing
+            holdMessageTimer = System.currentTimeMillis();
+            recentSnapshot = false;
+        }
+
+        if (findBoardCornersGuidancePipeResult.output.haveEnough) // done calibrating
+        {
+            // further processing of the complete set of snapshots could be done here - this is the end   
+            // The guidance program prints elsewhere its calibration results to the LOGGER and notifies us here.
+            if(logSnapshot) {
+                closeSnapshots();
+            }
+                LOGGER.info("Pose Guidance Camera action calibrated");
+
+            // check for holding the last message before quitting
+            if (!recentSnapshot)
+            {
+                return false; // done with calibration
+            }
+        }
+        else    
+        if (findBoardCornersGuidancePipeResult.output.cancelCalibration)
+        {
+            return false; // quit
+        }
+
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
 /*                                     handleArgs                                                  */
 /*                                     handleArgs                                                  */
 /*                                     handleArgs                                                  */
@@ -376,9 +472,23 @@ private static boolean handleArgs(String[] args) throws ParseException {
         options.addOption("y", "sqrHigh", true, "ChArUco board squares high (8)");
         options.addOption("D", "dictionary", true, "8x8 square ArUco board; dictionary (FourByFour) " + Arrays.toString(Cfg.Dictionary.values()));
         options.addOption("B", "printBoard", false, "print ChArUco Board to file ChArUcoBoard.png");
+        options.addOption("V", "vectorBoard", false, "print ChArUco Board to vector file ChArUcoBoard.svg of the same physical size");
         options.addOption("f", "focus", false, "sharpness measure mode - no calibration");
         options.addOption("d", "displayPort", true, "output image port (1185)");
         options.addOption("S", "logSnapshot", false, "save snapshots image files and corners");
+        options.addOption("P", "pipelined", false, "run capture, detection, guidance and display on separate threads");
+        options.addOption("T", "flowTrack", true, "detect the board every n frames and track its corners by optical flow in between (1 = detect every frame)");
+        options.addOption("r", "replay", true, "headless replay of a CalibrationVideo_*.mp4 file, a directory of img_*.jpg snapshots or a Session_*.gsf file instead of the camera");
+        options.addOption("M", "mapCache", true, "directory to save distortion maps for reuse by later sessions (none)");
+        options.addOption("G", "poseSelection", true, "next guidance pose method (HEURISTIC) " + Arrays.toString(Cfg.PoseSelection.values()));
+        options.addOption("C", "calibrationSolver", true, "camera calibration solver (OPENCV) " + Arrays.toString(Cfg.Solver.values()));
+        options.addOption("m", "metricsPort", true, "Prometheus metrics port (display port + 1; 0 for none)");
+        options.addOption("s", "synthetic", true, "synthetic camera of known intrinsics instead of a camera; frames per second (0 = as fast as taken)");
+        options.addOption("k", "session", false, "with logSnapshot save the snapshots to a binary session file instead of image files, video and vnlog");
+        options.addOption("e", "export", true, "write the image files, video and vnlog of a session file and exit");
+        options.addOption("j", "resume", true, "resume the guidance from a Journal_*.gsj file of a session that stopped and continue its journal");
+        options.addOption("b", "benchmark", true, "time the guidance hot paths on fixed frames and exit; benchmark name filter or all");
+        options.addOption("L", "logLevel", true, "minimum log message level (FINE) [SEVERE, WARNING, INFO, CONFIG, FINE, FINER, FINEST]");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
@@ -408,13 +518,30 @@ private static boolean handleArgs(String[] args) throws ParseException {
         camId = cmd.getOptionValue("cameraId", "0");
         fps = Integer.parseInt(cmd.getOptionValue("fps", "10"));
         displayPort = Integer.parseInt(cmd.getOptionValue("displayPort", "1185"));
+        metricsPort = Integer.parseInt(cmd.getOptionValue("metricsPort", Integer.toString(displayPort + 1)));
+        Cfg.flowDetectInterval = Math.max(1, Integer.parseInt(cmd.getOptionValue("flowTrack", "1")));
 
         if (cmd.hasOption("B")) { // must be after the dictionary and number of board squares options
             ChArUcoBoardPrint.print(); // because do the function here rather than pass back a switch to do it
         }
+        if (cmd.hasOption("V")) { // must be after the dictionary and number of board squares options
+            ChArUcoBoardPrint.printSVG();
+        }
 
         focus = cmd.hasOption("f");
         logSnapshot = cmd.hasOption("S");
+        pipelined = cmd.hasOption("P");
+        replay = cmd.getOptionValue("replay");
+        synthetic = cmd.getOptionValue("synthetic");
+        benchmark = cmd.getOptionValue("benchmark");
+        export = cmd.getOptionValue("export");
+        Cfg.sessionFile = cmd.hasOption("session");
+        Cfg.resumeJournal = cmd.getOptionValue("resume");
+        Cfg.distortionMapCacheDir = cmd.getOptionValue("mapCache");
+        Cfg.poseSelection = Cfg.PoseSelection.valueOf(cmd.getOptionValue("poseSelection", "HEURISTIC"));
+        Cfg.calibrationSolver = Cfg.Solver.valueOf(cmd.getOptionValue("calibrationSolver", "OPENCV"));
+        Cfg.loggerMinimumLevel = Level.parse(cmd.getOptionValue("logLevel", Cfg.loggerMinimumLevel.getName()));
+        LoggerSetup.setLevel(Cfg.loggerMinimumLevel);
 
         return true;
 
@@ -428,23 +555,16 @@ private static boolean handleArgs(String[] args) throws ParseException {
 /*                                                                                                 */
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
-    private static int captureCount; // image save file name sequence number
-    private static String fileTime;
-    // Charuco Board configuration (duplicates ChArucoDetector)
-    private static Size board_sz;
-    private static Dictionary dictionary;
-    private static CharucoBoard board;
-    private static float[] chessboardCorners;
     /**
      * Save setected board corners in mrgingham format for mrcal
      * Save snapshot images individually
      * Save snapshot images as a video for wpical
      * Vnlog (“vanilla-log”) file format (https://github.com/dkogan/vnlog)
+     * The files are written by the SnapshotWriter thread; this only queues a copy of the snapshot.
      * @param img Camera image to be saved
      * @param findBoardCornersGuidancePipeResult Detection to be saved
-     * @throws FileNotFoundException
      */
-    public static void logSnapshot(Mat img, CVPipeResult<FindBoardCornersGuidancePipeResult> findBoardCornersGuidancePipeResult) throws FileNotFoundException
+    public static void logSnapshot(Mat img, CVPipeResult<FindBoardCornersGuidancePipeResult> findBoardCornersGuidancePipeResult)
     {
         if (findBoardCornersGuidancePipeResult.output.idCorners.rows() <= 0)
         {
@@ -452,86 +572,32 @@ private static boolean handleArgs(String[] args) throws ParseException {
             return;
         }
         
-        if (vnlog == null || video == null) // first time switch
+        if (snapshotWriter == null) // first time switch
         {
-            captureCount = 0;
-            fileTime = new SimpleDateFormat("_yyyy-MM-dd_HH-mm").format(System.currentTimeMillis());
-
-            vnlog = new PrintWriter(Cfg.cornersLog + fileTime + ".vnl");
-            vnlog.println("## produced by pose guidance calibration program");
-            vnlog.println("# filename x y level");
-
-            video = new VideoCreation(Cfg.videoFile + fileTime + ".mp4", img.size());
-
-            // Charuco Board configuration (duplicates ChArucoDetector)
-            board_sz = new Size(Cfg.board_x, Cfg.board_y);
-            dictionary = Objdetect.getPredefinedDictionary(Cfg.dictionary);
-            board = new CharucoBoard(board_sz, Cfg.square_len, Cfg.marker_len, dictionary);
-            var chessboardCornersMat = board.getChessboardCorners();
-            chessboardCorners = new float[chessboardCornersMat.rows()*chessboardCornersMat.cols()
-                *chessboardCornersMat.channels()]; // below assumes x, y and z in a row
-            chessboardCornersMat.get(0, 0, chessboardCorners);
-            LOGGER.finest("all checkerboard corners\n" + chessboardCornersMat.dump());
+            String fileTime = new SimpleDateFormat("_yyyy-MM-dd_HH-mm").format(System.currentTimeMillis());
+            snapshotWriter = new SnapshotWriter(fileTime, img.size());
         }
-        
-        video.addFrame(img); // write the captured frame to a video file (maybe WPIcal can use it)
-
-        // write the captured frame to a sequenced file name
-        String filename = String.format("img_%s_%03d.jpg", fileTime, ++captureCount);
-        final MatOfInt writeBoardParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 100); // pair-wise; param1, value1, ...
-        Imgcodecs.imwrite(filename, img, writeBoardParams); // save camera image in its own file
-
-        int[] detectedCIDs = new int[findBoardCornersGuidancePipeResult.output.idCorners.rows()]; // get detected corners - assume captured image does have corners
-        findBoardCornersGuidancePipeResult.output.idCorners.get(0, 0, detectedCIDs);
-
-        float[] DetectedCorners = new float[findBoardCornersGuidancePipeResult.output.imagePoints.rows()
-            *findBoardCornersGuidancePipeResult.output.imagePoints.cols()
-            *findBoardCornersGuidancePipeResult.output.imagePoints.channels()]; // below assumes x and y in a row
-        findBoardCornersGuidancePipeResult.output.imagePoints.get(0, 0, DetectedCorners);
 
-        // save corners vnlog
-        // detected corners have the x y printed; missing corners have - - printed
-        // board w = 9 h = 6 => 54 squares; 8x5 => 40 interior corners possible
-
-        int detectedCornerIndex = 0; // initially we already verified at least one corner
-        // put out values for all possible squares - one corner per square
-        for (int allCornersIndx = 0; allCornersIndx < board.getChessboardCorners().rows(); allCornersIndx++)
-        {
-            String detectedX = "-"; // initially indicate not detected corner MrGingham style
-            String detectedY = "-";
-            // make sure there are still some detected corners in the list to look at
-            if (detectedCornerIndex <= findBoardCornersGuidancePipeResult.output.idCorners.rows())
-            {
-                // get the next detected corner and check if this is the place to write it
-                // assume corner ids sorted so access is more efficient
-                int[] detectedCornerId = {Integer.MIN_VALUE};
-                findBoardCornersGuidancePipeResult.output.idCorners.get(detectedCornerIndex, 0, detectedCornerId);
-                if (detectedCornerId[0] == allCornersIndx)
-                {
-                    detectedX = Float.toString(DetectedCorners[detectedCornerIndex*2]);
-                    detectedY = Float.toString(DetectedCorners[detectedCornerIndex*2+1]);
-                    detectedCornerIndex++;                     
-                }
-            }
-                StringBuilder logLine = new StringBuilder();
-                logLine.append(filename);
-                logLine.append(" ");
-                logLine.append(detectedX);
-                logLine.append(" ");
-                logLine.append(detectedY);
-                logLine.append(" 0"); // decimations or scale factor; always 0 which is full resolution ((1/2)**N)
-                // for debugging or more add cid boardX boardY boardZ
-                // logLine.append(" ");
-                // logLine.append(allCornersIndx);
-                // logLine.append(" ");
-                // logLine.append(chessboardCorners[allCornersIndx*3]); // x
-                // logLine.append(" ");
-                // logLine.append(chessboardCorners[allCornersIndx*3+1]); // y
-                // logLine.append(" ");
-                // logLine.append(chessboardCorners[allCornersIndx*3+2]); // z
-                vnlog.println(logLine.toString());  
+        snapshotWriter.add(img, findBoardCornersGuidancePipeResult.output.idCorners, findBoardCornersGuidancePipeResult.output.imagePoints);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     closeSnapshots                                              */
+/*                                     closeSnapshots                                              */
+/*                                     closeSnapshots                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Wait for the snapshots queued to be written and close the snapshot files
+     */
+    private static void closeSnapshots()
+    {
+        if (snapshotWriter != null) {
+            snapshotWriter.close();
+            snapshotWriter = null; // redundant cleanup just to make sure a logic error doesn't try to use it again
         }
-        vnlog.flush();
     }
 }
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////
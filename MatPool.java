@@ -0,0 +1,214 @@
+package Guidance;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     MatPool class                                               */
+/*                                     MatPool class                                               */
+/*                                     MatPool class                                               */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Reusable frame-scoped Mats so the per frame processing doesn't allocate native memory.
+ *
+ * A Mat acquired during a frame belongs to that frame. endFrame() returns all of them to the pool
+ * for the next frame; don't keep a reference to a pooled Mat past endFrame().
+ *
+ * Mats are kept by size and type. After the first few frames every size the frame processing uses
+ * is in the pool and the count of new allocations per frame should stay at 0. A Mat an OpenCV
+ * function reallocated is refiled under its new size and type and counted there; only a few more
+ * than that size's own Mats are kept (Cfg.matPoolRekeyedMax) and the rest are released.
+ *
+ * Not thread safe - one pool per processing thread.
+ */
+class MatPool
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private final Map<Long, ArrayDeque<Mat>> free = new HashMap<>(); // available Mats by size and type
+    private final List<Mat> inUse = new ArrayList<>(); // acquired in this frame
+    private long[] inUseData = new long[16]; // native data address of each inUse Mat when it was acquired
+    private long[] inUseKey = new long[16]; // size and type of each inUse Mat when it was acquired
+    private final Map<Long, Integer> owned = new HashMap<>(); // Mats owned by the pool (free and in use) by size and type
+    private final Map<Long, Integer> acquiredMax = new HashMap<>(); // most Mats of a size and type in use in a frame
+
+    private long allocations = 0; // all native Mat allocations by this pool
+    private int frameAllocations = 0; // allocations in the current frame
+    private int pooled = 0; // Mats owned by the pool
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     acquire                                                     */
+/*                                     acquire                                                     */
+/*                                     acquire                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Get a Mat for use during this frame; contents are whatever it last held
+     * @param rows
+     * @param cols
+     * @param type CvType
+     * @return Mat of the requested size and type
+     */
+    Mat acquire(int rows, int cols, int type)
+    {
+        long key = key(rows, cols, type);
+        ArrayDeque<Mat> available = this.free.computeIfAbsent(key, k -> new ArrayDeque<>());
+        Mat mat = available.pollFirst();
+        if (mat == null)
+        {
+            mat = new Mat(rows, cols, type);
+            this.allocations++;
+            this.frameAllocations++;
+            this.pooled++;
+            this.owned.merge(key, 1, Integer::sum);
+        }
+        if (this.inUse.size() == this.inUseData.length)
+        {
+            this.inUseData = Arrays.copyOf(this.inUseData, 2*this.inUseData.length);
+            this.inUseKey = Arrays.copyOf(this.inUseKey, 2*this.inUseKey.length);
+        }
+        this.inUseData[this.inUse.size()] = mat.dataAddr();
+        this.inUseKey[this.inUse.size()] = key;
+        this.inUse.add(mat);
+        return mat;
+    }
+
+    /**
+     * @param size
+     * @param type CvType
+     * @return Mat of the requested size and type
+     */
+    Mat acquire(Size size, int type)
+    {
+        return acquire((int)size.height, (int)size.width, type);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     endFrame                                                    */
+/*                                     endFrame                                                    */
+/*                                     endFrame                                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Return this frame's Mats to the pool
+     * @return number of native Mat allocations during the frame
+     */
+    int endFrame()
+    {
+        // most of each size and type in use at once this frame; the Mats a size keeps for itself
+        Map<Long, Integer> acquired = new HashMap<>();
+        for (int i = 0; i < this.inUse.size(); i++)
+        {
+            acquired.merge(this.inUseKey[i], 1, Integer::sum);
+        }
+        acquired.forEach((key, count) -> this.acquiredMax.merge(key, count, Math::max));
+
+        for (int i = 0; i < this.inUse.size(); i++)
+        {
+            Mat mat = this.inUse.get(i);
+            // a Mat that was reallocated by an OpenCV function (used with a different size or type
+            // than acquired) counts as an allocation and is filed under its new size and type
+            if (mat.dataAddr() != this.inUseData[i])
+            {
+                this.allocations++;
+                this.frameAllocations++;
+            }
+            long key = key(mat.rows(), mat.cols(), mat.type());
+            if (key != this.inUseKey[i])
+            {
+                this.owned.merge(this.inUseKey[i], -1, Integer::sum);
+                if (this.owned.getOrDefault(key, 0) >= this.acquiredMax.getOrDefault(key, 0) + Cfg.matPoolRekeyedMax)
+                {
+                    mat.release(); // enough of this size and type already
+                    this.pooled--;
+                    continue;
+                }
+                this.owned.merge(key, 1, Integer::sum);
+            }
+            this.free.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(mat);
+        }
+        this.inUse.clear();
+
+        int count = this.frameAllocations;
+        this.frameAllocations = 0;
+        return count;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     release                                                     */
+/*                                     release                                                     */
+/*                                     release                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Free all the pooled native memory (end of a calibration session)
+     */
+    void release()
+    {
+        endFrame();
+        for (ArrayDeque<Mat> available : this.free.values())
+        {
+            for (Mat mat : available)
+            {
+                mat.release();
+            }
+        }
+        this.free.clear();
+        this.owned.clear();
+        this.acquiredMax.clear();
+        this.pooled = 0;
+    }
+
+    /**
+     * @return all native Mat allocations by this pool
+     */
+    long allocations()
+    {
+        return this.allocations;
+    }
+
+    /**
+     * @return pool size and allocations formatted for the log
+     */
+    String stats()
+    {
+        return "Mat pool " + this.pooled + " Mats of " + this.owned.values().stream().filter(count -> count > 0).count()
+            + " sizes and types, " + this.allocations + " allocations";
+    }
+
+    private static long key(int rows, int cols, int type)
+    {
+        return ((long)rows << 40) | ((long)cols << 16) | (type & 0xFFFF);
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End MatPool class                                           */
+/*                                     End MatPool class                                           */
+/*                                     End MatPool class                                           */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
@@ -0,0 +1,375 @@
+package Guidance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     Metrics class                                               */
+/*                                     Metrics class                                               */
+/*                                     Metrics class                                               */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Where each frame's time goes.
+ *
+ * Each stage of the frame processing has a Timer that keeps a histogram of its durations. The
+ * histogram buckets are a quarter octave wide so the percentiles are within about 20%. The
+ * histogram is of a sliding window - two histograms of Cfg.metricsWindowSeconds each, the older
+ * cleared and reused as the window moves - so the percentiles follow the current latency instead of
+ * the whole session's. Timers and counters are safe to use from any thread (pipelined stages and
+ * the calibration worker).
+ *
+ * The timers and counters are served in the Prometheus text format at http://host:port/metrics
+ * by serve(port); each stage is a summary with its median (0.5) and 99th percentile (0.99)
+ * quantiles of the window, sum and count of the session, and its maximum as a separate gauge.
+ */
+class Metrics
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private static final List<Timer> timers = new ArrayList<>();
+
+    // stages of a frame
+    static final Timer frame = new Timer("frame"); // the whole findBoardCornersGuidance
+    static final Timer grab = new Timer("grab");
+    static final Timer detect_pts = new Timer("detect_pts");
+    static final Timer update_pose = new Timer("update_pose");
+    static final Timer draw = new Timer("draw");
+    static final Timer pose_close_to_tgt = new Timer("pose_close_to_tgt");
+    static final Timer calibrate = new Timer("calibrate");
+    static final Timer set_next_pose = new Timer("set_next_pose");
+    static final Timer displayOverlay = new Timer("displayOverlay");
+    static final Timer putFrame = new Timer("putFrame");
+
+    static final AtomicLong frames = new AtomicLong(); // frames processed
+    static final AtomicLong grabErrors = new AtomicLong(); // frames the camera failed to deliver
+
+    // other counters by their Prometheus name with labels, for example the pipeline queue drops
+    private static final Map<String, LongSupplier> counters = new ConcurrentSkipListMap<>();
+
+    private static HttpServer server = null;
+    private static long framesPrevious = 0; // for the frame rate between scrapes
+    private static long scrapePrevious = System.nanoTime();
+
+    private Metrics()
+    {
+        throw new UnsupportedOperationException("This is a utility class");
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     Timer class                                                 */
+/*                                     Timer class                                                 */
+/*                                     Timer class                                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Histogram of a stage's durations
+     *
+     * Usage: long start = System.nanoTime(); ... stage ...; Metrics.stage.record(start);
+     */
+    static final class Timer
+    {
+        private static final int SUB_BUCKETS = 4; // per octave (power of 2) of nanoseconds
+        private static final long WINDOW_NANOS = Cfg.metricsWindowSeconds * 1_000_000_000L;
+
+        private final String stage;
+        // the current window's histogram and the previous one's
+        private final AtomicLongArray[] buckets = {new AtomicLongArray(64 * SUB_BUCKETS), new AtomicLongArray(64 * SUB_BUCKETS)};
+        private volatile int current = 0; // buckets index of the current window
+        private volatile long windowStart = System.nanoTime();
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Timer(String stage)
+        {
+            this.stage = stage;
+            timers.add(this);
+        }
+
+        /**
+         * @param startNanos System.nanoTime() at the start of the stage
+         */
+        void record(long startNanos)
+        {
+            add(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * @param nanos duration of the stage
+         */
+        void add(long nanos)
+        {
+            nanos = Math.max(1L, nanos);
+            roll(System.nanoTime());
+            this.buckets[this.current].incrementAndGet(bucket(nanos));
+            this.count.incrementAndGet();
+            this.sumNanos.addAndGet(nanos);
+            this.maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static int bucket(long nanos)
+        {
+            int octave = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = octave < 2 ? 0 : (int)(nanos >>> (octave - 2)) & (SUB_BUCKETS - 1);
+            return octave * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket)
+        {
+            int octave = bucket / SUB_BUCKETS;
+            int sub = bucket % SUB_BUCKETS;
+            return octave < 2 ? 1L << (octave + 1) : (long)(SUB_BUCKETS + sub + 1) << (octave - 2);
+        }
+
+        /**
+         * Start a new window if the current one is over; the previous window is cleared for it.
+         * A duration added while its window is cleared may be lost.
+         * @param now System.nanoTime()
+         */
+        private void roll(long now)
+        {
+            if (now - this.windowStart < WINDOW_NANOS)
+            {
+                return;
+            }
+            synchronized (this)
+            {
+                long elapsed = now - this.windowStart;
+                if (elapsed < WINDOW_NANOS)
+                {
+                    return; // another thread rolled it
+                }
+                int next = 1 - this.current;
+                clear(this.buckets[next]);
+                if (elapsed >= 2*WINDOW_NANOS)
+                {
+                    clear(this.buckets[this.current]); // nothing recent in it either
+                }
+                this.current = next;
+                this.windowStart = now;
+            }
+        }
+
+        private static void clear(AtomicLongArray histogram)
+        {
+            for (int i = 0; i < histogram.length(); i++)
+            {
+                histogram.set(i, 0L);
+            }
+        }
+
+        /**
+         * @param q quantile 0 to 1
+         * @return seconds the fraction q of the durations of the last one to two windows don't
+         *     exceed; NaN if none recorded in them
+         */
+        double quantile(double q)
+        {
+            roll(System.nanoTime());
+            AtomicLongArray recent = this.buckets[this.current];
+            AtomicLongArray previous = this.buckets[1 - this.current];
+            long n = 0;
+            for (int i = 0; i < recent.length(); i++)
+            {
+                n += recent.get(i) + previous.get(i);
+            }
+            if (n == 0)
+            {
+                return Double.NaN;
+            }
+            long rank = Math.max(1L, (long)Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < recent.length(); i++)
+            {
+                seen += recent.get(i) + previous.get(i);
+                if (seen >= rank)
+                {
+                    return Math.min(upperBound(i), this.maxNanos.get()) / 1.e9;
+                }
+            }
+            return this.maxNanos.get() / 1.e9; // recorded while counting
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     counter                                                     */
+/*                                     counter                                                     */
+/*                                     counter                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Serve a count kept elsewhere; a later counter of the same name replaces it
+     * @param name Prometheus metric name and labels, for example guidance_frames_dropped_total{queue="detect"}
+     * @param value read at each scrape
+     */
+    static void counter(String name, LongSupplier value)
+    {
+        counters.put(name, value);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     scrape                                                      */
+/*                                     scrape                                                      */
+/*                                     scrape                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @return all the metrics in the Prometheus text exposition format
+     */
+    static synchronized String scrape()
+    {
+        StringBuilder text = new StringBuilder(4096);
+
+        text.append("# HELP guidance_stage_seconds Time spent in each stage of a frame.\n");
+        text.append("# TYPE guidance_stage_seconds summary\n");
+        for (Timer timer : timers)
+        {
+            text.append(String.format("guidance_stage_seconds{stage=\"%s\",quantile=\"0.5\"} %s\n", timer.stage, number(timer.quantile(0.5))));
+            text.append(String.format("guidance_stage_seconds{stage=\"%s\",quantile=\"0.99\"} %s\n", timer.stage, number(timer.quantile(0.99))));
+            text.append(String.format("guidance_stage_seconds_sum{stage=\"%s\"} %s\n", timer.stage, number(timer.sumNanos.get() / 1.e9)));
+            text.append(String.format("guidance_stage_seconds_count{stage=\"%s\"} %d\n", timer.stage, timer.count.get()));
+        }
+
+        text.append("# HELP guidance_stage_seconds_max Longest time spent in each stage of a frame.\n");
+        text.append("# TYPE guidance_stage_seconds_max gauge\n");
+        for (Timer timer : timers)
+        {
+            text.append(String.format("guidance_stage_seconds_max{stage=\"%s\"} %s\n", timer.stage, number(timer.maxNanos.get() / 1.e9)));
+        }
+
+        long now = System.nanoTime();
+        long framesNow = frames.get();
+        double seconds = (now - scrapePrevious) / 1.e9;
+        double frameRate = seconds > 0. ? (framesNow - framesPrevious) / seconds : 0.;
+        framesPrevious = framesNow;
+        scrapePrevious = now;
+
+        text.append("# HELP guidance_frames_total Frames processed.\n");
+        text.append("# TYPE guidance_frames_total counter\n");
+        text.append("guidance_frames_total ").append(framesNow).append('\n');
+        text.append("# HELP guidance_frame_rate Frames processed per second since the previous scrape.\n");
+        text.append("# TYPE guidance_frame_rate gauge\n");
+        text.append("guidance_frame_rate ").append(number(frameRate)).append('\n');
+        text.append("# HELP guidance_grab_errors_total Frames the camera failed to deliver.\n");
+        text.append("# TYPE guidance_grab_errors_total counter\n");
+        text.append("guidance_grab_errors_total ").append(grabErrors.get()).append('\n');
+
+        String typed = null; // metric name whose TYPE line is written
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet())
+        {
+            String name = counter.getKey();
+            int labels = name.indexOf('{');
+            String metric = labels < 0 ? name : name.substring(0, labels);
+            if ( ! metric.equals(typed))
+            {
+                text.append("# TYPE ").append(metric).append(" counter\n");
+                typed = metric;
+            }
+            text.append(name).append(' ').append(counter.getValue().getAsLong()).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    private static String number(double value)
+    {
+        return Double.isNaN(value) ? "NaN" : Double.toString(value);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     serve                                                       */
+/*                                     serve                                                       */
+/*                                     serve                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Start serving the metrics at http://host:port/metrics
+     * @param port
+     */
+    static synchronized void serve(int port)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        try
+        {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        }
+        catch (IOException e)
+        {
+            LOGGER.warning("metrics not served on port " + port + " " + e);
+            return;
+        }
+        server.createContext("/metrics", Metrics::respond);
+        server.start();
+        LOGGER.config("Metrics for Prometheus On Port " + port + " /metrics");
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException
+    {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     stop                                                        */
+/*                                     stop                                                        */
+/*                                     stop                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Stop serving the metrics; its thread would keep the program running
+     */
+    static synchronized void stop()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End Metrics class                                           */
+/*                                     End Metrics class                                           */
+/*                                     End Metrics class                                           */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
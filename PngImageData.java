@@ -0,0 +1,332 @@
+package Guidance;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     PngImageData class                                          */
+/*                                     PngImageData class                                          */
+/*                                     PngImageData class                                          */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * The IDAT chunks of an 8 bit grey scale PNG image written while the image is filtered and
+ * compressed a band of rows at a time.
+ *
+ * The bands are deflated in parallel, each as independent deflate blocks; all but the last end on a
+ * byte boundary (sync flush) so they join into the single zlib datastream PNG requires (as pigz
+ * does). The Adler-32 of the stream is combined from the bands' and the chunks are written in order
+ * as the bands finish. Memory is a few bands however big the image is.
+ */
+class PngImageData
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private static final int BAND_BYTES = 1 << 20; // about this many filtered bytes are deflated together
+    private static final int CHUNK_SIZE_MAX = 100_000; // IDAT chunk data; arbitrary "small" number
+    private static final byte FILTER_UP = 2; // PNG row filter; each byte less the one above it
+    private static final byte[] ZLIB_HEADER = {(byte)0x78, (byte)0x9c}; // deflate, 32K window, default level
+    private static final int ADLER_BASE = 65521;
+
+    private final OutputStream out;
+    private final byte[] chunk = new byte[4 + 4 + CHUNK_SIZE_MAX + 4]; // 4 length + 4 "IDAT" + data + 4 CRC
+    private int chunkSize = 0;
+    private final CRC32 crc32 = new CRC32();
+
+    /**
+     * A band of rows filtered and deflated
+     */
+    private static class Band
+    {
+        final byte[] deflated;
+        final int length; // deflated bytes used
+        final long adler; // Adler-32 of the filtered band
+        final long filteredLength;
+
+        Band(byte[] deflated, int length, long adler, long filteredLength)
+        {
+            this.deflated = deflated;
+            this.length = length;
+            this.adler = adler;
+            this.filteredLength = filteredLength;
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     PngImageData constructor                                    */
+/*                                     PngImageData constructor                                    */
+/*                                     PngImageData constructor                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private PngImageData(OutputStream out)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.out = out;
+        this.chunk[4] = (byte)("IDAT".charAt(0));
+        this.chunk[5] = (byte)("IDAT".charAt(1));
+        this.chunk[6] = (byte)("IDAT".charAt(2));
+        this.chunk[7] = (byte)("IDAT".charAt(3));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Write the image as the IDAT chunks; the IHDR before them and the IEND after are the caller's
+     * @param image CV_8UC1 continuous
+     * @param out PNG file after its IHDR and any other chunks that go before the image data
+     * @throws IOException
+     */
+    static void write(Mat image, OutputStream out) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (image.type() != CvType.CV_8UC1 || ! image.isContinuous() || image.empty())
+        {
+            throw new IOException("PNG image data must be a continuous, non-empty CV_8UC1 Mat not " + image);
+        }
+
+        int rows = image.rows();
+        int bandRows = Math.max(1, BAND_BYTES / (image.cols() + 1));
+        int bands = (rows + bandRows - 1) / bandRows;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int window = 2*threads; // bands in memory at once
+
+        ExecutorService deflaters = Executors.newFixedThreadPool(threads, runnable ->
+            {
+                Thread thread = new Thread(runnable, "PNG deflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+        Deque<Future<Band>> pending = new ArrayDeque<>(window);
+        PngImageData idat = new PngImageData(out);
+        try
+        {
+            idat.put(ZLIB_HEADER, ZLIB_HEADER.length);
+            long adler = 1L; // Adler-32 of nothing
+            int submitted = 0;
+            for (int band = 0; band < bands; band++)
+            {
+                while (submitted < bands && submitted < band + window)
+                {
+                    int firstRow = submitted*bandRows;
+                    int bandRowsThis = Math.min(bandRows, rows - firstRow);
+                    boolean last = submitted == bands - 1;
+                    pending.addLast(deflaters.submit(() -> deflate(image, firstRow, bandRowsThis, last)));
+                    submitted++;
+                }
+                Band done = pending.removeFirst().get();
+                idat.put(done.deflated, done.length);
+                adler = adler32Combine(adler, done.adler, done.filteredLength);
+            }
+            byte[] trailer = new byte[4];
+            ArrayUtils.intToByteArray((int)adler, trailer, 0);
+            idat.put(trailer, trailer.length);
+            idat.flush();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("PNG image data not written");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("PNG image data band not compressed", e.getCause());
+        }
+        finally
+        {
+            deflaters.shutdownNow();
+        }
+
+        LOGGER.fine(() -> "PNG image data " + rows + " rows in " + bands + " bands on " + threads + " threads");
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     deflate                                                     */
+/*                                     deflate                                                     */
+/*                                     deflate                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Filter and deflate a band of rows; runs on a deflater thread
+     * @param image
+     * @param firstRow
+     * @param rows
+     * @param last the last band finishes the deflate stream
+     * @return the deflated band
+     */
+    private static Band deflate(Mat image, int firstRow, int rows, boolean last)
+    {
+        int cols = image.cols();
+        byte[] above = new byte[cols]; // the row above the first row of the image is 0's for the Up filter
+        if (firstRow > 0)
+        {
+            image.get(firstRow - 1, 0, above);
+        }
+        byte[] pixels = new byte[rows*cols];
+        image.get(firstRow, 0, pixels);
+
+        // filter type begins each row
+        byte[] filtered = new byte[rows*(cols + 1)];
+        int flatIndex = 0;
+        int flatIndexFilter = 0;
+        for (int row = 0; row < rows; row++)
+        {
+            filtered[flatIndexFilter++] = FILTER_UP;
+            for (int col = 0; col < cols; col++)
+            {
+                byte up = row == 0 ? above[col] : pixels[flatIndex - cols];
+                filtered[flatIndexFilter++] = (byte)(pixels[flatIndex++] - up);
+            }
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered);
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // raw deflate; the zlib wrapper is written once
+        deflater.setInput(filtered);
+        if (last)
+        {
+            deflater.finish();
+        }
+        int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+        byte[] deflated = new byte[filtered.length/8 + 64]; // a board compresses far better than this; grows if not
+        int length = 0;
+        while (true)
+        {
+            if (length == deflated.length)
+            {
+                deflated = Arrays.copyOf(deflated, 2*deflated.length);
+            }
+            int space = deflated.length - length;
+            int n = deflater.deflate(deflated, length, space, flush);
+            length += n;
+            // a sync flush is complete when it didn't fill the space it had
+            if (last ? deflater.finished() : n < space)
+            {
+                break;
+            }
+        }
+        deflater.end();
+
+        return new Band(deflated, length, adler.getValue(), filtered.length);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     adler32Combine                                              */
+/*                                     adler32Combine                                              */
+/*                                     adler32Combine                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Adler-32 of two sequences joined from the Adler-32 of each (zlib adler32_combine)
+     * @param adler1 Adler-32 of the first sequence
+     * @param adler2 Adler-32 of the second sequence
+     * @param length2 length of the second sequence
+     * @return Adler-32 of the first sequence followed by the second
+     */
+    private static long adler32Combine(long adler1, long adler2, long length2)
+    {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder*sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long)ADLER_BASE << 1)) sum2 -= ((long)ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     put                                                         */
+/*                                     put                                                         */
+/*                                     put                                                         */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Add to the datastream; each full chunk is written
+     * @param data
+     * @param length bytes of data to add
+     * @throws IOException
+     */
+    private void put(byte[] data, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length)
+        {
+            int copy = Math.min(CHUNK_SIZE_MAX - this.chunkSize, length - offset);
+            System.arraycopy(data, offset, this.chunk, 8 + this.chunkSize, copy);
+            this.chunkSize += copy;
+            offset += copy;
+            if (this.chunkSize == CHUNK_SIZE_MAX)
+            {
+                this.flush();
+            }
+        }
+    }
+
+    /**
+     * Write the chunk of the datastream so far, if any
+     * @throws IOException
+     */
+    private void flush() throws IOException
+    {
+        if (this.chunkSize == 0)
+        {
+            return;
+        }
+        ArrayUtils.intToByteArray(this.chunkSize, this.chunk, 0); // length of the chunk data in first 4 bytes
+        this.crc32.reset();
+        this.crc32.update(this.chunk, 4, 4 + this.chunkSize); // "IDAT" and the data; not the length
+        ArrayUtils.intToByteArray((int)this.crc32.getValue(), this.chunk, 8 + this.chunkSize); // crc after the data
+        this.out.write(this.chunk, 0, 8 + this.chunkSize + 4);
+        this.chunkSize = 0;
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End PngImageData class                                      */
+/*                                     End PngImageData class                                      */
+/*                                     End PngImageData class                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
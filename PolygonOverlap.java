@@ -0,0 +1,395 @@
+package Guidance;
+
+import java.util.logging.Logger;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     PolygonOverlap class                                        */
+/*                                     PolygonOverlap class                                        */
+/*                                     PolygonOverlap class                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Areas of simple polygons and of their intersection - the Jaccard index of two projected board
+ * outlines without rasterizing them.
+ *
+ * Polygons are x, y pairs in a double[] (x0, y0, x1, y1, ...) and a count of vertices. Either
+ * winding direction is allowed and they don't have to be convex; the distortion of a lens bows the
+ * sides of a projected board in or out.
+ *
+ * The intersection is the sum of the signed intersections of the fan triangles of the two polygons.
+ * A triangle is convex so each pair is a simple Sutherland-Hodgman clip.
+ *
+ * Scratch arrays are reused so not thread safe - one instance per processing thread.
+ */
+class PolygonOverlap
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private double[] clipA = new double[2*16]; // a polygon clipped to the image
+    private double[] clipB = new double[2*16];
+    private double[] clipScratch = new double[2*16];
+    private final double[] triangle = new double[2*3];
+    private final double[] clipped = new double[2*12]; // a triangle clipped by a triangle has at most 6 vertices
+    private final double[] clippedScratch = new double[2*12];
+    private double[] boundsA = new double[4*16]; // fan triangle bounding boxes xmin, ymin, xmax, ymax
+    private double[] boundsB = new double[4*16];
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     jaccard                                                     */
+/*                                     jaccard                                                     */
+/*                                     jaccard                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Jaccard index (intersection over union) of two polygons within an image
+     * @param a first polygon
+     * @param na number of vertices of a
+     * @param b second polygon
+     * @param nb number of vertices of b
+     * @param width image width; the polygons are clipped to the image pixels
+     * @param height image height
+     * @return area of the intersection divided by area of the union; 0 if both are empty
+     */
+    double jaccard(double[] a, int na, double[] b, int nb, double width, double height)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        // pixel centers are at integer coordinates so the image edges are half a pixel out
+        this.clipA = clip_to_rect(a, na, -0.5, -0.5, width - 0.5, height - 0.5, this.clipA);
+        int ca = this.clipCount;
+        this.clipB = clip_to_rect(b, nb, -0.5, -0.5, width - 0.5, height - 0.5, this.clipB);
+        int cb = this.clipCount;
+
+        double areaA = Math.abs(area(this.clipA, ca));
+        double areaB = Math.abs(area(this.clipB, cb));
+        double intersection = intersection_area(this.clipA, ca, this.clipB, cb);
+        double union = areaA + areaB - intersection;
+
+        return union > 0. ? intersection / union : 0.;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     clip                                                        */
+/*                                     clip                                                        */
+/*                                     clip                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * A polygon clipped to the image the same as jaccard clips it; for drawing a polygon whose
+     * vertices may be far outside the image
+     * @param p polygon
+     * @param n number of vertices
+     * @param width image width
+     * @param height image height
+     * @return clipped polygon, valid until the next clip or jaccard; clip_count() vertices
+     */
+    double[] clip(double[] p, int n, double width, double height)
+    {
+        this.clipA = clip_to_rect(p, n, -0.5, -0.5, width - 0.5, height - 0.5, this.clipA);
+        return this.clipA;
+    }
+
+    int clip_count()
+    {
+        return this.clipCount;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     area                                                        */
+/*                                     area                                                        */
+/*                                     area                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Shoelace formula
+     * @param p polygon
+     * @param n number of vertices
+     * @return signed area; positive for counterclockwise in x right, y up axes
+     */
+    static double area(double[] p, int n)
+    {
+        double twiceArea = 0.;
+        for (int i = 0, j = n - 1; i < n; j = i++)
+        {
+            twiceArea += p[2*j]*p[2*i + 1] - p[2*i]*p[2*j + 1];
+        }
+        return twiceArea / 2.;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     intersection_area                                           */
+/*                                     intersection_area                                           */
+/*                                     intersection_area                                           */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Area of the intersection of two simple polygons.
+     * Each polygon is the signed sum of the triangles fanned from its first vertex so the
+     * intersection is the sum over all pairs of triangles of the product of their signs times
+     * their (convex) intersection area.
+     * @param a first polygon
+     * @param na number of vertices of a
+     * @param b second polygon
+     * @param nb number of vertices of b
+     * @return area of the intersection
+     */
+    double intersection_area(double[] a, int na, double[] b, int nb)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (na < 3 || nb < 3)
+        {
+            return 0.;
+        }
+
+        this.boundsA = fan_bounds(a, na, this.boundsA);
+        this.boundsB = fan_bounds(b, nb, this.boundsB);
+
+        double sum = 0.;
+        for (int i = 1; i < na - 1; i++)
+        {
+            double signA = Math.signum(triangle_area(a, 0, i, i + 1));
+            if (signA == 0.)
+            {
+                continue;
+            }
+            for (int j = 1; j < nb - 1; j++)
+            {
+                // triangles whose bounding boxes don't overlap can't intersect
+                if (this.boundsA[4*i] >= this.boundsB[4*j + 2] || this.boundsB[4*j] >= this.boundsA[4*i + 2]
+                 || this.boundsA[4*i + 1] >= this.boundsB[4*j + 3] || this.boundsB[4*j + 1] >= this.boundsA[4*i + 3])
+                {
+                    continue;
+                }
+                double signB = Math.signum(triangle_area(b, 0, j, j + 1));
+                if (signB == 0.)
+                {
+                    continue;
+                }
+                sum += signA * signB * triangle_intersection_area(a, i, b, j, signB);
+            }
+        }
+        return Math.abs(sum); // the sign is the product of the windings of the polygons
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     triangle_intersection_area                                  */
+/*                                     triangle_intersection_area                                  */
+/*                                     triangle_intersection_area                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Clip fan triangle i of polygon a by fan triangle j of polygon b
+     * @param a
+     * @param i
+     * @param b
+     * @param j
+     * @param signB winding of triangle j; its edges are half planes on this side
+     * @return unsigned area of the intersection
+     */
+    private double triangle_intersection_area(double[] a, int i, double[] b, int j, double signB)
+    {
+        double[] subject = this.clipped;
+        subject[0] = a[0];
+        subject[1] = a[1];
+        subject[2] = a[2*i];
+        subject[3] = a[2*i + 1];
+        subject[4] = a[2*(i + 1)];
+        subject[5] = a[2*(i + 1) + 1];
+        int n = 3;
+
+        double[] clip = this.triangle;
+        clip[0] = b[0];
+        clip[1] = b[1];
+        clip[2] = b[2*j];
+        clip[3] = b[2*j + 1];
+        clip[4] = b[2*(j + 1)];
+        clip[5] = b[2*(j + 1) + 1];
+
+        double[] output = this.clippedScratch;
+        for (int edge = 0; edge < 3 && n > 0; edge++)
+        {
+            double x0 = clip[2*edge];
+            double y0 = clip[2*edge + 1];
+            double x1 = clip[2*((edge + 1) % 3)];
+            double y1 = clip[2*((edge + 1) % 3) + 1];
+            n = clip_half_plane(subject, n, x0, y0, x1, y1, signB, output);
+            double[] swap = subject;
+            subject = output;
+            output = swap;
+        }
+        return Math.abs(area(subject, n));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     clip_to_rect                                                */
+/*                                     clip_to_rect                                                */
+/*                                     clip_to_rect                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private int clipCount; // vertices returned by clip_to_rect
+
+    /**
+     * Clip a polygon to a rectangle; the count of vertices is left in clipCount
+     * @param p polygon
+     * @param n number of vertices
+     * @param xmin
+     * @param ymin
+     * @param xmax
+     * @param ymax
+     * @param out destination; replaced by a larger array if too small
+     * @return out or its replacement
+     */
+    private double[] clip_to_rect(double[] p, int n, double xmin, double ymin, double xmax, double ymax, double[] out)
+    {
+        // clip_half_plane keeps the left side of the edge for positive winding
+        // so go around the rectangle counterclockwise (x right, y up)
+        double[] edges = {xmin, ymin, xmax, ymin, xmax, ymax, xmin, ymax};
+
+        double[] source = p;
+        int count = n;
+        for (int edge = 0; edge < 4; edge++)
+        {
+            // a line can at most double the vertices of a polygon that winds in and out of it
+            double[] destination = edge % 2 == 0 ? this.clipScratch : out;
+            if (destination.length < 4*count + 2)
+            {
+                destination = new double[4*count + 2];
+                if (edge % 2 == 0)
+                {
+                    this.clipScratch = destination;
+                }
+                else
+                {
+                    out = destination;
+                }
+            }
+            count = clip_half_plane(source, count, edges[2*edge], edges[2*edge + 1],
+                edges[(2*edge + 2) % 8], edges[(2*edge + 3) % 8], 1., destination);
+            source = destination;
+        }
+
+        this.clipCount = count;
+        return out;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     clip_half_plane                                             */
+/*                                     clip_half_plane                                             */
+/*                                     clip_half_plane                                             */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * One Sutherland-Hodgman step - keep the part of a polygon inside the line through (x0, y0) and (x1, y1)
+     * @param p polygon
+     * @param n number of vertices
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @param side positive keeps the left of the directed line (x right, y up), negative the right
+     * @param out clipped polygon; room for n + 1 vertices for a convex polygon, 2n otherwise
+     * @return number of vertices in out
+     */
+    private static int clip_half_plane(double[] p, int n, double x0, double y0, double x1, double y1, double side, double[] out)
+    {
+        int count = 0;
+        if (n == 0)
+        {
+            return count;
+        }
+
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double previousX = p[2*(n - 1)];
+        double previousY = p[2*(n - 1) + 1];
+        double previousDistance = side * (dx*(previousY - y0) - dy*(previousX - x0));
+
+        for (int i = 0; i < n; i++)
+        {
+            double x = p[2*i];
+            double y = p[2*i + 1];
+            double distance = side * (dx*(y - y0) - dy*(x - x0));
+
+            if ((distance >= 0.) != (previousDistance >= 0.))
+            {
+                // edge crosses the line
+                double t = previousDistance / (previousDistance - distance);
+                out[2*count] = previousX + t*(x - previousX);
+                out[2*count + 1] = previousY + t*(y - previousY);
+                count++;
+            }
+            if (distance >= 0.)
+            {
+                out[2*count] = x;
+                out[2*count + 1] = y;
+                count++;
+            }
+            previousX = x;
+            previousY = y;
+            previousDistance = distance;
+        }
+        return count;
+    }
+
+    /**
+     * @return twice the signed area of the triangle of vertices i, j, k of polygon p
+     */
+    private static double triangle_area(double[] p, int i, int j, int k)
+    {
+        return (p[2*j] - p[2*i])*(p[2*k + 1] - p[2*i + 1]) - (p[2*k] - p[2*i])*(p[2*j + 1] - p[2*i + 1]);
+    }
+
+    /**
+     * Bounding box of each fan triangle (0, i, i+1) of a polygon
+     * @param p polygon
+     * @param n number of vertices
+     * @param bounds destination; replaced by a larger array if too small
+     * @return bounds or its replacement
+     */
+    private static double[] fan_bounds(double[] p, int n, double[] bounds)
+    {
+        if (bounds.length < 4*n)
+        {
+            bounds = new double[4*n];
+        }
+        for (int i = 1; i < n - 1; i++)
+        {
+            bounds[4*i]     = Math.min(p[0], Math.min(p[2*i], p[2*(i + 1)]));
+            bounds[4*i + 1] = Math.min(p[1], Math.min(p[2*i + 1], p[2*(i + 1) + 1]));
+            bounds[4*i + 2] = Math.max(p[0], Math.max(p[2*i], p[2*(i + 1)]));
+            bounds[4*i + 3] = Math.max(p[1], Math.max(p[2*i + 1], p[2*(i + 1) + 1]));
+        }
+        return bounds;
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End PolygonOverlap class                                    */
+/*                                     End PolygonOverlap class                                    */
+/*                                     End PolygonOverlap class                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
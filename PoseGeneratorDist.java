@@ -4,9 +4,17 @@
 
 package Guidance;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.opencv.calib3d.Calib3d;
@@ -116,14 +124,14 @@ public class PoseGeneratorDist {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
         // returns a translation (t) Mat
-        LOGGER.finest("p in " + p.dump());
-        LOGGER.finest("camera matrix K " + K + "\n" + K.dump());
-        LOGGER.finest("cdist " + cdist.dump());
-        LOGGER.finest("Z " + Z);
+        LOGGER.finest(() -> "p in " + p.dump());
+        LOGGER.finest(() -> "camera matrix K " + K + "\n" + K.dump());
+        LOGGER.finest(() -> "cdist " + cdist.dump());
+        LOGGER.finest(() -> "Z " + Z);
 
         Calib3d.undistortPointsIter(p, p, K, cdist, new Mat(), new Mat(), Cfg.undistortPointsIterCriteria);
 
-        LOGGER.finest("p out " + p.dump());
+        LOGGER.finest(() -> "p out " + p.dump());
 
         double[] pXY = p.get(0, 0); // get X and Y channels for the point (ravel)
  
@@ -132,7 +140,7 @@ public class PoseGeneratorDist {
 
         Core.multiply(p3D, new Scalar(Z, Z, Z), p3D);
 
-        LOGGER.finest("return p3D Z scaled " + p3D.dump());
+        LOGGER.finest(() -> "return p3D Z scaled " + p3D.dump());
 
         return p3D;
     }
@@ -158,11 +166,11 @@ public class PoseGeneratorDist {
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        LOGGER.finest("bbox " + bbox + "\n" + bbox.dump());
-        LOGGER.finest("rx " + rx);
-        LOGGER.finest("ry " + ry);
-        LOGGER.finest("Z " + Z);
-        LOGGER.finest("rz " + rz);
+        LOGGER.finest(() -> "bbox " + bbox + "\n" + bbox.dump());
+        LOGGER.finest(() -> "rx " + rx);
+        LOGGER.finest(() -> "ry " + ry);
+        LOGGER.finest(() -> "Z " + Z);
+        LOGGER.finest(() -> "rz " + rz);
         
         // compute rotation matrix from rotation vector
         double[] angleZ = {0., 0., rz};
@@ -184,9 +192,9 @@ public class PoseGeneratorDist {
         Calib3d.Rodrigues(angleYVector, Ry);
         /**************************************************************************************** */
 
-        LOGGER.finest("Rz\n" + Rz.dump());
-        LOGGER.finest("Rx\n" + Rx.dump());
-        LOGGER.finest("Ry\n" + Ry.dump());
+        LOGGER.finest(() -> "Rz\n" + Rz.dump());
+        LOGGER.finest(() -> "Rx\n" + Rx.dump());
+        LOGGER.finest(() -> "Ry\n" + Ry.dump());
 
         // in Python (Ry).dot(Rx).dot(Rz) messed up nomenclature - it's often really matrix multiply Ry times Rx times Rz
         Mat R = Mat.eye(4, 4, CvType.CV_64FC1);
@@ -211,19 +219,22 @@ public class PoseGeneratorDist {
         Mat translateToBoardCenter = new Mat(bbox.rows(), bbox.cols(), bbox.type()); // matching bbox for element by element multiply
         translateToBoardCenter.put(0, 0, -0.5, -0.5, 0.);
         translateToBoardCenter = bbox.mul(translateToBoardCenter);
-        LOGGER.finest("translateToBoardCenter\n" + translateToBoardCenter.dump());
+        if (LOGGER.isLoggable(Level.FINEST))
+        {
+            LOGGER.finest("translateToBoardCenter\n" + translateToBoardCenter.dump());
+        }
 
-        LOGGER.finest("R " + R.dump());
-        LOGGER.finest("R3x3 " + R3x3.dump());
-        LOGGER.finest("Tc " + Tc.dump());
-        LOGGER.finest("Tc1x3 " + Tc1x3.dump());
+        LOGGER.finest(() -> "R " + R.dump());
+        LOGGER.finest(() -> "R3x3 " + R3x3.dump());
+        LOGGER.finest(() -> "Tc " + Tc.dump());
+        LOGGER.finest(() -> "Tc1x3 " + Tc1x3.dump());
 
         /*************************************************************************************** */
         Core.gemm(R3x3, translateToBoardCenter, 1., new Mat(), 0.,Tc3x1);
         Tc3x1.t().copyTo(Tc1x3); // update Tc
         /*************************************************************************************** */
-        LOGGER.finest("Tc " + Tc.dump());
-        LOGGER.finest("Tc1x3 " + Tc1x3.dump());
+        LOGGER.finest(() -> "Tc " + Tc.dump());
+        LOGGER.finest(() -> "Tc1x3 " + Tc1x3.dump());
 
         // translate board to center of image
 
@@ -234,9 +245,9 @@ public class PoseGeneratorDist {
         translateToImageCenter.put(0, 0, -0.5, -0.5, Z);
         bbox.mul(translateToImageCenter).t().copyTo(T1x3);   
         /*************************************************************************************** */
-        LOGGER.finest("translateToImageCenter " + translateToImageCenter.dump());
-        LOGGER.finest("T1x3 " + T1x3.dump());
-        LOGGER.finest("T " + T.dump());
+        LOGGER.finest(() -> "translateToImageCenter " + translateToImageCenter.dump());
+        LOGGER.finest(() -> "T1x3 " + T1x3.dump());
+        LOGGER.finest(() -> "T " + T.dump());
 
         // rotate center of board
         Mat Rf = new Mat();
@@ -246,7 +257,7 @@ public class PoseGeneratorDist {
         Core.gemm(Rf, Tc, 1., new Mat(), 0.,Rf);
         Core.gemm(Rf, T, 1., new Mat(), 0.,Rf);
         /*************************************************************************************** */
-        LOGGER.finest("Rf " + Rf.dump());
+        LOGGER.finest(() -> "Rf " + Rf.dump());
 
         // return cv2.Rodrigues(Rf[:3, :3])[0].ravel(), Rf[3, :3]
         Mat Rf3x3 = Rf.submat(0, 3, 0, 3);
@@ -256,12 +267,12 @@ public class PoseGeneratorDist {
         Calib3d.Rodrigues(Rf3x3,RfVector);
         Core.transpose(RfVector, RfVector);
         /*************************************************************************************** */
-        LOGGER.finest("RfVector returned " + RfVector.dump());
+        LOGGER.finest(() -> "RfVector returned " + RfVector.dump());
 
         Mat t = Rf.submat(3, 4, 0, 3);
         Mat tVector = new Mat();
         t.copyTo(tVector);
-        LOGGER.finest("tVector returned " + tVector.dump());
+        LOGGER.finest(() -> "tVector returned " + tVector.dump());
 
         Tc.release();
         Tc1x3.release();
@@ -294,10 +305,10 @@ public class PoseGeneratorDist {
 
         // don't use the principal point throughout just have X and Y no Z until it's calculated in the middle
         // compute a new Z
-        LOGGER.finest("camera matrix K " + K + "\n" + K.dump());
-        LOGGER.finest("cdist " + cdist.dump());
-        LOGGER.finest("img_size " + img_size.toString());
-        LOGGER.finest("bbox " + bbox + "\n" + bbox.dump());
+        LOGGER.finest(() -> "camera matrix K " + K + "\n" + K.dump());
+        LOGGER.finest(() -> "cdist " + cdist.dump());
+        LOGGER.finest(() -> "img_size " + img_size.toString());
+        LOGGER.finest(() -> "bbox " + bbox + "\n" + bbox.dump());
 
         Mat KB = new Mat(); // ignore principal point
         Mat bboxZeroZ = new Mat(3, 1, CvType.CV_64FC1);
@@ -318,11 +329,11 @@ public class PoseGeneratorDist {
         
         Mat t = unproject(p, K, cdist, Z);
 
-        LOGGER.finest("KBnoPrinciplePoint " + KB + KB.dump());
-        LOGGER.finest("Z, pB(x, y) " + Z + ", " + java.util.Arrays.toString(pB));
-        LOGGER.finest("p " + p + p.dump());
-        LOGGER.finest("returning r " + r + r.dump());
-        LOGGER.finest("returning t " + t + t.dump());
+        LOGGER.finest(() -> "KBnoPrinciplePoint " + KB + KB.dump());
+        LOGGER.finest(() -> "Z, pB(x, y) " + Z + ", " + java.util.Arrays.toString(pB));
+        LOGGER.finest(() -> "p " + p + p.dump());
+        LOGGER.finest(() -> "returning r " + r + r.dump());
+        LOGGER.finest(() -> "returning t " + t + t.dump());
 
         bboxZeroZ.release();
         KB.release();
@@ -355,11 +366,11 @@ public class PoseGeneratorDist {
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        LOGGER.finest("src_extParm " + src_extParm + "\n" + src_extParm.dump()); // full ChArUcoBoard size + Z
-        LOGGER.finest("tgt_rect " + tgt_rect); // guidance board posed
-        LOGGER.finest("camera matrix K " + K + "\n" + K.dump());
-        LOGGER.finest("cdist " + cdist.dump());
-        LOGGER.finest("img_sz " + img_sz.toString()); // camera screen image size
+        LOGGER.finest(() -> "src_extParm " + src_extParm + "\n" + src_extParm.dump()); // full ChArUcoBoard size + Z
+        LOGGER.finest(() -> "tgt_rect " + tgt_rect); // guidance board posed
+        LOGGER.finest(() -> "camera matrix K " + K + "\n" + K.dump());
+        LOGGER.finest(() -> "cdist " + cdist.dump());
+        LOGGER.finest(() -> "img_sz " + img_sz.toString()); // camera screen image size
 
         double[] src_ext = new double[(int)src_extParm.total()];
         src_extParm.get(0, 0, src_ext);
@@ -368,7 +379,7 @@ public class PoseGeneratorDist {
 
         int MIN_WIDTH = (int)Math.floor(img_sz.width/3.333); // posed guidance board must be about a third or more of the camera, screen size
 
-        LOGGER.finest("rot90 " + rot90);
+        LOGGER.finest(() -> "rot90 " + rot90);
 
         if (rot90)
         {
@@ -431,14 +442,14 @@ public class PoseGeneratorDist {
 
             Calib3d.Rodrigues(r, R);
 
-            LOGGER.finest("R " + R.dump());
+            LOGGER.finest(() -> "R " + R.dump());
             Mat rz = new Mat(1, 3, CvType.CV_64FC1);
             rz.put(0, 0, 0., 0., -Math.PI/2.);
             Mat Rz = new Mat();
 
             Calib3d.Rodrigues(rz, Rz);
 
-            LOGGER.finest("Rz " + Rz.dump());
+            LOGGER.finest(() -> "Rz " + Rz.dump());
 
             Core.gemm(R, Rz, 1., new Mat(), 0., R); // rotation matrix of the input Euler Angles
 
@@ -453,14 +464,14 @@ public class PoseGeneratorDist {
         }
 
         double Z = (K.get(0, 0)[0] * src_ext[0]) / tgt_rect.width;
-        LOGGER.finest("before clip tgt_rect " + tgt_rect);
+        LOGGER.finest(() -> "before clip tgt_rect " + tgt_rect);
 
         //  clip to image region
         int[] min_off = {0, 0};
         int[] max_off = {(int)(img_sz.width - tgt_rect.width), (int)(img_sz.height - tgt_rect.height)};
         tgt_rect.x = Math.min(max_off[0], Math.max(tgt_rect.x, min_off[0]));
         tgt_rect.y = Math.min(max_off[1], Math.max(tgt_rect.y, min_off[1]));
-        LOGGER.finest("after clip tgt_rect " + tgt_rect);
+        LOGGER.finest(() -> "after clip tgt_rect " + tgt_rect);
 
         if ( ! rot90)
         {
@@ -476,9 +487,12 @@ public class PoseGeneratorDist {
             tgt_rect.y -= tgt_rect.height;
         }
 
-        LOGGER.finest("returning r " + r.dump());
-        LOGGER.finest("returning t " + t.dump());
-        LOGGER.finest("returning tgt_rect " + tgt_rect);
+        if (LOGGER.isLoggable(Level.FINEST))
+        {
+            LOGGER.finest("returning r " + r.dump());
+        }
+        LOGGER.finest(() -> "returning t " + t.dump());
+        LOGGER.finest(() -> "returning tgt_rect " + tgt_rect);
 
         return new pose_from_boundsReturn(r, t, tgt_rect);
     }
@@ -524,6 +538,13 @@ public class PoseGeneratorDist {
     private Mat mask;
     private double sgn = 1.;
 
+    // candidate poses scored by information gain
+    private static final double[] candidateAngles = {-60., -40., -20., 0., 20., 40., 60.}; // degrees about one axis; the diagonals use +-40
+    private static final double[][] candidateOffsets = {{0., 0.}, {-0.15, 0.}, {0.15, 0.}, {0., -0.15}, {0., 0.15}}; // board center from the principal point, fraction of the image
+    private static final double candidateMinVisible = 0.9; // fraction of the board corners that must be in the image
+    private static final ForkJoinPool scoringPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    private static final ThreadLocal<CalibrationSolver> scoringSolver = ThreadLocal.withInitial(CalibrationSolver::new);
+
  /**
  *     generate poses based on min/ max distortion
  * @param img_size
@@ -537,6 +558,74 @@ public class PoseGeneratorDist {
             new Size(Math.floor(img_size.width/SUBSAMPLE), Math.floor(img_size.height/SUBSAMPLE)),
             CvType.CV_8UC1); // t() transpose not needed in Java since those bindings account for w-h reversal
     }
+
+    /**
+     * Copy of the generator's state to make a speculative pose with; the copy replaces the
+     * generator only if the speculative calibration is kept, so a discarded one leaves it unchanged
+     * @param posegen generator to copy; it isn't changed
+     */
+    PoseGeneratorDist(PoseGeneratorDist posegen)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.img_size = posegen.img_size;
+        this.mask = posegen.mask.clone();
+        this.sgn = posegen.sgn;
+        for (int axis = 0; axis < this.gb.length; axis++)
+        {
+            this.gb[axis].lst.clear();
+            this.gb[axis].lst.addAll(posegen.gb[axis].lst);
+        }
+    }
+
+    /**
+     * Write the angle bins, the mask of the used distortion areas and the principal point side to a
+     * SessionJournal record so the next poses are the ones that would have been generated
+     * @param out
+     * @throws IOException
+     */
+    void writeState(DataOutputStream out) throws IOException
+    {
+        for (Gen_Bin bin : this.gb)
+        {
+            out.writeInt(bin.lst.size());
+            for (double value : bin.lst)
+            {
+                out.writeDouble(value);
+            }
+        }
+        byte[] maskBytes = new byte[(int)this.mask.total()];
+        this.mask.get(0, 0, maskBytes);
+        out.writeInt(maskBytes.length);
+        out.write(maskBytes);
+        out.writeDouble(this.sgn);
+    }
+
+    /**
+     * Replace the state with what writeState wrote
+     * @param in
+     * @throws IOException
+     */
+    void readState(DataInputStream in) throws IOException
+    {
+        for (Gen_Bin bin : this.gb)
+        {
+            int size = in.readInt();
+            bin.lst.clear();
+            for (int i = 0; i < size; i++)
+            {
+                bin.lst.add(in.readDouble());
+            }
+        }
+        byte[] maskBytes = new byte[in.readInt()];
+        in.readFully(maskBytes);
+        if (maskBytes.length != this.mask.total())
+        {
+            throw new IOException("pose generator mask size " + maskBytes.length + " not " + this.mask.total());
+        }
+        this.mask.put(0, 0, maskBytes);
+        this.sgn = in.readDouble();
+    }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
 /*                                                                                                 */
@@ -550,7 +639,7 @@ public class PoseGeneratorDist {
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        return Distortion.sparse_undistort_map(K, img_size, cdist, K, subsample);
+        return DistortionMapCache.sparse_undistort_map(K, img_size, cdist, K, subsample);
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -576,11 +665,11 @@ public class PoseGeneratorDist {
     List<Mat> get_pose(Mat bbox, int nk, int tgt_param, Mat K, Mat cdist)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
-        LOGGER.finest("bbox " + bbox + "\n" + bbox.dump());
-        LOGGER.finest("nk " + nk);
-        LOGGER.finest("tgt_param " + tgt_param);
-        LOGGER.finest("camera matrix K " + K + "\n" + K.dump());
-        LOGGER.finest("cdist " + cdist.dump());
+        LOGGER.finest(() -> "bbox " + bbox + "\n" + bbox.dump());
+        LOGGER.finest(() -> "nk " + nk);
+        LOGGER.finest(() -> "tgt_param " + tgt_param);
+        LOGGER.finest(() -> "camera matrix K " + K + "\n" + K.dump());
+        LOGGER.finest(() -> "cdist " + cdist.dump());
 
         // first frame will be orbital pose from fixed angles
         if (nk == 0)
@@ -613,13 +702,13 @@ public class PoseGeneratorDist {
             // r, t = orbital_pose(bbox, *next(self.orbital[axis]));
 
             double[] angleIteration = this.orbital.apply(axis); // get the next iteration for x & y pair of angles for the given axis
-            LOGGER.finest("angleIteration " + java.util.Arrays.toString(angleIteration));
+            LOGGER.finest(() -> "angleIteration " + java.util.Arrays.toString(angleIteration));
 
             /********************************************************************************************************* */
             List<Mat> rt = orbital_pose(bbox, angleIteration[0], angleIteration[1], orbitalZfocalLength, rzFocalLength);
             /********************************************************************************************************* */
             
-            LOGGER.finest("rt " + rt.get(0).dump() + rt.get(1).dump());
+            LOGGER.finest(() -> "rt " + rt.get(0).dump() + rt.get(1).dump());
             
             Mat t = rt.get(1);
 
@@ -644,7 +733,7 @@ public class PoseGeneratorDist {
 
             rt.set(1, t); // update the nudged t and return r and t
 
-            LOGGER.finest("returning rt " + rt.get(0).dump() + rt.get(1).dump());
+            LOGGER.finest(() -> "returning rt " + rt.get(0).dump() + rt.get(1).dump());
 
             return rt;
         }
@@ -677,9 +766,9 @@ public class PoseGeneratorDist {
         Mat t = res2.t;
         Rect nbounds = res2.tgt_rect;
 
-        LOGGER.finest("returning r " + r.dump());
-        LOGGER.finest("returning t " + t.dump());
-        LOGGER.finest("nbounds " + nbounds);
+        LOGGER.finest(() -> "returning r " + r.dump());
+        LOGGER.finest(() -> "returning t " + t.dump());
+        LOGGER.finest(() -> "nbounds " + nbounds);
    
         nbounds.x = (int)Math.ceil((double)nbounds.x / SUBSAMPLE);
         nbounds.y = (int)Math.ceil((double)nbounds.y / SUBSAMPLE);
@@ -691,7 +780,7 @@ public class PoseGeneratorDist {
         Mat.ones(nbounds.height, nbounds.width, this.mask.type())
             .copyTo(this.mask.submat(nbounds.y, nbounds.y+nbounds.height, nbounds.x, nbounds.x+nbounds.width));
 
-        LOGGER.finest("mask count non-zeros = " + Core.countNonZero(this.mask) + "\n" + ArrayUtils.brief(this.mask));
+        LOGGER.finest(() -> "mask count non-zeros = " + Core.countNonZero(this.mask) + "\n" + ArrayUtils.brief(this.mask));
 
         List<Mat> rt = new ArrayList<>(2);
         rt.add(r);
@@ -702,6 +791,209 @@ public class PoseGeneratorDist {
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
 /*                                                                                                 */
+/*                                     best_pose                                                   */
+/*                                     best_pose                                                   */
+/*                                     best_pose                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * The candidate pose that is predicted to most reduce the variance of the target intrinsic.
+ * 
+ * Candidates are orbital poses about either axis and both diagonals at the principal point and
+ * moved toward each side of the image. Each is scored by projecting the board corners with the
+ * current calibration and adding the information the keyframe would give to the information of
+ * the calibration so far. Candidates are scored in parallel.
+ * 
+ * @param bbox bounding box size of the calibration pattern
+ * @param nk number of keyframes captured so far
+ * @param tgt_param intrinsic number of parameter that should be optimized by the pose
+ * @param K camera matrix current calibration estimate
+ * @param cdist distortion coefficients current calibration estimate
+ * @param covariance intrinsics covariance current calibration estimate
+ * @param reperr RMS reprojection error current calibration estimate
+ * @return rotation vector and translation vector; get_pose if no candidate can be scored
+ */
+    List<Mat> best_pose(Mat bbox, int nk, int tgt_param, Mat K, Mat cdist, Mat covariance, double reperr)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (nk < 2 || tgt_param < 0 || tgt_param >= CalibrationSolver.NINTR || cdist.total() < 5
+            || covariance.rows() != CalibrationSolver.NINTR || Double.isNaN(reperr))
+        {
+            return get_pose(bbox, nk, tgt_param, K, cdist); // initialization poses or nothing to predict from
+        }
+
+        double[] k = new double[9];
+        K.get(0, 0, k);
+        double[] d = new double[5];
+        cdist.get(0, 0, d);
+        double[] intrinsics = {k[0], k[4], k[2], k[5], d[0], d[1], d[2], d[3], d[4]};
+
+        // information of the keyframes so far; the covariance is the error variance times its inverse
+        double sigma2 = reperr*reperr/2.; // reperr is per point; 2 coordinates
+        double[] cov = new double[CalibrationSolver.NINTR*CalibrationSolver.NINTR];
+        covariance.get(0, 0, cov);
+        double[] information = new double[cov.length];
+        CalibrationSolver.pseudo_inverse(cov, CalibrationSolver.NINTR, information);
+        for (int i = 0; i < information.length; i++)
+        {
+            information[i] *= sigma2;
+        }
+
+        // the board chessboard corners
+        int nx = (int)Math.round(bbox.get(0, 0)[0]/Cfg.square_len);
+        int ny = (int)Math.round(bbox.get(1, 0)[0]/Cfg.square_len);
+        int n = (nx - 1)*(ny - 1);
+        double[] object = new double[3*n];
+        for (int j = 0, i = 0; j < ny - 1; j++)
+        {
+            for (int l = 0; l < nx - 1; l++, i++)
+            {
+                object[3*i] = (l + 1)*Cfg.square_len;
+                object[3*i + 1] = (j + 1)*Cfg.square_len;
+            }
+        }
+
+        // candidate orientations rx, ry
+        List<double[]> angles = new ArrayList<>(2*candidateAngles.length + 4);
+        for (double a : candidateAngles)
+        {
+            angles.add(new double[] {Math.toRadians(a), 0.});
+            if (a != 0.)
+            {
+                angles.add(new double[] {0., Math.toRadians(a)});
+            }
+        }
+        for (double sx = -1.; sx <= 1.; sx += 2.)
+        {
+            for (double sy = -1.; sy <= 1.; sy += 2.)
+            {
+                angles.add(new double[] {Math.toRadians(40.)*sx, Math.toRadians(40.)*sy});
+            }
+        }
+
+        List<List<Mat>> candidates = new ArrayList<>(angles.size()*candidateOffsets.length);
+        for (double[] angle : angles)
+        {
+            for (double[] offset : candidateOffsets)
+            {
+                List<Mat> rt = orbital_pose(bbox, angle[0], angle[1], orbitalZfocalLength, rzFocalLength);
+                if (offset[0] != 0. || offset[1] != 0.)
+                {
+                    Mat t = rt.get(1);
+                    MatOfPoint2f off = new MatOfPoint2f(new Point(
+                        k[2] + offset[0]*this.img_size.width, k[5] + offset[1]*this.img_size.height));
+                    Mat off3d = unproject(off, K, cdist, t.get(0, 2)[0]);
+                    off3d.put(0, 2, 0.); // zero out the Z
+                    Core.add(t, off3d, t);
+                    off.release();
+                    off3d.release();
+                }
+                candidates.add(rt);
+            }
+        }
+
+        List<Callable<Double>> tasks = new ArrayList<>(candidates.size());
+        for (List<Mat> rt : candidates)
+        {
+            double[] r = new double[3];
+            double[] t = new double[3];
+            rt.get(0).get(0, 0, r);
+            rt.get(1).get(0, 0, t);
+            tasks.add(() -> predicted_variance(intrinsics, information, sigma2, r, t, object, n, tgt_param));
+        }
+
+        int best = -1;
+        double bestVariance = Double.POSITIVE_INFINITY;
+        try
+        {
+            List<Future<Double>> scores = scoringPool.invokeAll(tasks);
+            for (int i = 0; i < scores.size(); i++)
+            {
+                double variance = scores.get(i).get();
+                if (variance < bestVariance)
+                {
+                    bestVariance = variance;
+                    best = i;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            best = -1;
+        }
+        catch (ExecutionException e)
+        {
+            LOGGER.severe("candidate pose scoring failed " + e.getCause());
+            best = -1;
+        }
+
+        for (int i = 0; i < candidates.size(); i++)
+        {
+            if (i != best)
+            {
+                candidates.get(i).get(0).release();
+                candidates.get(i).get(1).release();
+            }
+        }
+
+        if (best < 0)
+        {
+            LOGGER.warning("no candidate pose scored; using the heuristic pose");
+            return get_pose(bbox, nk, tgt_param, K, cdist);
+        }
+
+        if (LOGGER.isLoggable(Level.FINE))
+        {
+            LOGGER.fine(String.format("candidate %d of %d; intrinsic %d variance %.6g predicted %.6g",
+                best, candidates.size(), tgt_param, cov[(CalibrationSolver.NINTR + 1)*tgt_param], bestVariance));
+        }
+
+        return candidates.get(best);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     predicted_variance                                          */
+/*                                     predicted_variance                                          */
+/*                                     predicted_variance                                          */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Variance of an intrinsic after a keyframe at a pose is added to the calibration
+ * @param intrinsics current calibration
+ * @param information current information of the intrinsics, J'J less the poses
+ * @param sigma2 variance of the reprojection errors
+ * @param r pose rotation
+ * @param t pose translation
+ * @param object board corners
+ * @param n number of board corners
+ * @param tgt_param intrinsic
+ * @return predicted variance; infinite if too much of the board is out of the image
+ */
+    private double predicted_variance(double[] intrinsics, double[] information, double sigma2,
+        double[] r, double[] t, double[] object, int n, int tgt_param)
+    {
+        double[] info = new double[CalibrationSolver.NINTR*CalibrationSolver.NINTR];
+        int visible = scoringSolver.get().view_information(intrinsics, r, t, object, n, this.img_size, info);
+        if (visible < candidateMinVisible*n)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+        for (int i = 0; i < info.length; i++)
+        {
+            info[i] += information[i];
+        }
+        double[] cov = new double[info.length];
+        CalibrationSolver.pseudo_inverse(info, CalibrationSolver.NINTR, cov);
+        return cov[(CalibrationSolver.NINTR + 1)*tgt_param]*sigma2;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
 /*                                     pose_from_boundsReturn class                                */
 /*                                     pose_from_boundsReturn class                                */
 /*                                     pose_from_boundsReturn class                                */
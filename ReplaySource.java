@@ -0,0 +1,247 @@
+package Guidance;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     ReplaySource class                                          */
+/*                                     ReplaySource class                                          */
+/*                                     ReplaySource class                                          */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Replay a recorded session as fast as the frames are requested - no camera and no frame rate.
+ *
+ * Three recordings are understood, all written by Main.logSnapshot:
+ *   a CalibrationVideo_*.mp4 (or any video file OpenCV VideoCapture can read),
+ *   a directory of img_*.jpg snapshots replayed in file name (capture) order or
+ *   a Session_*.gsf SessionFile replayed in capture order.
+ *
+ * The throughput of the frames delivered is logged at the end of the replay with the log level so
+ * replays of the same recording at different levels measure the cost of the logging.
+ */
+class ReplaySource implements FrameSource
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private final String path;
+    private VideoCapture video = null; // video file replay
+    private File[] images = null; // snapshot directory replay
+    private int nextImage = 0;
+    private SessionFile session = null; // session file replay
+
+    private boolean exhausted = false;
+    private String error = "";
+    private long frames = 0;
+    private long startTime = 0;
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     ReplaySource constructor                                    */
+/*                                     ReplaySource constructor                                    */
+/*                                     ReplaySource constructor                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param path video file or directory of img_*.jpg snapshots
+     */
+    ReplaySource(String path)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.path = path;
+        File file = new File(path);
+
+        if (path.endsWith(".gsf"))
+        {
+            try
+            {
+                this.session = SessionFile.open(Paths.get(path));
+            }
+            catch (IOException e)
+            {
+                throw new IllegalArgumentException("can't open session file to replay " + path + " " + e);
+            }
+            LOGGER.config("Replaying " + this.session.size() + " captures from session file " + path);
+        }
+        else
+        if (file.isDirectory())
+        {
+            this.images = file.listFiles((dir, name) -> name.startsWith("img_") && name.endsWith(".jpg"));
+            if (this.images == null || this.images.length == 0)
+            {
+                throw new IllegalArgumentException("no img_*.jpg snapshots to replay in " + path);
+            }
+            Arrays.sort(this.images); // names are date and sequence number so sorted is capture order
+            LOGGER.config("Replaying " + this.images.length + " snapshots from " + path);
+        }
+        else
+        {
+            this.video = new VideoCapture(path);
+            if ( ! this.video.isOpened())
+            {
+                throw new IllegalArgumentException("can't open video to replay " + path);
+            }
+            LOGGER.config("Replaying video " + path);
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     grabFrame                                                   */
+/*                                     grabFrame                                                   */
+/*                                     grabFrame                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Read the next recorded frame; never waits so the timeout is ignored
+     * @param image destination of the frame
+     * @param timeout not used
+     * @return frame sequence number (starts at 1) or 0 at the end of the replay
+     */
+    public long grabFrame(Mat image, double timeout)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.exhausted)
+        {
+            return 0;
+        }
+
+        if (this.startTime == 0)
+        {
+            this.startTime = System.nanoTime();
+        }
+
+        if (this.video != null)
+        {
+            if ( ! this.video.read(image) || image.empty())
+            {
+                return endOfReplay();
+            }
+        }
+        else
+        if (this.session != null)
+        {
+            if (this.nextImage >= this.session.size())
+            {
+                return endOfReplay();
+            }
+            Mat capture;
+            try
+            {
+                capture = this.session.capture(this.nextImage++).frame();
+            }
+            catch (IOException e)
+            {
+                LOGGER.severe("session file capture not read; replay ended " + e);
+                return endOfReplay();
+            }
+            capture.copyTo(image);
+            capture.release();
+        }
+        else
+        {
+            while (true)
+            {
+                if (this.nextImage >= this.images.length)
+                {
+                    return endOfReplay();
+                }
+                File imageFile = this.images[this.nextImage++];
+                Mat snapshot = Imgcodecs.imread(imageFile.getPath());
+                if ( ! snapshot.empty())
+                {
+                    snapshot.copyTo(image);
+                    snapshot.release();
+                    break;
+                }
+                LOGGER.warning("skipping unreadable snapshot " + imageFile);
+            }
+        }
+
+        return ++this.frames;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     endOfReplay                                                 */
+/*                                     endOfReplay                                                 */
+/*                                     endOfReplay                                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private long endOfReplay()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        this.exhausted = true;
+        this.error = "end of replay " + this.path;
+
+        double seconds = (System.nanoTime() - this.startTime) / 1.e9;
+        LOGGER.info(String.format("Replayed %d frames in %.2f seconds, %.1f frames per second, %.2f ms per frame at log level %s",
+            this.frames, seconds, seconds > 0. ? this.frames / seconds : 0.,
+            this.frames > 0 ? seconds * 1000. / this.frames : 0., Cfg.loggerMinimumLevel));
+
+        return 0;
+    }
+
+    public String getError()
+    {
+        return this.error;
+    }
+
+    public boolean isExhausted()
+    {
+        return this.exhausted;
+    }
+
+    public boolean isLive()
+    {
+        return false;
+    }
+
+    public void close()
+    {
+        if (this.video != null)
+        {
+            this.video.release();
+        }
+        if (this.session != null)
+        {
+            try
+            {
+                this.session.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warning("session file not closed " + e);
+            }
+        }
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End ReplaySource class                                      */
+/*                                     End ReplaySource class                                      */
+/*                                     End ReplaySource class                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
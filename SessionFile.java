@@ -0,0 +1,545 @@
+package Guidance;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SessionFile class                                           */
+/*                                     SessionFile class                                           */
+/*                                     SessionFile class                                           */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Binary file of a calibration session's captures - the alternative to the img_*.jpg files, video
+ * and vnlog of logSnapshot that loads in milliseconds.
+ *
+ * The file is appended to through memory mapped regions of the file so a capture is a few copies
+ * into memory and the operating system writes it to the disk. Closing the file writes the index of
+ * the captures' offsets; a file that wasn't closed (a crash) is read by walking the captures. Each
+ * capture is mapped by itself to be read so a file of any size can be read.
+ *
+ * Layout (big-endian like DataOutputStream):
+ *   header HEADER_SIZE bytes - magic, version, image width and height, board squares x and y,
+ *     square and marker lengths, dictionary, index offset (0 until closed), capture count and the
+ *     session's date and time (the file name part of the exported files)
+ *   each capture - its length after the length field, capture number, number of corners n,
+ *     n corner ids, n x, y image points, n x, y, z board points, PNG length and the PNG frame
+ *     (lossless)
+ *   index - capture count and the offset of each capture
+ *
+ * The exporters write the vnlog (mrgingham format for mrcal), the video (for wpical) and the
+ * img_*.jpg files the same as logSnapshot writes them. A session file can also be replayed.
+ */
+class SessionFile
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private static final int FILE_MAGIC = 0x47534631; // "GSF1" start of a session file
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 96;
+    private static final int INDEX_OFFSET_POSITION = 40; // in the header
+    private static final int FILE_TIME_LENGTH = 40; // bytes for the date and time at the end of the header
+    private static final long REGION_SIZE = 32L << 20; // size of each mapped region the captures are appended to
+
+    /**
+     * One capture read from the file
+     */
+    static class Capture
+    {
+        final int number; // capture sequence number (starts at 1)
+        final int[] ids;
+        final float[] imagePoints; // x, y of each corner
+        final float[] boardPoints; // x, y, z of each corner
+        private final byte[] png;
+
+        private Capture(int number, int[] ids, float[] imagePoints, float[] boardPoints, byte[] png)
+        {
+            this.number = number;
+            this.ids = ids;
+            this.imagePoints = imagePoints;
+            this.boardPoints = boardPoints;
+            this.png = png;
+        }
+
+        /**
+         * @return the captured frame; decoded each call
+         */
+        Mat frame()
+        {
+            MatOfByte encoded = new MatOfByte(this.png);
+            Mat frame = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_UNCHANGED);
+            encoded.release();
+            return frame;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean writing;
+    private MappedByteBuffer region; // writing: the region being appended to; not used reading
+    private long regionStart = 0; // file offset of the region
+    private long end; // file offset after the last capture
+    private final List<Long> offsets = new ArrayList<>();
+
+    // header
+    private Size img_size;
+    private int board_x;
+    private int board_y;
+    private int square_len;
+    private int marker_len;
+    private int dictionary;
+    private String fileTime;
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SessionFile constructor                                     */
+/*                                     SessionFile constructor                                     */
+/*                                     SessionFile constructor                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private SessionFile(Path path, boolean writing) throws IOException
+    {
+        LOGGER.finer("Instantiating");
+
+        this.path = path;
+        this.writing = writing;
+        this.channel = writing
+            ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(path, StandardOpenOption.READ);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     create                                                      */
+/*                                     create                                                      */
+/*                                     create                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Start a new session file for the current board configuration
+     * @param path new file; an existing file isn't overwritten
+     * @param img_size camera image size
+     * @param fileTime date and time part of the exported file names
+     * @return the session file to append captures to
+     * @throws IOException
+     */
+    static SessionFile create(Path path, Size img_size, String fileTime) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SessionFile session = new SessionFile(path, true);
+        session.img_size = img_size;
+        session.board_x = Cfg.board_x;
+        session.board_y = Cfg.board_y;
+        session.square_len = Cfg.square_len;
+        session.marker_len = Cfg.marker_len;
+        session.dictionary = Cfg.dictionary;
+        session.fileTime = fileTime;
+
+        session.map(0, REGION_SIZE);
+        ByteBuffer header = session.region;
+        header.putInt(FILE_MAGIC);
+        header.putInt(VERSION);
+        header.putInt((int)img_size.width);
+        header.putInt((int)img_size.height);
+        header.putInt(session.board_x);
+        header.putInt(session.board_y);
+        header.putInt(session.square_len);
+        header.putInt(session.marker_len);
+        header.putInt(session.dictionary);
+        header.putInt(0); // reserved
+        header.putLong(0L); // index offset; 0 until closed
+        header.putInt(0); // capture count
+        byte[] time = fileTime.getBytes(StandardCharsets.UTF_8);
+        header.putShort((short)Math.min(time.length, FILE_TIME_LENGTH));
+        header.put(time, 0, Math.min(time.length, FILE_TIME_LENGTH));
+        header.position(HEADER_SIZE);
+        session.end = HEADER_SIZE;
+
+        LOGGER.config("Saving the captures to session file " + path);
+        return session;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     open                                                        */
+/*                                     open                                                        */
+/*                                     open                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Open a session file to read its captures
+     * @param path
+     * @return the session file
+     * @throws IOException not a session file
+     */
+    static SessionFile open(Path path) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SessionFile session = new SessionFile(path, false);
+        long size = session.channel.size();
+        if (size < HEADER_SIZE)
+        {
+            session.channel.close();
+            throw new IOException("not a session file " + path);
+        }
+        try
+        {
+            ByteBuffer file = session.read(0, HEADER_SIZE);
+            if (file.getInt() != FILE_MAGIC || file.getInt() != VERSION)
+            {
+                throw new IOException("not a version " + VERSION + " session file " + path);
+            }
+            session.img_size = new Size(file.getInt(), file.getInt());
+            session.board_x = file.getInt();
+            session.board_y = file.getInt();
+            session.square_len = file.getInt();
+            session.marker_len = file.getInt();
+            session.dictionary = file.getInt();
+            file.getInt(); // reserved
+            long indexOffset = file.getLong();
+            int count = file.getInt();
+            byte[] time = new byte[file.getShort()];
+            file.get(time);
+            session.fileTime = new String(time, StandardCharsets.UTF_8);
+
+            if (indexOffset > 0)
+            {
+                count = session.read(indexOffset, 4).getInt();
+                ByteBuffer index = session.read(indexOffset + 4, 8*count);
+                for (int i = 0; i < count; i++)
+                {
+                    session.offsets.add(index.getLong());
+                }
+                session.end = indexOffset;
+            }
+            else // not closed; walk the captures to the first empty length
+            {
+                long offset = HEADER_SIZE;
+                while (offset + 4 <= size)
+                {
+                    int length = session.read(offset, 4).getInt();
+                    if (length <= 0 || offset + 4 + length > size)
+                    {
+                        break;
+                    }
+                    session.offsets.add(offset);
+                    offset += 4 + length;
+                }
+                session.end = offset;
+                LOGGER.warning("session file " + path + " wasn't closed; found " + session.offsets.size() + " captures");
+            }
+        }
+        catch (IOException e)
+        {
+            session.channel.close();
+            throw e;
+        }
+
+        LOGGER.config("Session file " + path + " " + session.offsets.size() + " captures " + session.img_size
+            + " board " + session.board_x + "x" + session.board_y);
+        return session;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     append                                                      */
+/*                                     append                                                      */
+/*                                     append                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Append a capture
+     * @param frame camera image
+     * @param ids detected corner ids
+     * @param imagePoints x, y of each detected corner
+     * @param boardPoints x, y, z of each detected corner on the board
+     * @throws IOException
+     */
+    void append(Mat frame, int[] ids, float[] imagePoints, float[] boardPoints) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if ( ! this.writing)
+        {
+            throw new IllegalStateException("session file " + this.path + " is open for reading");
+        }
+
+        MatOfByte encoded = new MatOfByte();
+        MatOfInt pngParams = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, 1); // fast; PNG is lossless at any level
+        if ( ! Imgcodecs.imencode(".png", frame, encoded, pngParams))
+        {
+            throw new IOException("frame not encoded");
+        }
+        byte[] png = encoded.toArray();
+        encoded.release();
+
+        int n = ids.length;
+        int length = 4 + 4 + 4*n + 4*2*n + 4*3*n + 4 + png.length; // after the length field
+        reserve(4 + length);
+
+        ByteBuffer buffer = this.region;
+        buffer.putInt(length);
+        buffer.putInt(this.offsets.size() + 1);
+        buffer.putInt(n);
+        buffer.asIntBuffer().put(ids, 0, n);
+        buffer.position(buffer.position() + 4*n);
+        buffer.asFloatBuffer().put(imagePoints, 0, 2*n);
+        buffer.position(buffer.position() + 4*2*n);
+        buffer.asFloatBuffer().put(boardPoints, 0, 3*n);
+        buffer.position(buffer.position() + 4*3*n);
+        buffer.putInt(png.length);
+        buffer.put(png);
+
+        this.offsets.add(this.end);
+        this.end += 4 + length;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     reserve                                                     */
+/*                                     reserve                                                     */
+/*                                     reserve                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Map a new region at the end of the file if the bytes don't fit in the current one
+     * @param bytes
+     * @throws IOException
+     */
+    private void reserve(long bytes) throws IOException
+    {
+        if (this.region.remaining() < bytes)
+        {
+            this.region.force();
+            map(this.end, Math.max(REGION_SIZE, bytes));
+        }
+    }
+
+    private void map(long start, long size) throws IOException
+    {
+        this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, start, size); // grows the file
+        this.regionStart = start;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     capture                                                     */
+/*                                     capture                                                     */
+/*                                     capture                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param index 0 to size() - 1
+     * @return the capture
+     * @throws IOException
+     */
+    Capture capture(int index) throws IOException
+    {
+        if (this.writing)
+        {
+            throw new IllegalStateException("session file " + this.path + " is open for writing");
+        }
+
+        long offset = this.offsets.get(index);
+        int length = read(offset, 4).getInt();
+        ByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, offset + 4, length); // just this capture
+        int number = buffer.getInt();
+        int n = buffer.getInt();
+        int[] ids = new int[n];
+        buffer.asIntBuffer().get(ids);
+        buffer.position(buffer.position() + 4*n);
+        float[] imagePoints = new float[2*n];
+        buffer.asFloatBuffer().get(imagePoints);
+        buffer.position(buffer.position() + 4*2*n);
+        float[] boardPoints = new float[3*n];
+        buffer.asFloatBuffer().get(boardPoints);
+        buffer.position(buffer.position() + 4*3*n);
+        byte[] png = new byte[buffer.getInt()];
+        buffer.get(png);
+
+        return new Capture(number, ids, imagePoints, boardPoints, png);
+    }
+
+    /**
+     * Read bytes of the file
+     * @param position file offset
+     * @param length
+     * @return the bytes ready to get
+     * @throws IOException the file ends first
+     */
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (this.channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new EOFException("session file " + this.path + " ends at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return number of captures
+     */
+    int size()
+    {
+        return this.offsets.size();
+    }
+
+    Size img_size()
+    {
+        return this.img_size;
+    }
+
+    String fileTime()
+    {
+        return this.fileTime;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Writing: write the index and the header's index offset and capture count
+     * @throws IOException
+     */
+    void close() throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if ( ! this.channel.isOpen())
+        {
+            return;
+        }
+
+        if (this.writing)
+        {
+            long indexOffset = this.end;
+            reserve(4 + 8L*this.offsets.size());
+            this.region.putInt(this.offsets.size());
+            for (long offset : this.offsets)
+            {
+                this.region.putLong(offset);
+            }
+            this.region.force();
+
+            // the header last so an index offset is only there if the index is
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putLong(indexOffset);
+            header.putInt(this.offsets.size());
+            header.flip();
+            this.channel.write(header, INDEX_OFFSET_POSITION);
+
+            long length = this.regionStart + this.region.position();
+            try
+            {
+                this.channel.truncate(length); // drop the unused end of the last region
+            }
+            catch (IOException e)
+            {
+                // some systems can't truncate a file that's mapped; the header says where the index is
+                LOGGER.fine(() -> "session file not truncated " + e);
+            }
+            LOGGER.config("Session file " + this.path + " " + this.offsets.size() + " captures closed");
+        }
+        this.channel.close();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     export                                                      */
+/*                                     export                                                      */
+/*                                     export                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Write the captures of a session file as logSnapshot does - the img_*.jpg files, the video and
+     * the vnlog corners
+     * @param sessionFile
+     * @throws IOException
+     */
+    static void export(String sessionFile) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SessionFile session = open(Paths.get(sessionFile));
+        int nCorners = (session.board_x - 1)*(session.board_y - 1);
+        String fileTime = session.fileTime;
+
+        VideoCreation video = new VideoCreation(Cfg.videoFile + fileTime + ".mp4", session.img_size);
+        try (PrintWriter vnlog = new PrintWriter(Cfg.cornersLog + fileTime + ".vnl"))
+        {
+            vnlog.println("## produced by pose guidance calibration program");
+            vnlog.println("# filename x y level");
+
+            MatOfInt writeBoardParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 100); // pair-wise; param1, value1, ...
+            for (int i = 0; i < session.size(); i++)
+            {
+                Capture capture = session.capture(i);
+                Mat frame = capture.frame();
+                String filename = String.format("img_%s_%03d.jpg", fileTime, capture.number);
+                video.addFrame(frame);
+                Imgcodecs.imwrite(filename, frame, writeBoardParams);
+                frame.release();
+
+                SnapshotWriter.writeCorners(vnlog, filename, nCorners, capture.ids, capture.imagePoints);
+            }
+        }
+        finally
+        {
+            video.close();
+            session.close();
+        }
+        LOGGER.info("Exported " + session.size() + " captures from " + sessionFile);
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End SessionFile class                                       */
+/*                                     End SessionFile class                                       */
+/*                                     End SessionFile class                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
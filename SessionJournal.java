@@ -0,0 +1,455 @@
+package Guidance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SessionJournal class                                        */
+/*                                     SessionJournal class                                        */
+/*                                     SessionJournal class                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Append-only journal of the guidance state after each capture's calibration so a session that
+ * stopped (crash, power, closed window) resumes at the same capture, intrinsics and target pose
+ * without recalibrating.
+ *
+ * append() only queues a record; the journal writer thread writes each record and forces it to
+ * the disk so the frame loop doesn't wait for the disk. close() waits for the queued records. A
+ * record that was only partly written when the program stopped fails its CRC and it and anything
+ * after it are dropped when the journal is opened to resume.
+ *
+ * Layout (big-endian like DataOutputStream):
+ *   header HEADER_SIZE bytes - magic, version, image width and height, board squares x and y,
+ *     square and marker lengths and dictionary
+ *   each record - length of the body, CRC-32 of the body and the body UserGuidance wrote
+ */
+class SessionJournal
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    private static final int FILE_MAGIC = 0x47534A31; // "GSJ1" start of a session journal
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 36;
+    private static final int RECORD_HEADER_SIZE = 8; // length and CRC
+
+    private final Path path;
+    private final FileChannel channel;
+    private long end; // file offset after the last good record
+    private final List<byte[]> records = new ArrayList<>(); // bodies of the records read to resume
+
+    private static final byte[] END = new byte[0]; // close() queues it after the last record
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(); // records are small and one per capture
+    private Thread writer = null; // started once the journal is ready to append to
+    private volatile IOException failure = null; // the writer's error; no more records are written
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SessionJournal constructor                                  */
+/*                                     SessionJournal constructor                                  */
+/*                                     SessionJournal constructor                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    private SessionJournal(Path path, boolean create) throws IOException
+    {
+        LOGGER.finer("Instantiating");
+
+        this.path = path;
+        this.channel = create
+            ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     create                                                      */
+/*                                     create                                                      */
+/*                                     create                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Start a new journal for the current board configuration
+     * @param path new file; an existing file isn't overwritten
+     * @param img_size camera image size
+     * @return the journal to append records to
+     * @throws IOException
+     */
+    static SessionJournal create(Path path, Size img_size) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SessionJournal journal = new SessionJournal(path, true);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(FILE_MAGIC);
+        header.putInt(VERSION);
+        header.putInt((int)img_size.width);
+        header.putInt((int)img_size.height);
+        header.putInt(Cfg.board_x);
+        header.putInt(Cfg.board_y);
+        header.putInt(Cfg.square_len);
+        header.putInt(Cfg.marker_len);
+        header.putInt(Cfg.dictionary);
+        header.flip();
+        journal.channel.write(header, 0);
+        journal.channel.force(true); // the file itself, not just its contents
+        journal.end = HEADER_SIZE;
+        journal.start();
+
+        LOGGER.config("Journaling the guidance to " + path);
+        return journal;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     open                                                        */
+/*                                     open                                                        */
+/*                                     open                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Open a journal to resume it; its records are read and new records are appended after the last
+     * good one
+     * @param path
+     * @param img_size camera image size; must be the journal's
+     * @return the journal
+     * @throws IOException not a journal or not of this camera and board
+     */
+    static SessionJournal open(Path path, Size img_size) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SessionJournal journal = new SessionJournal(path, false);
+        try
+        {
+            long size = journal.channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (size < HEADER_SIZE || journal.channel.read(header, 0) < HEADER_SIZE)
+            {
+                throw new IOException("not a session journal " + path);
+            }
+            header.flip();
+            if (header.getInt() != FILE_MAGIC || header.getInt() != VERSION)
+            {
+                throw new IOException("not a version " + VERSION + " session journal " + path);
+            }
+            Size journalSize = new Size(header.getInt(), header.getInt());
+            int[] board = {header.getInt(), header.getInt(), header.getInt(), header.getInt(), header.getInt()};
+            int[] boardNow = {Cfg.board_x, Cfg.board_y, Cfg.square_len, Cfg.marker_len, Cfg.dictionary};
+            if ( ! journalSize.equals(img_size) || ! Arrays.equals(board, boardNow))
+            {
+                throw new IOException("session journal " + path + " is of image " + journalSize
+                    + " board " + Arrays.toString(board) + " not image " + img_size
+                    + " board " + Arrays.toString(boardNow));
+            }
+
+            // read the records to the first bad one
+            long offset = HEADER_SIZE;
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            while (offset + RECORD_HEADER_SIZE <= size)
+            {
+                recordHeader.clear();
+                journal.channel.read(recordHeader, offset);
+                recordHeader.flip();
+                int length = recordHeader.getInt();
+                int crcRecord = recordHeader.getInt();
+                if (length <= 0 || offset + RECORD_HEADER_SIZE + length > size)
+                {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                journal.channel.read(body, offset + RECORD_HEADER_SIZE);
+                crc.reset();
+                crc.update(body.array());
+                if ((int)crc.getValue() != crcRecord)
+                {
+                    break;
+                }
+                journal.records.add(body.array());
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            if (offset < size)
+            {
+                LOGGER.warning("session journal " + path + " last record incomplete; " + (size - offset) + " bytes dropped");
+                journal.channel.truncate(offset);
+                journal.channel.force(true);
+            }
+            journal.end = offset;
+            journal.start();
+        }
+        catch (IOException e)
+        {
+            journal.channel.close();
+            throw e;
+        }
+
+        LOGGER.config("Resuming from session journal " + path + " " + journal.records.size() + " records");
+        return journal;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     append                                                      */
+/*                                     append                                                      */
+/*                                     append                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Queue a record to be appended; the writer thread writes it and forces it to the disk
+     * @param body
+     * @throws IOException an earlier record wasn't written; the journal is unusable
+     */
+    void append(byte[] body) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.failure != null)
+        {
+            throw this.failure;
+        }
+        if (this.writer == null || ! this.writer.isAlive())
+        {
+            throw new IOException("session journal " + this.path + " is closed");
+        }
+        this.queue.add(body);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * writer thread; writes and forces the records until END or an error
+     */
+    private void write()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        CRC32 crc = new CRC32();
+        try
+        {
+            while (true)
+            {
+                byte[] body = this.queue.take();
+                if (body == END)
+                {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(body);
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+                record.putInt(body.length);
+                record.putInt((int)crc.getValue());
+                record.put(body);
+                record.flip();
+                while (record.hasRemaining())
+                {
+                    this.end += this.channel.write(record, this.end);
+                }
+                this.channel.force(false); // the file length is forced with the contents it's needed to read
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.severe("session journal " + this.path + " not written; journaling stopped " + e);
+            this.failure = e;
+        }
+        catch (InterruptedException e)
+        {
+            LOGGER.severe("session journal writer interrupted; records may be lost " + e);
+        }
+    }
+
+    /**
+     * start the writer thread after the journal is created or its records are read
+     */
+    private void start()
+    {
+        this.writer = new Thread(this::write, "journal writer");
+        this.writer.setDaemon(true); // close() drains it
+        this.writer.start();
+    }
+
+    /**
+     * @return number of records read when the journal was opened
+     */
+    int records()
+    {
+        return this.records.size();
+    }
+
+    /**
+     * @param index 0 to records() - 1
+     * @return the body of the record
+     */
+    DataInputStream record(int index)
+    {
+        return new DataInputStream(new ByteArrayInputStream(this.records.get(index)));
+    }
+
+    /**
+     * @return stream to write a record's body to then append(toByteArray())
+     */
+    static ByteArrayOutputStream body()
+    {
+        return new ByteArrayOutputStream(4096);
+    }
+
+    Path path()
+    {
+        return this.path;
+    }
+
+    /**
+     * Wait for the queued records to be written and close the journal
+     * @throws IOException a record wasn't written
+     */
+    void close() throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.writer != null && this.writer.isAlive())
+        {
+            this.queue.add(END);
+            try
+            {
+                this.writer.join();
+            }
+            catch (InterruptedException e)
+            {
+                LOGGER.severe("session journal not drained; records may be lost " + e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.channel.isOpen())
+        {
+            this.channel.close();
+            LOGGER.config("Session journal " + this.path + " closed");
+        }
+        if (this.failure != null)
+        {
+            throw this.failure;
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     writeMat                                                    */
+/*                                     writeMat                                                    */
+/*                                     writeMat                                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Write a single channel Mat as its rows, cols and double data; an empty Mat is 0 rows and cols
+     * @param out
+     * @param mat
+     * @throws IOException
+     */
+    static void writeMat(DataOutputStream out, Mat mat) throws IOException
+    {
+        if (mat.empty())
+        {
+            out.writeInt(0);
+            out.writeInt(0);
+            return;
+        }
+        Mat doubles = mat;
+        if (mat.type() != CvType.CV_64FC1 || ! mat.isContinuous())
+        {
+            doubles = new Mat();
+            mat.convertTo(doubles, CvType.CV_64FC1);
+        }
+        double[] data = new double[(int)doubles.total()];
+        doubles.get(0, 0, data);
+        if (doubles != mat)
+        {
+            doubles.release();
+        }
+        out.writeInt(mat.rows());
+        out.writeInt(mat.cols());
+        writeDoubles(out, data);
+    }
+
+    /**
+     * @param in
+     * @return CV_64FC1 Mat written by writeMat
+     * @throws IOException
+     */
+    static Mat readMat(DataInputStream in) throws IOException
+    {
+        int rows = in.readInt();
+        int cols = in.readInt();
+        if (rows == 0 || cols == 0)
+        {
+            return new Mat();
+        }
+        Mat mat = new Mat(rows, cols, CvType.CV_64FC1);
+        mat.put(0, 0, readDoubles(in, rows*cols));
+        return mat;
+    }
+
+    /**
+     * Write doubles without their count; the reader knows it
+     */
+    static void writeDoubles(DataOutputStream out, double[] data) throws IOException
+    {
+        for (double value : data)
+        {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(DataInputStream in, int count) throws IOException
+    {
+        double[] data = new double[count];
+        for (int i = 0; i < count; i++)
+        {
+            data[i] = in.readDouble();
+        }
+        return data;
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End SessionJournal class                                    */
+/*                                     End SessionJournal class                                    */
+/*                                     End SessionJournal class                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
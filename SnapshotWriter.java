@@ -0,0 +1,366 @@
+package Guidance;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.objdetect.CharucoBoard;
+import org.opencv.objdetect.Dictionary;
+import org.opencv.objdetect.Objdetect;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SnapshotWriter class                                        */
+/*                                     SnapshotWriter class                                        */
+/*                                     SnapshotWriter class                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Writes the snapshots of a calibration on its own thread so the frame loop doesn't wait on the
+ * disk just as the user holds the camera still for the capture.
+ *
+ * Each snapshot is saved three ways:
+ *   an img_*.jpg image file,
+ *   a frame of the CalibrationVideo_*.mp4 video (for wpical) and
+ *   the board corners in the Corners_*.vnl vnlog (mrgingham format for mrcal).
+ *
+ * Or, with Cfg.sessionFile, each snapshot is appended to a binary SessionFile instead and the
+ * image files, video and vnlog are exported from it later (-export).
+ *
+ * The snapshots wait in a bounded queue; if the writer falls that far behind the frame loop waits
+ * for room rather than lose a snapshot. close() writes everything queued and closes the files.
+ */
+class SnapshotWriter
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    /**
+     * One captured frame and its detected corners - copies the writer owns
+     */
+    private static class Snapshot
+    {
+        final Mat img;
+        final int[] cids; // detected corner ids in ascending order
+        final float[] corners; // x, y of each detected corner
+
+        Snapshot(Mat img, int[] cids, float[] corners)
+        {
+            this.img = img;
+            this.cids = cids;
+            this.corners = corners;
+        }
+    }
+
+    private static final Snapshot END = new Snapshot(null, null, null); // close() queues it after the last snapshot
+
+    private final BlockingQueue<Snapshot> queue = new ArrayBlockingQueue<>(Cfg.snapshotQueueDepth);
+    private final Thread writer;
+    private final String fileTime;
+    private final Size img_size;
+    private final int nCorners; // all the corners on the board
+    private final float[] chessboardCorners; // x, y, z of each corner on the board
+    private PrintWriter vnlog = null;
+    private VideoCreation video = null;
+    private SessionFile session = null;
+    private int captureCount = 0;
+    private boolean closed = false;
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SnapshotWriter constructor                                  */
+/*                                     SnapshotWriter constructor                                  */
+/*                                     SnapshotWriter constructor                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param fileTime date and time part of the file names
+     * @param img_size size of the video frames
+     */
+    SnapshotWriter(String fileTime, Size img_size)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.fileTime = fileTime;
+        this.img_size = img_size;
+
+        // Charuco Board configuration (duplicates ChArucoDetector)
+        Size board_sz = new Size(Cfg.board_x, Cfg.board_y);
+        Dictionary dictionary = Objdetect.getPredefinedDictionary(Cfg.dictionary);
+        CharucoBoard board = new CharucoBoard(board_sz, Cfg.square_len, Cfg.marker_len, dictionary);
+        Mat chessboardCornersMat = board.getChessboardCorners();
+        this.nCorners = chessboardCornersMat.rows();
+        this.chessboardCorners = new float[chessboardCornersMat.rows()*chessboardCornersMat.cols()
+            *chessboardCornersMat.channels()]; // below assumes x, y and z in a row
+        chessboardCornersMat.get(0, 0, this.chessboardCorners);
+        LOGGER.finest(() -> "all checkerboard corners\n" + chessboardCornersMat.dump());
+
+        this.writer = new Thread(this::write, "snapshot writer");
+        this.writer.setDaemon(true); // close() drains it
+        this.writer.start();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     add                                                         */
+/*                                     add                                                         */
+/*                                     add                                                         */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Queue a snapshot to be written; waits only if the queue is full
+     * @param img camera image; copied so the caller can reuse it
+     * @param idCorners detected corner ids (one int per row)
+     * @param imagePoints detected corners (x, y per row)
+     */
+    void add(Mat img, Mat idCorners, Mat imagePoints)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.closed)
+        {
+            LOGGER.warning("snapshot after the snapshot files were closed not saved");
+            return;
+        }
+
+        int[] cids = new int[idCorners.rows()];
+        idCorners.get(0, 0, cids);
+        float[] corners = new float[imagePoints.rows()*imagePoints.cols()*imagePoints.channels()];
+        imagePoints.get(0, 0, corners);
+        Snapshot snapshot = new Snapshot(img.clone(), cids, corners);
+
+        try
+        {
+            if ( ! this.queue.offer(snapshot))
+            {
+                LOGGER.warning("snapshot writer is " + Cfg.snapshotQueueDepth + " snapshots behind; waiting for it");
+                this.queue.put(snapshot);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOGGER.severe("snapshot not saved " + e);
+            snapshot.img.release();
+            Thread.currentThread().interrupt();
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                     write                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * writer thread; writes the snapshots until END then closes the files
+     */
+    private void write()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        try
+        {
+            while (true)
+            {
+                Snapshot snapshot = this.queue.take();
+                if (snapshot == END)
+                {
+                    break;
+                }
+                try
+                {
+                    save(snapshot);
+                }
+                catch (IOException e)
+                {
+                    LOGGER.severe("snapshot not saved " + e);
+                }
+                finally
+                {
+                    snapshot.img.release();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOGGER.severe("snapshot writer interrupted; snapshots may be lost " + e);
+        }
+
+        if (this.vnlog != null)
+        {
+            this.vnlog.close();
+        }
+        if (this.video != null)
+        {
+            this.video.close();
+        }
+        if (this.session != null)
+        {
+            try
+            {
+                this.session.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.severe("session file not closed " + e);
+            }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     save                                                        */
+/*                                     save                                                        */
+/*                                     save                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Save the snapshot image, video frame and corners or append it to the session file
+     * @param snapshot
+     * @throws IOException
+     */
+    private void save(Snapshot snapshot) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (Cfg.sessionFile)
+        {
+            if (this.session == null) // first time switch
+            {
+                this.session = SessionFile.create(Paths.get(Cfg.sessionFilePrefix + this.fileTime + ".gsf"), this.img_size, this.fileTime);
+            }
+
+            float[] boardPoints = new float[3*snapshot.cids.length];
+            for (int i = 0; i < snapshot.cids.length; i++)
+            {
+                System.arraycopy(this.chessboardCorners, 3*snapshot.cids[i], boardPoints, 3*i, 3);
+            }
+            this.session.append(snapshot.img, snapshot.cids, snapshot.corners, boardPoints);
+            return;
+        }
+
+        if (this.vnlog == null) // first time switch
+        {
+            this.vnlog = new PrintWriter(Cfg.cornersLog + this.fileTime + ".vnl");
+            this.vnlog.println("## produced by pose guidance calibration program");
+            this.vnlog.println("# filename x y level");
+
+            this.video = new VideoCreation(Cfg.videoFile + this.fileTime + ".mp4", this.img_size);
+        }
+
+        this.video.addFrame(snapshot.img); // write the captured frame to a video file (maybe WPIcal can use it)
+
+        // write the captured frame to a sequenced file name
+        String filename = String.format("img_%s_%03d.jpg", this.fileTime, ++this.captureCount);
+        final MatOfInt writeBoardParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 100); // pair-wise; param1, value1, ...
+        Imgcodecs.imwrite(filename, snapshot.img, writeBoardParams); // save camera image in its own file
+
+        writeCorners(this.vnlog, filename, this.nCorners, snapshot.cids, snapshot.corners);
+        this.vnlog.flush();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     writeCorners                                                */
+/*                                     writeCorners                                                */
+/*                                     writeCorners                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Write a snapshot's corners to the vnlog - one line for each corner on the board
+     * @param vnlog
+     * @param filename snapshot image file
+     * @param nCorners all the corners on the board
+     * @param cids detected corner ids in ascending order
+     * @param corners x, y of each detected corner
+     */
+    static void writeCorners(PrintWriter vnlog, String filename, int nCorners, int[] cids, float[] corners)
+    {
+        // detected corners have the x y printed; missing corners have - - printed
+        // board w = 9 h = 6 => 54 squares; 8x5 => 40 interior corners possible
+
+        int detectedCornerIndex = 0;
+        // put out values for all possible squares - one corner per square
+        for (int allCornersIndx = 0; allCornersIndx < nCorners; allCornersIndx++)
+        {
+            String detectedX = "-"; // initially indicate not detected corner MrGingham style
+            String detectedY = "-";
+            // get the next detected corner and check if this is the place to write it
+            // assume corner ids sorted so access is more efficient
+            if (detectedCornerIndex < cids.length && cids[detectedCornerIndex] == allCornersIndx)
+            {
+                detectedX = Float.toString(corners[detectedCornerIndex*2]);
+                detectedY = Float.toString(corners[detectedCornerIndex*2+1]);
+                detectedCornerIndex++;
+            }
+            StringBuilder logLine = new StringBuilder();
+            logLine.append(filename);
+            logLine.append(" ");
+            logLine.append(detectedX);
+            logLine.append(" ");
+            logLine.append(detectedY);
+            logLine.append(" 0"); // decimations or scale factor; always 0 which is full resolution ((1/2)**N)
+            vnlog.println(logLine.toString());
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                     close                                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Write the snapshots queued and close the files; waits for the writer to finish
+     */
+    void close()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+
+        try
+        {
+            this.queue.put(END);
+            this.writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            LOGGER.severe("snapshot files may not be complete " + e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End SnapshotWriter class                                    */
+/*                                     End SnapshotWriter class                                    */
+/*                                     End SnapshotWriter class                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
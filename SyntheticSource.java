@@ -0,0 +1,464 @@
+package Guidance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SyntheticSource class                                       */
+/*                                     SyntheticSource class                                       */
+/*                                     SyntheticSource class                                       */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/**
+ * Synthetic camera - the ChArUco board rendered through a known camera matrix K and distortion
+ * cdist (the ground truth) at any resolution and frame rate.
+ *
+ * Each frame is one remap of the board image: the distortion map (make_distort_map, the same one
+ * BoardPreview uses) takes each camera pixel to its undistorted pixel and the inverse of the board
+ * pose homography takes that to the board. Then the exposure, blur and sensor noise are applied.
+ * The noise is seeded by the frame number so the same frame is always the same image.
+ *
+ * The board either moves through the fixed POSES or, if it's following a UserGuidance, moves toward
+ * the guidance board as a user would: its outline in the camera image is made to match the outline
+ * drawn for the guidance pose with the current estimate of the intrinsics.
+ *
+ * At the end of a calibration compare() logs how far the calibrated intrinsics are from the truth.
+ */
+class SyntheticSource implements FrameSource
+{
+    private static Logger LOGGER;
+    static {
+      LOGGER = Logger.getLogger("");
+      LOGGER.finer("Loading");
+    }
+
+    // board rotations (degrees about x, y, z) and width as a fraction of the image width; the board
+    // faces the camera and is centered in the image
+    static final double[][] POSES = {
+        {  0.,   0.,   0., .60}, { 20.,   0.,   0., .60}, {-20.,   0.,   0., .60}, {  0.,  20.,   0., .60},
+        {  0., -20.,   0., .60}, { 15.,  15.,  10., .55}, {-15.,  15., -10., .55}, { 15., -15.,  10., .55},
+        {-15., -15., -10., .55}, { 30.,   0.,   5., .50}, {-30.,   0.,  -5., .50}, {  0.,  30.,   5., .50},
+        {  0., -30.,  -5., .50}, { 10.,  25.,  20., .57}, {-10., -25., -20., .57}, { 25., -10.,  15., .52},
+        {-25.,  10., -15., .52}, {  5.,   5.,  30., .65}, { -5.,  -5., -30., .65}, {  0.,   0.,  45., .45}};
+
+    private final Size img_size;
+    private final double fps; // 0 is as fast as the frames are taken
+    private final Mat K = Mat.zeros(3, 3, CvType.CV_64FC1); // ground truth
+    private final MatOfDouble cdist = new MatOfDouble(Cfg.syntheticDistortion); // ground truth
+    private final Mat boardImage;
+    private final Mat maps; // undistorted pixel of each camera pixel
+    private final double boardWidth = Cfg.board_x*Cfg.square_len;
+    private final double boardHeight = Cfg.board_y*Cfg.square_len;
+
+    // pose of the board being rendered and the pose it's moving toward
+    private final double[] pose = new double[6]; // rvec, tvec
+    private final double[] poseTarget = new double[6];
+    private Supplier<UserGuidance> guidance = null;
+
+    // reused for every frame
+    private final Mat R = new Mat();
+    private final Mat H = new Mat();
+    private final Mat Hinv = new Mat();
+    private final Mat transform = new Mat(3, 3, CvType.CV_64FC1);
+    private final Mat sourceMap = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat noise = new Mat();
+    private final Mat noisy = new Mat();
+    private final Mat noMat = new Mat();
+
+    // board outline and center points that the following matches in the camera image
+    private final MatOfPoint3f outline3d;
+    private final MatOfPoint2f outline2d = new MatOfPoint2f();
+    private final Mat rvec = new Mat();
+    private final Mat tvec = new Mat();
+
+    private long frames = 0;
+    private long nextFrameTime = 0;
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     SyntheticSource constructor                                 */
+/*                                     SyntheticSource constructor                                 */
+/*                                     SyntheticSource constructor                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param img_size frame size
+     * @param fps frames per second paced like a camera; 0 for as fast as the frames are taken
+     */
+    SyntheticSource(Size img_size, double fps)
+    {
+        LOGGER.finer("Instantiating");
+
+        this.img_size = img_size;
+        this.fps = fps;
+
+        // field of view and principal point are the same fraction of any image size
+        double f = Cfg.syntheticFocalLength*img_size.width/1280.;
+        this.K.put(0, 0, f);
+        this.K.put(1, 1, f);
+        this.K.put(0, 2, Cfg.syntheticPrincipalPoint[0]*img_size.width);
+        this.K.put(1, 2, Cfg.syntheticPrincipalPoint[1]*img_size.height);
+        this.K.put(2, 2, 1.);
+
+        this.boardImage = new ChArucoDetector(img_size).boardImage.clone(); // the board the detector looks for
+        this.maps = DistortionMapCache.make_distort_map(this.K, img_size, this.cdist, this.K);
+
+        List<Point3> outline = new ArrayList<>(9);
+        for (double y = 0.; y <= 1.; y += 0.5)
+        {
+            for (double x = 0.; x <= 1.; x += 0.5)
+            {
+                outline.add(new Point3(x*this.boardWidth, y*this.boardHeight, 0.));
+            }
+        }
+        this.outline3d = new MatOfPoint3f(outline.toArray(new Point3[0]));
+
+        pose(POSES[0], this.pose);
+
+        LOGGER.config("Synthetic camera " + img_size + (fps > 0. ? " at " + fps + " fps" : " as fast as taken")
+            + "\nground truth K\n" + this.K.dump() + "\ncdist " + this.cdist.dump());
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     follow                                                      */
+/*                                     follow                                                      */
+/*                                     follow                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Move the board toward the guidance board instead of through the fixed poses
+     * @param guidance the current UserGuidance; null until there is one
+     */
+    void follow(Supplier<UserGuidance> guidance)
+    {
+        this.guidance = guidance;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     grabFrame                                                   */
+/*                                     grabFrame                                                   */
+/*                                     grabFrame                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Render the next frame; waits for the frame time if paced
+     * @param image destination of the frame
+     * @param timeout not used; a frame is always ready within its frame time
+     * @return frame sequence number (starts at 1)
+     */
+    public long grabFrame(Mat image, double timeout)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.fps > 0.)
+        {
+            long now = System.nanoTime();
+            if (this.nextFrameTime == 0 || now - this.nextFrameTime > 1_000_000_000L) // first frame or fell far behind
+            {
+                this.nextFrameTime = now;
+            }
+            LockSupport.parkNanos(this.nextFrameTime - now);
+            this.nextFrameTime += (long)(1.e9 / this.fps);
+        }
+
+        move();
+        render(this.pose, image, this.frames);
+
+        return ++this.frames;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     move                                                        */
+/*                                     move                                                        */
+/*                                     move                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Move the board part way from its pose to the target pose - the guidance board's or the next
+     * of the fixed poses after holding this one
+     */
+    private void move()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        UserGuidance ugui = this.guidance == null ? null : this.guidance.get();
+        if (ugui == null || ! guidancePose(ugui, this.poseTarget))
+        {
+            int step = (int)(this.frames / Cfg.syntheticFramesPerPose);
+            pose(POSES[step % POSES.length], this.poseTarget);
+        }
+
+        for (int i = 0; i < this.pose.length; i++)
+        {
+            this.pose[i] += Cfg.syntheticFollowRate*(this.poseTarget[i] - this.pose[i]);
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     guidancePose                                                */
+/*                                     guidancePose                                                */
+/*                                     guidancePose                                                */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * The pose that puts the board where the guidance board is drawn.
+     *
+     * The guidance board is drawn with the estimated intrinsics so its pose with the true intrinsics
+     * is solved from where the estimate puts the board's outline in the image.
+     * @param ugui
+     * @param target output rvec, tvec
+     * @return false if there is no guidance board
+     */
+    private boolean guidancePose(UserGuidance ugui, double[] target)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        // the guidance could be on another thread (pipelined) so read only its published copies
+        UserGuidance.GuidanceSnapshot guidance = ugui.guidance_snapshot();
+        if (guidance == null || guidance.r.total() != 3 || guidance.t.total() != 3)
+        {
+            return false;
+        }
+        guidance.r.convertTo(this.rvec, CvType.CV_64FC1);
+        guidance.t.convertTo(this.tvec, CvType.CV_64FC1);
+
+        Calib3d.projectPoints(this.outline3d, this.rvec, this.tvec, guidance.K, new MatOfDouble(guidance.cdist), this.outline2d);
+        if ( ! Calib3d.solvePnP(this.outline3d, this.outline2d, this.K, this.cdist, this.rvec, this.tvec, true, Calib3d.SOLVEPNP_ITERATIVE))
+        {
+            return false;
+        }
+
+        for (int i = 0; i < 3; i++)
+        {
+            target[i] = this.rvec.get(i % this.rvec.rows(), i % this.rvec.cols())[0];
+            target[i + 3] = this.tvec.get(i % this.tvec.rows(), i % this.tvec.cols())[0];
+        }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     pose                                                        */
+/*                                     pose                                                        */
+/*                                     pose                                                        */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param fixedPose one of POSES
+     * @param pose output rvec, tvec of the board centered in the image
+     */
+    void pose(double[] fixedPose, double[] pose)
+    {
+        Mat r = new Mat(1, 3, CvType.CV_64FC1);
+        r.put(0, 0, Math.toRadians(fixedPose[0]), Math.toRadians(fixedPose[1]), Math.toRadians(fixedPose[2]));
+        Calib3d.Rodrigues(r, this.R);
+
+        // distance for the board's width in the image then the board center on the optical axis
+        double Z = this.K.get(0, 0)[0]*this.boardWidth / (fixedPose[3]*this.img_size.width);
+        for (int row = 0; row < 3; row++)
+        {
+            pose[row] = r.get(0, row)[0];
+            pose[row + 3] = -(this.R.get(row, 0)[0]*this.boardWidth/2. + this.R.get(row, 1)[0]*this.boardHeight/2.) + (row == 2 ? Z : 0.);
+        }
+        r.release();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     render                                                      */
+/*                                     render                                                      */
+/*                                     render                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Render the board at a pose
+     * @param boardPose rvec, tvec
+     * @param image output BGR camera image
+     * @param seed noise seed; the same seed is the same noise
+     */
+    void render(double[] boardPose, Mat image, long seed)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        // homography K [r1 r2 t] from the board (board image pixels) to the undistorted camera image
+        Mat r = new Mat(1, 3, CvType.CV_64FC1);
+        r.put(0, 0, boardPose[0], boardPose[1], boardPose[2]);
+        Calib3d.Rodrigues(r, this.R);
+        r.release();
+        for (int row = 0; row < 3; row++)
+        {
+            this.transform.put(row, 0, this.R.get(row, 0)[0], this.R.get(row, 1)[0], boardPose[row + 3]);
+        }
+        Core.gemm(this.K, this.transform, 1., this.noMat, 0., this.H);
+        Core.invert(this.H, this.Hinv);
+
+        // camera pixel -> undistorted camera pixel (maps) -> board image pixel (inverse homography)
+        Core.perspectiveTransform(this.maps, this.sourceMap, this.Hinv);
+        Imgproc.remap(this.boardImage, this.gray, this.sourceMap, this.noMat, Imgproc.INTER_LINEAR,
+            Core.BORDER_CONSTANT, new Scalar(255.)); // white around the board like the paper it's printed on
+
+        // exposure, lens blur and sensor noise
+        if (Cfg.syntheticExposure != 1.)
+        {
+            this.gray.convertTo(this.gray, -1, Cfg.syntheticExposure, 0.);
+        }
+        if (Cfg.syntheticBlur > 0.)
+        {
+            Imgproc.GaussianBlur(this.gray, this.gray, new Size(0., 0.), Cfg.syntheticBlur);
+        }
+        if (Cfg.syntheticNoise > 0.)
+        {
+            this.noise.create(this.gray.size(), CvType.CV_16SC1);
+            Core.setRNGSeed((int)seed);
+            Core.randn(this.noise, 0., Cfg.syntheticNoise);
+            this.gray.convertTo(this.noisy, CvType.CV_16SC1);
+            Core.add(this.noisy, this.noise, this.noisy);
+            this.noisy.convertTo(this.gray, CvType.CV_8UC1); // saturates
+        }
+
+        Imgproc.cvtColor(this.gray, image, Imgproc.COLOR_GRAY2BGR);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     compare                                                     */
+/*                                     compare                                                     */
+/*                                     compare                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Log the calibrated intrinsics' errors from the ground truth.
+     *
+     * The distortion coefficients trade off with each other and with K so the overall error is the
+     * distance in pixels between where the truth and the calibration see the same rays, over a grid
+     * of the image.
+     * @param calib
+     * @return mean pixel error over the image
+     */
+    double compare(Calibrator calib)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        Mat Kcalib = calib.K();
+        Mat cdistCalib = calib.cdist();
+        String[] names = {"fx", "fy", "cx", "cy"};
+        int[][] index = {{0, 0}, {1, 1}, {0, 2}, {1, 2}};
+        StringBuilder report = new StringBuilder("Calibration compared to the synthetic camera ground truth\n");
+        for (int i = 0; i < names.length; i++)
+        {
+            double truth = this.K.get(index[i][0], index[i][1])[0];
+            double calibrated = Kcalib.get(index[i][0], index[i][1])[0];
+            report.append(String.format("%s %.2f truth %.2f error %+.2f (%+.3f%%)%n", names[i], calibrated, truth,
+                calibrated - truth, 100.*(calibrated - truth)/truth));
+        }
+        report.append("cdist ").append(cdistCalib.dump()).append(" truth ").append(this.cdist.dump()).append('\n');
+
+        // rays of a grid of pixels by the truth then back to pixels by the calibration
+        int step = 20;
+        List<Point> grid = new ArrayList<>();
+        for (int y = step/2; y < this.img_size.height; y += step)
+        {
+            for (int x = step/2; x < this.img_size.width; x += step)
+            {
+                grid.add(new Point(x, y));
+            }
+        }
+        MatOfPoint2f pts = new MatOfPoint2f(grid.toArray(new Point[0]));
+        MatOfPoint2f rays = new MatOfPoint2f();
+        Calib3d.undistortPointsIter(pts, rays, this.K, this.cdist, this.noMat, this.noMat, Cfg.undistortPointsIterCriteria);
+        MatOfPoint3f rays3d = new MatOfPoint3f();
+        Calib3d.convertPointsToHomogeneous(rays, rays3d);
+        MatOfPoint2f reprojected = new MatOfPoint2f();
+        Mat zero = Mat.zeros(3, 1, CvType.CV_64FC1);
+        Calib3d.projectPoints(rays3d, zero, zero, Kcalib, new MatOfDouble(cdistCalib), reprojected);
+
+        Point[] truth = pts.toArray();
+        Point[] calibrated = reprojected.toArray();
+        double sum = 0.;
+        double max = 0.;
+        for (int i = 0; i < truth.length; i++)
+        {
+            double error = Math.hypot(calibrated[i].x - truth[i].x, calibrated[i].y - truth[i].y);
+            sum += error;
+            max = Math.max(max, error);
+        }
+        double mean = sum / truth.length;
+        report.append(String.format("pixel error over the image mean %.3f max %.3f; reprojection error %.3f", mean, max, calib.reperr()));
+        LOGGER.info(report.toString());
+
+        pts.release();
+        rays.release();
+        rays3d.release();
+        reprojected.release();
+        zero.release();
+
+        return mean;
+    }
+
+    /**
+     * @return ground truth camera matrix
+     */
+    Mat K()
+    {
+        return this.K;
+    }
+
+    /**
+     * @return ground truth distortion coefficients
+     */
+    Mat cdist()
+    {
+        return this.cdist;
+    }
+
+    public String getError()
+    {
+        return "";
+    }
+
+    public boolean isLive()
+    {
+        return this.fps > 0.;
+    }
+}
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     End SyntheticSource class                                   */
+/*                                     End SyntheticSource class                                   */
+/*                                     End SyntheticSource class                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
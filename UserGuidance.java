@@ -8,14 +8,28 @@ import static Guidance.ArrayUtils.argmax;
 import static Guidance.ArrayUtils.argmin;
 import static Guidance.ArrayUtils.isAllTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
@@ -61,10 +75,7 @@ public class UserGuidance {
     // private int SQUARE_LEN_PIX = 12;
 
     private Size img_size;
-    private Mat overlap;
-    private BoardPreview board;
     private Mat board_units;
-    private Mat board_warped = new Mat();
     private double var_terminate;
     private boolean converged = false;
     private boolean[] pconverged;
@@ -76,12 +87,48 @@ public class UserGuidance {
     private double pose_close_to_tgt = 0.;
     private boolean pose_reached = false;
     private boolean capture = false;
+    private boolean force_pending = false; // user forced a capture on a frame with tracked corners
     private boolean still = false;
     private String user_info_text = "initialization";
 
     private PoseGeneratorDist posegen;
-    private Mat tgt_r = new Mat();
-    private Mat tgt_t = new Mat();
+    // the displayed guidance board and the spare the calibration worker makes the next one in;
+    // swapped when the worker is done
+    private GuidanceTarget target;
+    private GuidanceTarget targetNext;
+    // the displayed target pose and the intrinsics it was drawn with for other threads to read
+    private volatile GuidanceSnapshot guidanceSnapshot = null;
+
+    // a capture is calibrated on its own thread so the frame loop doesn't stall
+    private final ExecutorService calibrationWorker = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "calibration");
+            thread.setDaemon(true); // don't hold up the program exit
+            return thread;
+        });
+    private Future<CalibrationResult> calibrationPending = null; // newest capture's calibration; null if none
+    private volatile int calibrationGeneration = 0; // newest capture; the worker skips the next pose of an older one
+    // while the user aligns with the target a detected frame close to it is calibrated as if it were
+    // captured; if the capture is that frame its calibration and next target are already made
+    private Future<CalibrationResult> speculation = null;
+    private keyframe speculationKeyframe = null; // the frame the speculation assumed would be captured
+
+    // per frame working storage
+    private final MatPool pool;
+    private boolean progressInsertValid = false; // pose_close_to_tgt drew the progress insert this frame
+
+    // analytic Jaccard score from the projected board outlines
+    private final PolygonOverlap polygonOverlap = new PolygonOverlap();
+    private final double[] camOutline = new double[8*Cfg.jaccardOutlineSamples]; // camera pose board outline
+    private int camOutlineCount = 0;
+    private boolean progressInsertOutlines = false; // the progress insert is drawn from the outlines when it's shown
+    private final MatOfPoint outlinePoints = new MatOfPoint();
+    private final List<MatOfPoint> outlinePolygons = Arrays.asList(this.outlinePoints);
+    private double jaccardMaxDifference = 0.; // VALIDATE mode largest analytic - raster difference
+
+    // crash-safe journal of the state after each capture's calibration; null if not journaling
+    private SessionJournal journal = null;
+    private int journaledKeyframes = 0; // keyframes already in the journal
 
     // getters
     public boolean converged()
@@ -94,11 +141,18 @@ public class UserGuidance {
     }
     public Mat tgt_r()
     {
-        return tgt_r;
+        return target.r;
     }
     public Mat tgt_t()
     {
-        return tgt_t;
+        return target.t;
+    }
+    /**
+     * @return the displayed target pose and intrinsics; safe to read on any thread; null if there is no target
+     */
+    GuidanceSnapshot guidance_snapshot()
+    {
+        return guidanceSnapshot;
     }
     public boolean[] pconverged()
     {
@@ -112,11 +166,16 @@ public class UserGuidance {
     {
         return pose_close_to_tgt;
     }
+    public boolean progressInsertValid()
+    {
+        return progressInsertValid;
+    }
 
-    public UserGuidance(ChArucoDetector tracker, double var_terminate, Size img_size) // force use of var_terminate=0.1 instead of defaulting
+    public UserGuidance(ChArucoDetector tracker, double var_terminate, Size img_size, MatPool pool) // force use of var_terminate=0.1 instead of defaulting
     {
         LOGGER.finer("Instantiating");
 
+        this.pool = pool;
         this.img_size = img_size;
         this.tracker = tracker;
         this.var_terminate = var_terminate;
@@ -126,10 +185,11 @@ public class UserGuidance {
         this.square_len = Cfg.square_len;
         this.marker_len = Cfg.marker_len;
         // this.SQUARE_LEN_PIX = this.square_len;
-        this.overlap = Mat.zeros((int)this.img_size.height, (int)this.img_size.width, CvType.CV_8UC1);
 
         // preview image
-        this.board = new BoardPreview(this.tracker.boardImage);
+        BoardPreview board = new BoardPreview(this.tracker.boardImage);
+        this.target = new GuidanceTarget(board, this.img_size);
+        this.targetNext = new GuidanceTarget(new BoardPreview(board), this.img_size);
 
         // desired pose of board for first frame
         // translation defined in terms of board dimensions
@@ -138,7 +198,8 @@ public class UserGuidance {
         this.board_units.put(1, 0, tracker.board_sz().height*this.square_len);
         this.board_units.put(2, 0, tracker.board_sz().width*this.square_len);
         this.posegen = new PoseGeneratorDist(this.img_size);
-        this.set_next_pose(); // set first pose
+        this.set_next_pose(this.target, this.calib, this.tgt_param, this.posegen); // set first pose
+        this.publish_guidance();
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -149,24 +210,31 @@ public class UserGuidance {
 /*                                                                                                 */
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
-    private void calibrate()
+    /**
+     * calibrate with all the keyframes and check which intrinsics converged
+     * @param calib calibration to update
+     * @param pconverged in/out; intrinsics converged
+     * @param tgt_param intrinsic the last pose targeted
+     * @return intrinsic to target with the next pose
+     */
+    private int calibrate(Calibrator calib, boolean[] pconverged, int tgt_param)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
 
         // need at least 2 keyframes to compute the variances, etc.
-        if (this.calib.keyframes.size() < 2)
+        if (calib.keyframes.size() < 2)
         {
-            return;
+            return tgt_param;
         }
 
-        double[] pvar_prev = this.calib.varIntrinsics().clone(); // calib still has the previous intrinsics to save here
-        boolean first = this.calib.keyframes.size() == 2;
+        double[] pvar_prev = calib.varIntrinsics().clone(); // calib still has the previous intrinsics to save here
+        boolean first = calib.keyframes.size() == 2;
 
         // compute the new intrinsics in calibrate
-        double[] index_of_dispersion = this.calib.calibrate(new ArrayList<>(1)); // dummy arg to use all captures
+        double[] index_of_dispersion = calib.calibrate(new ArrayList<>(1), false); // dummy arg to use all captures
 
-        double[] pvar = this.calib.varIntrinsics(); // save the new intrinsics (shorter name to match original code) to compare with the previous
+        double[] pvar = calib.varIntrinsics(); // save the new intrinsics (shorter name to match original code) to compare with the previous
 
         double[] rel_pstd = new double[pvar.length];
 
@@ -185,11 +253,11 @@ public class UserGuidance {
                 rel_pstd[i] = 1 - Math.sqrt(pvar[i]) / Math.sqrt(pvar_prev[i]); //relative change to each std dev
             }
 
-            LOGGER.finest("relative stddev " + Arrays.toString(rel_pstd));
+            LOGGER.finest(() -> "relative stddev " + Arrays.toString(rel_pstd));
             
-            if (rel_pstd[this.tgt_param] < 0)
+            if (rel_pstd[tgt_param] < 0)
             {
-                LOGGER.finest(this.INTRINSICS[this.tgt_param] + " degraded");
+                LOGGER.finest(() -> this.INTRINSICS[tgt_param] + " degraded");
             }
 
             // g0(p0 p1 p2 p3)  g1(p4 p5 p6 p7 p8)
@@ -199,7 +267,7 @@ public class UserGuidance {
                 boolean inGroup = false; // first assume not in this group
                 for (int p : g) // loop through whole group (4 or 5 items)
                 {
-                    if (this.tgt_param == p)
+                    if (tgt_param == p)
                     {
                         inGroup = true; // found it in this group
                         break; // no need to check further
@@ -217,29 +285,29 @@ public class UserGuidance {
                 {
                     if (rel_pstd[p] > 0 && rel_pstd[p] < this.var_terminate)
                     {    
-                        if ( ! this.pconverged[p])
+                        if ( ! pconverged[p])
                           {
                             converged.append(this.INTRINSICS[p]);
-                            this.pconverged[p] = true;
+                            pconverged[p] = true;
                           }
                     }
                 }
                 if (converged.length() > 0)
                 {
-                    LOGGER.finest("{" + converged + "} converged");
+                    LOGGER.finest(() -> "{" + converged + "} converged");
                 }
             }
         }
         // if an intrinsic has converged, then set it to 0 so it can't be selected (again) as the max 
-        for (int i = 0; i < this.pconverged.length; i++)
+        for (int i = 0; i < pconverged.length; i++)
         {
-            if (this.pconverged[i])
+            if (pconverged[i])
             {
                 index_of_dispersion[i] = 0.;
             }
         }
         
-        this.tgt_param = argmax(index_of_dispersion);
+        return argmax(index_of_dispersion);
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -250,33 +318,73 @@ public class UserGuidance {
 /*                                                                                                 */
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
-    private void set_next_pose()
+    /**
+     * make the guidance board for the next target pose
+     * @param target output guidance board
+     * @param calib intrinsics for the pose and the board image
+     * @param tgt_param intrinsic to target
+     * @param posegen in/out; pose generator that makes the pose and records it as used
+     */
+    private void set_next_pose(GuidanceTarget target, Calibrator calib, int tgt_param, PoseGeneratorDist posegen)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        int nk = this.calib.keyframes.size();
+        int nk = calib.keyframes.size();
     
-        List<Mat> rt = this.posegen.get_pose(this.board_units, // rotation and translation of the guidance board
+        List<Mat> rt = Cfg.poseSelection == Cfg.PoseSelection.INFORMATION_GAIN ?
+                        posegen.best_pose(this.board_units, // rotation and translation of the guidance board
                                             nk,
-                                            this.tgt_param,
-                                            this.calib.K(),
-                                            this.calib.cdist());
-        rt.get(0).copyTo(this.tgt_r);
-        rt.get(1).copyTo(this.tgt_t);
+                                            tgt_param,
+                                            calib.K(),
+                                            calib.cdist(),
+                                            calib.covIntrinsics(),
+                                            calib.reperr())
+                      : posegen.get_pose(this.board_units, // rotation and translation of the guidance board
+                                            nk,
+                                            tgt_param,
+                                            calib.K(),
+                                            calib.cdist());
+        rt.get(0).copyTo(target.r);
+        rt.get(1).copyTo(target.t);
 
         rt.get(1).release();
         rt.remove(1);
         rt.get(0).release();
         rt.remove(0);
-        
-        this.board.create_maps(this.calib.K(), this.calib.cdist(), this.img_size);
+
+        this.make_target(target, calib);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     make_target                                                 */
+/*                                     make_target                                                 */
+/*                                     make_target                                                 */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * make the guidance board image, mask and outline of the target pose
+     * @param target in/out; its r and t are the pose
+     * @param calib intrinsics for the board image
+     */
+    private void make_target(GuidanceTarget target, Calibrator calib)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        target.board.create_maps(calib.K(), calib.cdist(), this.img_size);
         // make the guidance board warped and right size
         //board_warped_shape =  # Height Width Channels (720, 1280, 3)
-        this.board_warped.release();
-         
-        this.board_warped = this.board.project(this.tgt_r, this.tgt_t, false, Imgproc.INTER_NEAREST);
+        target.board.project(target.r, target.t, false, Imgproc.INTER_NEAREST, target.warped);
+
+        // the guidance board mask for the Jaccard score is the same until the next target pose
+        Core.extractChannel(target.warped, target.overlap, 1); // green channel has the board
+        Imgproc.threshold(target.overlap, target.overlap, 0., 1., Imgproc.THRESH_BINARY); // any non-black pixel is the board
+        target.overlapArea = Core.countNonZero(target.overlap);
+
+        target.outlineCount = target.board.outline(target.r, target.t, Cfg.jaccardOutlineSamples, target.outline);
 
-        LOGGER.finest("r/t and board_warped " + this.tgt_r.dump() + this.tgt_t.dump()  + board_warped);
+        LOGGER.finest(() -> "r/t and board_warped " + target.r.dump() + target.t.dump()  + target.warped);
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -292,70 +400,208 @@ public class UserGuidance {
      * Change from original - Returning numerical index instead of the true/false decision of close to target.
      * Calling program can decide what to do with the number. This can put all the decisions
      * in the same place instead of dispersed.
-     * @param progressInsert
+     * @param progressInsert output camera and guidance board overlap image (if progressInsertValid());
+     *     the analytic score leaves it for progress_insert to draw at the insert size
      * @return Jaccard similarity coefficient of estimated image pose and desired (target) guidance pose
      */
-    private double pose_close_to_tgt(Mat progressInsert)
+    double pose_close_to_tgt(Mat progressInsert)
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        LOGGER.finest("pose_valid " + this.tracker.pose_valid() + ", tgt_r empty " + this.tgt_r.empty());
+        LOGGER.finest(() -> "pose_valid " + this.tracker.pose_valid() + ", tgt_r empty " + this.target.r.empty());
         
         double jaccard = 0.;
+        this.progressInsertValid = false;
+        this.progressInsertOutlines = false;
     
         if ( ! this.tracker.pose_valid())
             return jaccard;
 
-        if (this.tgt_r.empty())
+        if (this.target.r.empty())
             return jaccard;
-    
-        byte[] board_warpedArray = new byte[this.board_warped.rows()*this.board_warped.cols()*this.board_warped.channels()];
-        this.board_warped.get(0, 0, board_warpedArray); // efficient retrieval of complete board_warped
 
-        byte[] overlapArray = new byte[this.overlap.rows()*this.overlap.cols()]; // 1 channel; java sets this to all zeros
+        switch (Cfg.jaccardScore)
+        {
+            case ANALYTIC:
+                jaccard = pose_close_to_tgt_analytic();
+                if (Double.isNaN(jaccard)) // board can't be outlined in this pose
+                {
+                    jaccard = pose_close_to_tgt_raster(progressInsert);
+                }
+                break;
+
+            case VALIDATE:
+                double analytic = pose_close_to_tgt_analytic();
+                jaccard = pose_close_to_tgt_raster(progressInsert); // raster stays the score and the display
+                if ( ! Double.isNaN(analytic) && ! Double.isNaN(jaccard))
+                {
+                    this.jaccardMaxDifference = Math.max(this.jaccardMaxDifference, Math.abs(analytic - jaccard));
+                    if (LOGGER.isLoggable(Level.FINE))
+                    {
+                        LOGGER.fine(String.format("jaccard analytic %.4f raster %.4f difference %.4f max difference %.4f",
+                            analytic, jaccard, analytic - jaccard, this.jaccardMaxDifference));
+                    }
+                }
+                break;
+
+            case RASTER:
+            default:
+                jaccard = pose_close_to_tgt_raster(progressInsert);
+                break;
+        }
 
-        int indexBoard_warpedArray = 1; // start position; extracting channel 1 (of 0, 1, 2)
-        for (int row = 0; row < overlapArray.length; row++)
+        if (LOGGER.isLoggable(Level.FINEST))
         {
-            if (board_warpedArray[indexBoard_warpedArray] != 0)
-            {
-                overlapArray[row] = 1;
-            }
-            indexBoard_warpedArray += 3; // bump to next pixel; incrementing by number of channels
+            LOGGER.finest("jaccard " + jaccard);
+        }
+
+        return jaccard;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     pose_close_to_tgt_analytic                                  */
+/*                                     pose_close_to_tgt_analytic                                  */
+/*                                     pose_close_to_tgt_analytic                                  */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Jaccard index of the outlines of the guidance board and the board at the camera pose
+     * projected through the same camera model as the board images - no images are made to score.
+     * The outlines are kept for progress_insert to draw if the insert is shown.
+     * @return Jaccard similarity coefficient or NaN if either board can't be outlined
+     */
+    private double pose_close_to_tgt_analytic()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        this.camOutlineCount = this.target.board.outline(this.tracker.rvec(), this.tracker.tvec(), Cfg.jaccardOutlineSamples, this.camOutline);
+        if (this.target.outlineCount == 0 || this.camOutlineCount == 0)
+        {
+            return Double.NaN;
+        }
+
+        double jaccard = this.polygonOverlap.jaccard(this.target.outline, this.target.outlineCount,
+            this.camOutline, this.camOutlineCount, this.img_size.width, this.img_size.height);
+
+        this.progressInsertOutlines = true;
+        this.progressInsertValid = true;
+
+        return jaccard;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     progress_insert                                             */
+/*                                     progress_insert                                             */
+/*                                     progress_insert                                             */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * the camera and guidance board overlap image at the display's insert size (if progressInsertValid())
+     * @param progressInsert overlap image pose_close_to_tgt made at the image size (raster score)
+     * @param insert output; allocated at the insert size
+     */
+    public void progress_insert(Mat progressInsert, Mat insert)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if ( ! this.progressInsertOutlines)
+        {
+            Imgproc.resize(progressInsert, insert, insert.size(), 0, 0, Imgproc.INTER_CUBIC);
+            return;
         }
-        this.overlap.put(0, 0, overlapArray);
 
+        // analytic score - the outlines scaled to the insert; the same greys as the raster overlap
+        // and where they overlap is bright white
+        double scaleX = insert.width()/this.img_size.width;
+        double scaleY = insert.height()/this.img_size.height;
+        Mat tempImg = this.pool.acquire(insert.size(), CvType.CV_8UC1);
+        insert.setTo(Scalar.all(0.));
+        tempImg.setTo(Scalar.all(0.));
+        fill_outline(insert, this.camOutline, this.camOutlineCount, scaleX, scaleY, Cfg.progressInsertCameraGrey);
+        fill_outline(tempImg, this.target.outline, this.target.outlineCount, scaleX, scaleY, Cfg.progressInsertGuidanceGrey);
+        Core.add(insert, tempImg, insert);
+    }
+
+    /**
+     * @param img output; outline filled in
+     * @param outline x, y vertices in image pixels
+     * @param count vertices
+     * @param scaleX img pixels per image pixel
+     * @param scaleY
+     * @param color
+     */
+    private void fill_outline(Mat img, double[] outline, int count, double scaleX, double scaleY, Scalar color)
+    {
+        // a poor calibration can put vertices very far away and fillPoly struggles with those
+        outline = this.polygonOverlap.clip(outline, count, this.img_size.width, this.img_size.height);
+        count = this.polygonOverlap.clip_count();
+        if (count < 3)
+        {
+            return;
+        }
+        int[] points = new int[2*count];
+        for (int i = 0; i < count; i++)
+        {
+            points[2*i] = (int)Math.round(outline[2*i]*scaleX);
+            points[2*i + 1] = (int)Math.round(outline[2*i + 1]*scaleY);
+        }
+        this.outlinePoints.create(count, 1, CvType.CV_32SC2);
+        this.outlinePoints.put(0, 0, points);
+        Imgproc.fillPoly(img, this.outlinePolygons, color);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     pose_close_to_tgt_raster                                    */
+/*                                     pose_close_to_tgt_raster                                    */
+/*                                     pose_close_to_tgt_raster                                    */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * Jaccard index by counting the pixels of the guidance board image and the board image
+     * projected at the camera pose
+     * @param progressInsert output camera and guidance board overlap image
+     * @return Jaccard similarity coefficient
+     */
+    private double pose_close_to_tgt_raster(Mat progressInsert)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        double jaccard;
 
-        int Aa = Core.countNonZero(this.overlap); // number of on (1) pixels in the warped_board (from above)
+        int Aa = this.target.overlapArea; // number of on (1) pixels in the warped_board (from set_next_pose)
 
-        Mat tmp = this.board.project(this.tracker.rvec(), // create projected shadow same way as the guidance board but using the estimated pose of the camera image
-                                    this.tracker.tvec(), 
-                                    true,
-                                    Imgproc.INTER_NEAREST);
+        Mat tmp = this.pool.acquire(this.img_size, CvType.CV_8UC1);
+        this.target.board.project(this.tracker.rvec(), // create projected shadow same way as the guidance board but using the estimated pose of the camera image
+                            this.tracker.tvec(), 
+                            true,
+                            Imgproc.INTER_NEAREST,
+                            tmp);
         // debug display
-        Mat tempImg = new Mat();
+        Mat tempImg = this.pool.acquire(this.img_size, CvType.CV_8UC1);
         tmp.copyTo(progressInsert); // test 1 has the board projected (warped) from where the detector thinks is the camera image pose
-        this.overlap.copyTo(tempImg); // tempImg has the warped guidance board
 
         Core.multiply(progressInsert, Cfg.progressInsertCameraGrey, progressInsert); // brighten (to near white) so it can be seen by humans
-        Core.multiply(tempImg, Cfg.progressInsertGuidanceGrey, tempImg); // brighten (to dark gray) so it can be seen by humans
+        Core.multiply(this.target.overlap, Cfg.progressInsertGuidanceGrey, tempImg); // tempImg has the warped guidance board brightened (to dark gray) so it can be seen by humans
         Core.add(progressInsert, tempImg, progressInsert); // where they overlap is bright white
+        this.progressInsertValid = true;
+        this.progressInsertOutlines = false;
 
-        LOGGER.finest("shadow_warped created r/t " + this.tracker.rvec().dump() + this.tracker.tvec().dump()  + board_warped);
+        LOGGER.finest(() -> "shadow_warped created r/t " + this.tracker.rvec().dump() + this.tracker.tvec().dump()  + this.target.warped);
 
         int Ab = Core.countNonZero(tmp); // number of on (1) pixels in the warped shadow board
-        Core.bitwise_and(this.overlap, tmp, this.overlap); // make the overlapped pixels on (1)
-        int Aab = Core.countNonZero(this.overlap); // number of on (1) pixels that overlap on the 2 boards
+        Core.bitwise_and(this.target.overlap, tmp, tmp); // make the overlapped pixels on (1)
+        int Aab = Core.countNonZero(tmp); // number of on (1) pixels that overlap on the 2 boards
         
         // circumvents instability during initialization and large variance in depth later on
         // Jaccard similarity index
         jaccard = (double)Aab / (double)(Aa + Ab - Aab);
 
-        tmp.release();
-        tempImg.release();
-
-        LOGGER.finest("jaccard " + jaccard);
-    
         return jaccard;
     }
 /*-------------------------------------------------------------------------------------------------*/
@@ -375,6 +621,8 @@ public class UserGuidance {
     {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
+        this.calibration_done(false); // use the newest capture's intrinsics and next pose if they're ready
+
         // first pose needs to see at least half of the corners
         // this image frame may or may not be good enough to capture so check if better than previous reperr (or initial minimum allowed)
         // if image frame not good enough to capture we'll be back here next time
@@ -383,14 +631,15 @@ public class UserGuidance {
         {
             LOGGER.finest("initial calibrate");
             // try to estimate intrinsic params from single frame
-            this.calib.calibrate(Arrays.asList(this.tracker.get_calib_pts())); // no captures yet so estimate from this frame detection
+            this.calib.calibrate(Arrays.asList(this.tracker.get_calib_pts()), false); // no captures yet so estimate from this frame detection
             // is this bootstrap calibration good enough to use at least for the next guidance display
             if (this.calib.reperr() < this.min_reperr_init) // assume K is all numeric - no way it couldn't be, original checked for nan but it never was
             {
                 // better than previous reperr so use these intrinsics for next guidance display
                 LOGGER.finest("initial set_next_pose and intrinsics");
                 this.tracker.set_intrinsics(this.calib); // use the better (we are hopeful) intrinsics (rkt reversed this and the next line! did I screw up?)
-                this.set_next_pose();  // update target guidance pose display based on the new intrinsics
+                this.set_next_pose(this.target, this.calib, this.tgt_param, this.posegen);  // update target guidance pose display based on the new intrinsics
+                this.publish_guidance();
                 this.min_reperr_init = this.calib.reperr(); // ratchet what's considered better
             }
         }
@@ -399,7 +648,9 @@ public class UserGuidance {
 
         this.pose_reached = force && this.tracker.N_pts() >= Cfg.minCorners; // original had > 4
 
+        long start = System.nanoTime();
         this.pose_close_to_tgt = this.pose_close_to_tgt(progressInsert);
+        Metrics.pose_close_to_tgt.record(start);
 
         if (this.pose_close_to_tgt > Cfg.pose_close_to_tgt_min)
         {
@@ -418,18 +669,39 @@ public class UserGuidance {
         // use all points instead to ensure we have a stable pose
         this.pose_reached &= this.tracker.N_pts() >= n_required;
 
-        this.capture = this.pose_reached && (this.still || force);
+        // only fully detected corners are captured; tracked corners are good enough for guidance
+        // but a forced capture waits for the next detected frame
+        if (this.tracker.corners_tracked())
+        {
+            this.force_pending |= force;
+            this.capture = false;
+        }
+        else
+        {
+            force |= this.force_pending;
+            this.force_pending = false;
+            this.pose_reached |= force && this.tracker.N_pts() >= n_required;
+            this.capture = this.pose_reached && (this.still || force);
+        }
 
-        LOGGER.finest(
-            "corners " + this.tracker.N_pts() +
-            ", pose_close_to_tgt " + pose_close_to_tgt +
-            ", still " + this.still +
-            ", mean_flow " + this.tracker.mean_flow() +
-            ", pose_reached " + this.pose_reached +
-            ", force " + force);
+        // the target doesn't move until the pending calibration is done so capturing it again would
+        // only repeat the capture; a forced capture is taken and replaces the pending calibration
+        this.capture &= force || this.calibrationPending == null;
+
+        if (LOGGER.isLoggable(Level.FINEST))
+        {
+            LOGGER.finest(
+                "corners " + this.tracker.N_pts() +
+                ", pose_close_to_tgt " + pose_close_to_tgt +
+                ", still " + this.still +
+                ", mean_flow " + this.tracker.mean_flow() +
+                ", pose_reached " + this.pose_reached +
+                ", force " + force);
+        }
 
         if ( ! this.capture)
         {
+            this.speculate(n_required);
             return false;            
         }
 
@@ -437,34 +709,584 @@ public class UserGuidance {
         // check for all parameters converged
         // set the next guidance board pose if not all converged
 
-        this.calib.keyframes.add(this.tracker.get_calib_pts());
+        keyframe capture = this.tracker.get_calib_pts();
+
+        if (this.speculation != null && same_keyframe(this.speculationKeyframe, capture, Cfg.speculationTolerance))
+        {
+            // the speculative calibration is of this capture; its keyframe is the one calibrated
+            this.calib.keyframes.add(this.speculationKeyframe);
+            if (this.calibrationPending != null)
+            {
+                this.calibrationPending.cancel(false);
+            }
+            this.calibrationPending = this.speculation;
+            this.speculation = null;
+            this.speculationKeyframe = null;
+            LOGGER.fine("speculative calibration used");
+        }
+        else
+        {
+            this.calib.keyframes.add(capture);
+            // update calibration with all keyframes and make the next pose on the worker
+            this.start_calibration();
+        }
 
         LOGGER.info("image capture number " + this.calib.keyframes.size());
 
-        // update calibration with all keyframes
-        this.calibrate();
+        this.calibration_done( ! Cfg.calibrationAsync); // a finished speculation switches to the next target now
+
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     start_calibration                                           */
+/*                                     start_calibration                                           */
+/*                                     start_calibration                                           */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * calibrate with the keyframes including the new capture and make the next pose on the worker
+     * thread; a calibration still pending for an earlier capture is stale and is cancelled
+     */
+    private void start_calibration()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.calibrationPending != null)
+        {
+            this.calibrationPending.cancel(false); // not started is never run; running finishes but isn't used
+            LOGGER.fine("stale calibration cancelled");
+        }
+        if (this.speculation != null)
+        {
+            this.speculation.cancel(false); // it was of another frame
+            this.speculation = null;
+            this.speculationKeyframe = null;
+        }
+
+        // the worker has its own copies; this frame loop keeps using the current ones until the swap
+        this.calibrationPending = this.submit_calibration(new Calibrator(this.calib), false);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     submit_calibration                                          */
+/*                                     submit_calibration                                          */
+/*                                     submit_calibration                                          */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * queue a calibration and its next pose on the worker thread; it makes any earlier one stale
+     * @param calib copy of the calibration with the keyframes to calibrate
+     * @param speculative a frame that may not be captured; not timed in the metrics
+     * @return the new calibration and its next pose when done
+     */
+    private Future<CalibrationResult> submit_calibration(Calibrator calib, boolean speculative)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        int generation = ++this.calibrationGeneration;
+        boolean[] pconverged = this.pconverged.clone();
+        int tgt_param = this.tgt_param;
+        GuidanceTarget target = this.targetNext;
+        // the next pose uses up angle bins and distortion areas of the generator so it's made on a
+        // copy that replaces the generator only if this calibration is used
+        PoseGeneratorDist posegen = new PoseGeneratorDist(this.posegen);
+
+        return this.calibrationWorker.submit(
+            () -> this.calibrate_next(generation, calib, pconverged, tgt_param, target, posegen, speculative));
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     speculate                                                   */
+/*                                     speculate                                                   */
+/*                                     speculate                                                   */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * calibrate this frame as if it were captured if it's close to the target and the worker is
+     * idle; keeps the last speculation while the frame hasn't moved from it
+     * @param n_required corners needed for a capture
+     */
+    private void speculate(int n_required)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if ( ! Cfg.speculativeTarget || this.converged || this.calib.keyframes.isEmpty()
+            || this.calibrationPending != null // a capture's calibration goes first
+            || (this.speculation != null && ! this.speculation.isDone()) // one at a time
+            || this.tracker.corners_tracked() // only detected frames are captured
+            || this.tracker.N_pts() < n_required
+            || this.pose_close_to_tgt < Cfg.speculationCloseMin)
+        {
+            return;
+        }
+
+        keyframe frame = this.tracker.get_calib_pts();
+        if (this.speculation != null && same_keyframe(this.speculationKeyframe, frame, Cfg.speculationTolerance))
+        {
+            return; // the camera hasn't moved
+        }
+
+        Calibrator calib = new Calibrator(this.calib);
+        calib.keyframes.add(frame);
+        this.speculationKeyframe = frame;
+        this.speculation = this.submit_calibration(calib, true);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     same_keyframe                                               */
+/*                                     same_keyframe                                               */
+/*                                     same_keyframe                                               */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * @param a
+     * @param b
+     * @param tolerance pixels
+     * @return the same corners are detected and none moved more than tolerance
+     */
+    private static boolean same_keyframe(keyframe a, keyframe b, double tolerance)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        int n = a.pid().rows();
+        if (n != b.pid().rows())
+        {
+            return false;
+        }
+        int[] idsA = new int[n];
+        int[] idsB = new int[n];
+        a.pid().get(0, 0, idsA);
+        b.pid().get(0, 0, idsB);
+        if ( ! Arrays.equals(idsA, idsB))
+        {
+            return false;
+        }
+        float[] ptsA = new float[2*n];
+        float[] ptsB = new float[2*n];
+        a.p2d().get(0, 0, ptsA);
+        b.p2d().get(0, 0, ptsB);
+        for (int i = 0; i < n; i++)
+        {
+            double dx = ptsA[2*i] - ptsB[2*i];
+            double dy = ptsA[2*i + 1] - ptsB[2*i + 1];
+            if (dx*dx + dy*dy > tolerance*tolerance)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     calibrate_next                                              */
+/*                                     calibrate_next                                              */
+/*                                     calibrate_next                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * runs on the worker thread; touches only its arguments
+     * @param posegen copy of the pose generator to make the next pose with
+     * @param speculative not timed in the metrics which are of the captures
+     * @return the new calibration and its next pose in target
+     */
+    private CalibrationResult calibrate_next(int generation, Calibrator calib, boolean[] pconverged, int tgt_param,
+        GuidanceTarget target, PoseGeneratorDist posegen, boolean speculative)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        long start = System.nanoTime();
+
+        tgt_param = this.calibrate(calib, pconverged, tgt_param);
+        if ( ! speculative)
+        {
+            Metrics.calibrate.record(start);
+        }
+        boolean converged = isAllTrue(pconverged);
+
+        if ( ! converged && generation == this.calibrationGeneration) // a newer capture's calibration makes the next pose
+        {
+            long startPose = System.nanoTime();
+            this.set_next_pose(target, calib, tgt_param, posegen);
+            if ( ! speculative)
+            {
+                Metrics.set_next_pose.record(startPose);
+            }
+        }
+
+        LOGGER.fine(() -> (speculative ? "speculation " : "capture ") + calib.keyframes.size() + " calibrated in " + (System.nanoTime() - start)/1000000L + " ms");
+
+        return new CalibrationResult(calib, pconverged, tgt_param, converged, posegen);
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     calibration_done                                            */
+/*                                     calibration_done                                            */
+/*                                     calibration_done                                            */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * swap in the intrinsics and next guidance board of the pending calibration if it's done
+     * @param wait wait for the pending calibration to finish
+     */
+    private void calibration_done(boolean wait)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.calibrationPending == null || ( ! wait && ! this.calibrationPending.isDone()))
+        {
+            return;
+        }
+
+        CalibrationResult result;
+        try
+        {
+            result = this.calibrationPending.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt(); // still pending; look again next frame
+            return;
+        }
+        catch (ExecutionException e)
+        {
+            LOGGER.severe("calibration failed " + e.getCause());
+            this.calibrationPending = null;
+            return;
+        }
+        this.calibrationPending = null;
+
+        this.calib = result.calib;
+        this.pconverged = result.pconverged;
+        this.tgt_param = result.tgt_param;
+        this.converged = result.converged;
+        this.posegen = result.posegen; // the next pose's angle bins and distortion areas are used now
 
         // use the updated calibration results for tracking
         this.tracker.set_intrinsics(this.calib);
 
-        LOGGER.fine("camera matrix\n" + this.calib.K().dump());
-        LOGGER.fine("camera distortion\n" + this.calib.cdist().dump());
-
-        this.converged = isAllTrue(this.pconverged);
+        LOGGER.fine(() -> "camera matrix\n" + this.calib.K().dump());
+        LOGGER.fine(() -> "camera distortion\n" + this.calib.cdist().dump());
 
         if (this.converged)
         {
-            this.tgt_r.release();
-            this.tgt_r = new Mat(); // clear the rotation
+            this.target.r.release(); // clear the rotation
         }
         else
         {
-            this.set_next_pose();
+            GuidanceTarget previous = this.target;
+            this.target = this.targetNext;
+            this.targetNext = previous;
         }
 
+        this.publish_guidance();
+        this.journal_append();
+
         this._update_user_info();
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     publish_guidance                                            */
+/*                                     publish_guidance                                            */
+/*                                     publish_guidance                                            */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * publish copies of the displayed target pose and the intrinsics it was drawn with; the
+     * originals are replaced and written by the guidance and calibration threads
+     */
+    private void publish_guidance()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
-        return true;
+        if (this.target.r.empty() || this.target.t.empty())
+        {
+            this.guidanceSnapshot = null; // converged; no target
+            return;
+        }
+        this.guidanceSnapshot = new GuidanceSnapshot(this.target.r.clone(), this.target.t.clone(),
+            this.calib.K().clone(), this.calib.cdist().clone());
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     journal                                                     */
+/*                                     journal                                                     */
+/*                                     journal                                                     */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * resume the guidance from a session journal and append to it or start a new journal
+     * @param resumeJournal journal file to resume; null for a new session
+     */
+    void journal(String resumeJournal)
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (resumeJournal != null)
+        {
+            try
+            {
+                this.resume(Paths.get(resumeJournal));
+            }
+            catch (IOException e)
+            {
+                LOGGER.severe("session not resumed; starting over " + e);
+            }
+        }
+
+        if (this.journal == null && Cfg.sessionJournal)
+        {
+            String fileTime = new SimpleDateFormat("_yyyy-MM-dd_HH-mm-ss").format(System.currentTimeMillis());
+            try
+            {
+                this.journal = SessionJournal.create(Paths.get(Cfg.sessionJournalPrefix + fileTime + ".gsj"), this.img_size);
+            }
+            catch (IOException e)
+            {
+                LOGGER.severe("session journal not created " + e);
+            }
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     journal_append                                              */
+/*                                     journal_append                                              */
+/*                                     journal_append                                              */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * journal the keyframes captured since the last record and the state to resume from them
+     */
+    private void journal_append()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.journal == null)
+        {
+            return;
+        }
+
+        try
+        {
+            ByteArrayOutputStream body = SessionJournal.body();
+            DataOutputStream out = new DataOutputStream(body);
+
+            List<keyframe> added = this.calib.keyframes.subList(this.journaledKeyframes, this.calib.keyframes.size());
+            out.writeInt(added.size());
+            for (keyframe frame : added)
+            {
+                int n = frame.pid().rows();
+                int[] ids = new int[n];
+                float[] p2d = new float[2*n];
+                float[] p3d = new float[3*n];
+                frame.pid().get(0, 0, ids);
+                frame.p2d().get(0, 0, p2d);
+                frame.p3d().get(0, 0, p3d);
+                out.writeInt(n);
+                for (int id : ids)
+                {
+                    out.writeInt(id);
+                }
+                for (float value : p2d)
+                {
+                    out.writeFloat(value);
+                }
+                for (float value : p3d)
+                {
+                    out.writeFloat(value);
+                }
+            }
+
+            this.calib.writeState(out);
+            out.writeInt(this.tgt_param);
+            out.writeBoolean(this.converged);
+            for (boolean p : this.pconverged)
+            {
+                out.writeBoolean(p);
+            }
+            SessionJournal.writeMat(out, this.target.r); // empty if converged
+            SessionJournal.writeMat(out, this.target.t);
+            this.posegen.writeState(out);
+            out.flush();
+
+            this.journal.append(body.toByteArray()); // the journal writer thread writes and forces it
+            this.journaledKeyframes = this.calib.keyframes.size();
+
+            if (this.converged)
+            {
+                this.journal.close(); // nothing more to journal
+                this.journal = null;
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.severe("session journal not written; journaling stopped " + e);
+            try
+            {
+                this.journal.close();
+            }
+            catch (IOException ignored) {}
+            this.journal = null;
+        }
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     close_journal                                               */
+/*                                     close_journal                                               */
+/*                                     close_journal                                               */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * wait for the journal records still queued to be written and close the journal
+     */
+    void close_journal()
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        if (this.journal == null)
+        {
+            return;
+        }
+        try
+        {
+            this.journal.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.severe("session journal not closed " + e);
+        }
+        this.journal = null;
+    }
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+/*                                                                                                 */
+/*                                     resume                                                      */
+/*                                     resume                                                      */
+/*                                     resume                                                      */
+/*                                                                                                 */
+/*-------------------------------------------------------------------------------------------------*/
+/*-------------------------------------------------------------------------------------------------*/
+    /**
+     * replay a session journal into a new calibration and pose generator and use them if the whole
+     * journal is read; the guidance continues at the journal's last target pose
+     * @param path
+     * @throws IOException
+     */
+    private void resume(Path path) throws IOException
+    {
+        LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
+
+        SessionJournal journal = SessionJournal.open(path, this.img_size);
+        if (journal.records() == 0)
+        {
+            this.journal = journal; // nothing captured yet; continue it from the first pose
+            return;
+        }
+
+        Calibrator calib = new Calibrator(this.img_size);
+        PoseGeneratorDist posegen = new PoseGeneratorDist(this.img_size);
+        boolean[] pconverged = new boolean[calib.nintr()];
+        int tgt_param = this.tgt_param;
+        boolean converged = false;
+        Mat r = new Mat();
+        Mat t = new Mat();
+        try
+        {
+            for (int record = 0; record < journal.records(); record++)
+            {
+                DataInputStream in = journal.record(record);
+
+                int added = in.readInt();
+                for (int i = 0; i < added; i++)
+                {
+                    int n = in.readInt();
+                    int[] ids = new int[n];
+                    float[] p2d = new float[2*n];
+                    float[] p3d = new float[3*n];
+                    for (int j = 0; j < ids.length; j++)
+                    {
+                        ids[j] = in.readInt();
+                    }
+                    for (int j = 0; j < p2d.length; j++)
+                    {
+                        p2d[j] = in.readFloat();
+                    }
+                    for (int j = 0; j < p3d.length; j++)
+                    {
+                        p3d[j] = in.readFloat();
+                    }
+                    Mat pid = new Mat(n, 1, CvType.CV_32SC1);
+                    Mat p2dMat = new Mat(n, 1, CvType.CV_32FC2);
+                    Mat p3dMat = new Mat(n, 1, CvType.CV_32FC3);
+                    pid.put(0, 0, ids);
+                    p2dMat.put(0, 0, p2d);
+                    p3dMat.put(0, 0, p3d);
+                    calib.keyframes.add(new keyframe(this.img_size, p3dMat, p2dMat, pid));
+                }
+
+                calib.readState(in);
+                tgt_param = in.readInt();
+                converged = in.readBoolean();
+                for (int p = 0; p < pconverged.length; p++)
+                {
+                    pconverged[p] = in.readBoolean();
+                }
+                r = SessionJournal.readMat(in);
+                t = SessionJournal.readMat(in);
+                posegen.readState(in);
+            }
+        }
+        catch (IOException e)
+        {
+            journal.close();
+            throw e;
+        }
+
+        this.journal = journal;
+        this.journaledKeyframes = calib.keyframes.size();
+        this.calib = calib;
+        this.posegen = posegen;
+        this.pconverged = pconverged;
+        this.tgt_param = tgt_param;
+        this.converged = converged;
+
+        this.tracker.set_intrinsics(this.calib);
+        if (this.converged)
+        {
+            this.target.r.release(); // clear the rotation
+        }
+        else
+        {
+            r.copyTo(this.target.r);
+            t.copyTo(this.target.t);
+            this.make_target(this.target, this.calib);
+        }
+        this.publish_guidance();
+        this._update_user_info();
+
+        LOGGER.info("resumed at image capture number " + this.calib.keyframes.size() + " from " + path);
+        LOGGER.fine(() -> "camera matrix\n" + this.calib.K().dump());
+        LOGGER.fine(() -> "camera distortion\n" + this.calib.cdist().dump());
     }
 /*-------------------------------------------------------------------------------------------------*/
 /*-------------------------------------------------------------------------------------------------*/
@@ -536,27 +1358,18 @@ public class UserGuidance {
         LOGGER.finer("method entered  . . . . . . . . . . . . . . . . . . . . . . . .");
 
         // assumes both img and board are 3 color channels BGR
-        if ( ! this.tgt_r.empty())
+        if ( ! this.target.r.empty())
         {
-            // process complete Mats' temp buffers for efficient access
-            byte[] imgBuff = new byte[img.rows()*img.cols()*img.channels()];
-            byte[] board_warpedBuff = new byte[this.board_warped.rows()*this.board_warped.cols()*this.board_warped.channels()];
-
-            if (imgBuff.length != board_warpedBuff.length) {
-                LOGGER.severe("major trouble here");
+            // if there is a non-black pixel in the warped board then use it in img
+            // (the warped board is its own mask; each channel of each pixel is copied if it isn't 0)
+            if (img.size().equals(this.target.warped.size()) && img.type() == this.target.warped.type())
+            {
+                this.target.warped.copyTo(img, this.target.warped);
             }
-            img.get(0, 0, imgBuff); // get the Mat
-            this.board_warped.get(0, 0,board_warpedBuff); // get the Mat
-
-            for (int index = 0; index < imgBuff.length; index++)
+            else
             {
-                // if there is a non-black pixel in the warped board then use it in img
-                if (board_warpedBuff[index] != 0)
-                {
-                    imgBuff[index] = board_warpedBuff[index];
-                }
+                LOGGER.severe("major trouble here");
             }
-            img.put(0, 0, imgBuff); // update the Mat            
         }
 
         if (this.tracker.pose_valid())
@@ -599,4 +1412,66 @@ public class UserGuidance {
         LOGGER.info("avg_reprojection_error: " + this.calib.reperr());
         LOGGER.info("End of Calibration\n");
     }
+
+    /**
+     * One guidance board pose and everything made from it for the display and the Jaccard score
+     */
+    private static class GuidanceTarget
+    {
+        final BoardPreview board; // camera model of the guidance board; also projects the camera pose for the score
+        final Mat r = new Mat();
+        final Mat t = new Mat();
+        final Mat warped = new Mat(); // guidance board image
+        final Mat overlap; // guidance board mask (0 or 1) from warped
+        int overlapArea = 0; // number of on (1) pixels in the overlap mask
+        final double[] outline = new double[8*Cfg.jaccardOutlineSamples]; // guidance board outline
+        int outlineCount = 0; // 0 if the guidance board couldn't be outlined
+
+        GuidanceTarget(BoardPreview board, Size img_size)
+        {
+            this.board = board;
+            this.overlap = Mat.zeros((int)img_size.height, (int)img_size.width, CvType.CV_8UC1);
+        }
+    }
+
+    /**
+     * Copies of a target pose and the intrinsics it was drawn with; never changed or released after
+     * they're published so any thread may read them
+     */
+    static final class GuidanceSnapshot
+    {
+        final Mat r;
+        final Mat t;
+        final Mat K;
+        final Mat cdist;
+
+        private GuidanceSnapshot(Mat r, Mat t, Mat K, Mat cdist)
+        {
+            this.r = r;
+            this.t = t;
+            this.K = K;
+            this.cdist = cdist;
+        }
+    }
+
+    /**
+     * A capture's calibration from the worker
+     */
+    private static class CalibrationResult
+    {
+        final Calibrator calib;
+        final boolean[] pconverged;
+        final int tgt_param;
+        final boolean converged;
+        final PoseGeneratorDist posegen; // generator that made the next pose
+
+        CalibrationResult(Calibrator calib, boolean[] pconverged, int tgt_param, boolean converged, PoseGeneratorDist posegen)
+        {
+            this.calib = calib;
+            this.pconverged = pconverged;
+            this.tgt_param = tgt_param;
+            this.converged = converged;
+            this.posegen = posegen;
+        }
+    }
 }